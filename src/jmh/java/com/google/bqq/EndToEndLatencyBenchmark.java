@@ -0,0 +1,77 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.bqq.BQQSimulator.Distribution;
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResult;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency distribution of a query from queueing to result, with 16 callers sharing clients
+ * of different sizes. Jobs need two status checks, polled back to back, so smaller pools
+ * show their queueing delay and every pool shows the library's own overhead.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class EndToEndLatencyBenchmark {
+  @Param({"1", "8", "64"})
+  public int poolSize;
+
+  @Param({"THREAD_POOL", "POLLER"})
+  public BQQExecutionMode mode;
+
+  private final QueryRequest mRequest = QueryRequest.of("SELECT 1");
+  private BQQClient mClient;
+
+  @Setup
+  public void setUp() throws Exception {
+    BQQServiceFactory.setBackend(new BQQSimulator(1)
+        .setStatusChecksNeeded(2)
+        .setResultRows(Distribution.fixed(10)));
+    mClient = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(0))
+        .setRetryPolicy(BQQRetryPolicy.none());
+    mClient.startup(poolSize, mode);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    mClient.shutdown();
+    BQQServiceFactory.setBackend(null);
+  }
+
+  @Benchmark
+  public QueryResult queryLatency() {
+    return mClient.queueQueryAsync(mRequest).join();
+  }
+}
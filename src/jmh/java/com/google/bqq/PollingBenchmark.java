@@ -0,0 +1,79 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.bqq.BQQSimulator.Distribution;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResponse;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Client side cost of checking on a running job: the status check RPC through the client
+ * library, and working out when to check next.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PollingBenchmark {
+  private BigQuery mBigQuery;
+  private BQQCallable mCallable;
+  private JobId mJobId;
+  private BQQPollingStrategy mStrategy;
+  private int mAttempt = 0;
+
+  @Setup
+  public void setUp() throws Exception {
+    // the job doesn't complete for a day, so every check is answered with the job running
+    BQQServiceFactory.setBackend(new BQQSimulator(1)
+        .setJobRuntime(Distribution.fixed(TimeUnit.DAYS.toMillis(1))));
+    mBigQuery = BQQServiceFactory.getClient(null, null);
+    mCallable = new BQQCallableBuilder()
+        .setQueryRequest(QueryRequest.of("SELECT 1"))
+        .build();
+    mJobId = mCallable.submit(mBigQuery).getJobId();
+    mStrategy = BQQPollingStrategy.defaultStrategy();
+  }
+
+  @TearDown
+  public void tearDown() {
+    BQQServiceFactory.setBackend(null);
+  }
+
+  @Benchmark
+  public QueryResponse poll() throws BQQException {
+    return mCallable.poll(mBigQuery, mJobId);
+  }
+
+  @Benchmark
+  public long pollDelay() {
+    mAttempt = mAttempt % 50 + 1;
+    return mStrategy.getDelayMillis(mAttempt);
+  }
+}
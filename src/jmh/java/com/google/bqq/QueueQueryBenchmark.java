@@ -0,0 +1,87 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.bqq.BQQSimulator.Distribution;
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResult;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of queueing queries whose jobs complete as soon as they start, so the numbers
+ * are the cost of queueing, dispatching and completing a query.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueQueryBenchmark {
+  private static final int BATCH = 1000;
+
+  @Param({"THREAD_POOL", "POLLER"})
+  public BQQExecutionMode mode;
+
+  private final QueryRequest mRequest = QueryRequest.of("SELECT 1");
+  private final CompletableFuture<?>[] mFutures = new CompletableFuture<?>[BATCH];
+  private BQQClient mClient;
+
+  @Setup
+  public void setUp() throws Exception {
+    BQQServiceFactory.setBackend(new BQQSimulator(1).setResultRows(Distribution.fixed(1)));
+    mClient = new BQQClient().setRetryPolicy(BQQRetryPolicy.none());
+    mClient.startup(64, mode);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    mClient.shutdown();
+    BQQServiceFactory.setBackend(null);
+  }
+
+  /**
+   * Queues a batch of queries, then waits for all of them.
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void queueQueryAsync() {
+    for (int i = 0; i < BATCH; ++i) {
+      mFutures[i] = mClient.queueQueryAsync(mRequest);
+    }
+    CompletableFuture.allOf(mFutures).join();
+  }
+
+  /**
+   * Queues a single query from the caller and waits for it, the cost a caller sees.
+   */
+  @Benchmark
+  public QueryResult queueQueryAndWait() {
+    return mClient.queueQueryAsync(mRequest).join();
+  }
+}
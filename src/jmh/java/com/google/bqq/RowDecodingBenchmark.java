@@ -0,0 +1,122 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.bqq.BQQSimulator.Distribution;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResult;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of reading every row of a paged result: iterating it as the client library does,
+ * through a prefetching BQQRowStream, into a BQQColumnarResult, and through the row encoding
+ * used by spill files and the result store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RowDecodingBenchmark {
+  @Param({"100000"})
+  public int rows;
+
+  @Param({"1000", "10000"})
+  public int pageSize;
+
+  private QueryResult mResult;
+  private List<List<FieldValue>> mRows;
+  private ByteBuffer mEncoded;
+
+  @Setup
+  public void setUp() throws Exception {
+    BQQServiceFactory.setBackend(new BQQSimulator(1)
+        .setResultRows(Distribution.fixed(rows))
+        .setPageSize(pageSize));
+    mResult = new BQQCallableBuilder()
+        .setQueryRequest(QueryRequest.of("SELECT 1"))
+        .build()
+        .call();
+    mRows = new ArrayList<>(rows);
+    Iterator<List<FieldValue>> all = mResult.iterateAll();
+    while (all.hasNext()) {
+      mRows.add(all.next());
+    }
+    mEncoded = encode();
+  }
+
+  @TearDown
+  public void tearDown() {
+    BQQServiceFactory.setBackend(null);
+  }
+
+  @Benchmark
+  public void iterateAll(Blackhole bh) {
+    Iterator<List<FieldValue>> all = mResult.iterateAll();
+    while (all.hasNext()) {
+      bh.consume(all.next().get(0).getLongValue());
+    }
+  }
+
+  @Benchmark
+  public void rowStream(Blackhole bh) {
+    try (BQQRowStream stream = new BQQRowStream(mResult, BQQRowStream.DEFAULT_PREFETCH_PAGES)) {
+      while (stream.hasNext()) {
+        bh.consume(stream.next().get(0).getLongValue());
+      }
+    }
+  }
+
+  @Benchmark
+  public BQQColumnarResult columnar() {
+    return BQQColumnarResult.of(mResult);
+  }
+
+  @Benchmark
+  public ByteBuffer encode() {
+    ByteBuffer out = ByteBuffer.allocate(1 << 20);
+    for (List<FieldValue> row : mRows) {
+      out = BQQRowCodec.encode(row, out);
+    }
+    out.flip();
+    return out;
+  }
+
+  @Benchmark
+  public void decode(Blackhole bh) {
+    ByteBuffer in = mEncoded.duplicate();
+    while (in.hasRemaining()) {
+      bh.consume(BQQRowCodec.decode(in));
+    }
+  }
+}
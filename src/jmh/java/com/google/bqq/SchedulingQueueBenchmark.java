@@ -0,0 +1,85 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.QueryRequest;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention on the scheduling queue, with many producers queueing queries of random
+ * priorities and tenants while workers take them and complete them. Offers to a full queue
+ * and polls of an empty one count too, as they take the lock all the same.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class SchedulingQueueBenchmark {
+  private static final int CAPACITY = 10000;
+
+  @Param({"1", "16"})
+  public int tenants;
+
+  private BQQSchedulingQueue mQueue;
+  private BQQCallable[] mCallables;
+
+  @Setup
+  public void setUp() {
+    mQueue = new BQQSchedulingQueue(CAPACITY, BQQSchedulingQueue.DEFAULT_AGING_MS);
+    BQQPriority[] priorities = BQQPriority.values();
+    mCallables = new BQQCallable[tenants * priorities.length];
+    for (int i = 0; i < mCallables.length; ++i) {
+      mCallables[i] = new BQQCallableBuilder()
+          .setQueryRequest(QueryRequest.of("SELECT " + i))
+          .setTenant("tenant-" + i / priorities.length)
+          .setPriority(priorities[i % priorities.length])
+          .build();
+    }
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(6)
+  public boolean offer() {
+    BQQCallable callable = mCallables[ThreadLocalRandom.current().nextInt(mCallables.length)];
+    return mQueue.offer(new BQQQueryTask(callable));
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(2)
+  public Runnable poll() {
+    Runnable task = mQueue.poll();
+    if (task != null) {
+      ((BQQScheduledTask) task).getFuture().complete(null);
+    }
+    return task;
+  }
+}
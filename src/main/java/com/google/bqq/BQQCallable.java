@@ -14,8 +14,10 @@
 package com.google.bqq;
 
 import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQuery.QueryResultsOption;
 import com.google.cloud.bigquery.BigQueryError;
 import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.JobId;
 import com.google.cloud.bigquery.QueryRequest;
 import com.google.cloud.bigquery.QueryResponse;
 import com.google.cloud.bigquery.QueryResult;
@@ -23,14 +25,68 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Immutable Blocking BigQuery task to execute.
+ * Blocking BigQuery task to execute. Its configuration is immutable,
+ * it only keeps count of the calls it made and retried.
+ * Failed job starts and failed status checks are retried separately under the retry policy:
+ * a failed status check is retried against the same job, and only a failure to start the job,
+ * or a job which itself failed transiently, leads to starting a new job.
+ * A cancelled query cancels its BigQuery job, or the job it's starting as soon as it started.
  */
 public class BQQCallable implements Callable<QueryResult> {
+  /** Tenant of queries which don't name one. */
+  public static final String DEFAULT_TENANT = "default";
+
+  private static final Logger LOG = LoggerFactory.getLogger(BQQCallable.class);
+  private static final AtomicInteger CANCELLER_COUNT = new AtomicInteger();
+  // Makes jobs.cancel calls off the thread cancelling the query. Its threads aren't daemons,
+  // so the JVM doesn't exit before the jobs of queries cancelled on the way out are stopped.
+  private static final ThreadPoolExecutor CANCELLER = newCanceller();
+
   private String mProjectId;
   private String mServiceAccountPath = "";
   private QueryRequest mQueryRequest;
+  private BQQPollingStrategy mPollingStrategy = BQQPollingStrategy.defaultStrategy();
+  private BQQPollCounter mPollCounter;
+  private BQQQueryMetrics mMetrics;
+  private BQQPriority mPriority = BQQPriority.NORMAL;
+  private String mTenant = DEFAULT_TENANT;
+  private BQQRateLimiter mSubmitRateLimiter;
+  private BQQRateLimiter mStatusRateLimiter;
+  private BQQHedger mHedger;
+  private BQQRetryPolicy mRetryPolicy = BQQRetryPolicy.defaultPolicy();
+  private long mDeadlineMs = 0;
+  private BQQJobJournal mJournal;
+  private long mJournalId = 0;
+  // job started before a restart, re-attached to instead of starting a new one
+  private volatile JobId mResumeJobId;
+  private final AtomicInteger mPollCount = new AtomicInteger();
+  private final AtomicInteger mSubmitCount = new AtomicInteger();
+  private final AtomicInteger mPollFailures = new AtomicInteger();
+  private final AtomicInteger mRetryCount = new AtomicInteger();
+  private volatile long mFirstSubmitNanos;
+  private volatile JobId mJobId;
+  // job started and not known to be done, cancelled along with the query
+  private volatile JobId mRunningJobId;
+  private volatile boolean mCancelled = false;
+  private final AtomicBoolean mJobCancelIssued = new AtomicBoolean();
+  private volatile Consumer<Throwable> mRetryListener;
+  // System.nanoTime() at each step of the query's life, 0 until reached
+  private volatile long mEnqueuedNanos;
+  private volatile long mStartedNanos;
+  private volatile long mJobCreatedNanos;
+  private volatile long mJobCompletedNanos;
+  private volatile long mResultFetchedNanos;
 
   /**
    * Generates a new BQQCallable instance
@@ -46,6 +102,33 @@ public class BQQCallable implements Callable<QueryResult> {
     mQueryRequest = queryRequest;
   }
 
+  /**
+   * Generates a new BQQCallable instance from a builder.
+   * @param builder a validated builder
+   */
+  BQQCallable(BQQCallableBuilder builder) {
+    this(builder.getProjectId(), builder.getServiceAccountPath(), builder.getQueryRequest());
+    if (builder.getPollingStrategy() != null) {
+      mPollingStrategy = builder.getPollingStrategy();
+    }
+    mPollCounter = builder.getPollCounter();
+    mMetrics = builder.getMetrics();
+    if (builder.getPriority() != null) {
+      mPriority = builder.getPriority();
+    }
+    if (builder.getTenant() != null) {
+      mTenant = builder.getTenant();
+    }
+    mSubmitRateLimiter = builder.getSubmitRateLimiter();
+    mStatusRateLimiter = builder.getStatusRateLimiter();
+    mHedger = builder.getHedger();
+    mDeadlineMs = Math.max(0, builder.getDeadlineMillis());
+    mResumeJobId = builder.getResumeJobId();
+    if (builder.getRetryPolicy() != null) {
+      mRetryPolicy = builder.getRetryPolicy();
+    }
+  }
+
   /**
    * Executes the instance's BigQuery SQL Query.
    * @throws BQQException query fails
@@ -57,30 +140,483 @@ public class BQQCallable implements Callable<QueryResult> {
   public QueryResult call() throws BQQException, InterruptedException,
     FileNotFoundException, IOException {
 
-    BigQuery bigquery = BQQServiceFactory.buildClient(mProjectId, mServiceAccountPath);
+    markStarted();
+    BigQuery bigquery = getBigQuery();
+    while (true) {
+      QueryResponse response = submitWithRetries(bigquery);
+      while (!response.jobCompleted()) {
+        sleepWithinDeadline(getPollDelayMillis());
+        response = pollWithRetries(bigquery, response.getJobId());
+      }
+
+      try {
+        return getResult(response);
+      } catch (BQQException e) {
+        long delay = getSubmitRetryDelayMillis(e);
+        if (delay < 0) {
+          throw e;
+        }
+        sleepWithinDeadline(delay);
+      }
+    }
+  }
+
+  private void sleepWithinDeadline(long sleepMs)
+      throws BQQDeadlineExceededException, InterruptedException {
+    sleepWithinDeadline(sleepMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sleeps, unless that takes the query past its deadline.
+   * @throws BQQDeadlineExceededException if the deadline passed, once the job is being cancelled
+   */
+  private void sleepWithinDeadline(long sleep, TimeUnit unit)
+      throws BQQDeadlineExceededException, InterruptedException {
+    long sleepNanos = unit.toNanos(sleep);
+    if (mDeadlineMs > 0) {
+      long start = mEnqueuedNanos != 0 ? mEnqueuedNanos : mStartedNanos;
+      long leftNanos = TimeUnit.MILLISECONDS.toNanos(mDeadlineMs) - (System.nanoTime() - start);
+      if (leftNanos < sleepNanos) {
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, leftNanos));
+        cancel();
+        throw new BQQDeadlineExceededException("Query took longer than " + mDeadlineMs + "ms");
+      }
+    }
+    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+  }
+
+  private QueryResponse submitWithRetries(BigQuery bigquery)
+      throws BQQException, InterruptedException {
+    while (true) {
+      sleepWithinDeadline(reserveSubmit(), TimeUnit.NANOSECONDS);
+      try {
+        return submit(bigquery);
+      } catch (BQQException e) {
+        long delay = getSubmitRetryDelayMillis(e);
+        if (delay < 0) {
+          throw e;
+        }
+        sleepWithinDeadline(delay);
+      }
+    }
+  }
+
+  private QueryResponse pollWithRetries(BigQuery bigquery, JobId jobId)
+      throws BQQException, InterruptedException {
+    while (true) {
+      sleepWithinDeadline(reservePoll(), TimeUnit.NANOSECONDS);
+      try {
+        return poll(bigquery, jobId);
+      } catch (BQQException e) {
+        long delay = getPollRetryDelayMillis(e);
+        if (delay < 0) {
+          throw e;
+        }
+        sleepWithinDeadline(delay);
+      }
+    }
+  }
+
+  /**
+   * @return the shared BigQuery client this query authenticates with
+   * @throws IOException if no Service Account Found
+   * @throws FileNotFoundException  if failed to read Service Account
+   */
+  BigQuery getBigQuery() throws FileNotFoundException, IOException {
+    return BQQServiceFactory.getClient(mProjectId, mServiceAccountPath);
+  }
+
+  /**
+   * Starts the query job.
+   * @param bigquery client to submit with
+   * @return the first response, which may or may not have a completed job
+   * @throws BQQException if the job could not be started
+   */
+  QueryResponse submit(BigQuery bigquery) throws BQQException {
+    return submit(bigquery, mQueryRequest);
+  }
+
+  /**
+   * Starts a query job for a variant of this instance's request.
+   * @param bigquery client to submit with
+   * @param queryRequest the request to submit
+   * @return the first response, which may or may not have a completed job
+   * @throws BQQException if the job could not be started
+   */
+  QueryResponse submit(BigQuery bigquery, QueryRequest queryRequest) throws BQQException {
+    if (mCancelled) {
+      throw new BQQException("Query was cancelled");
+    }
+    JobId resumeJobId = mResumeJobId;
+    // a re-attach counts as the first attempt, so the retry policy's clock starts with it,
+    // checking on the resumed job again after a failed check doesn't count as another
+    if ((resumeJobId == null || mSubmitCount.get() == 0)
+        && mSubmitCount.getAndIncrement() == 0) {
+      mFirstSubmitNanos = System.nanoTime();
+    }
+    if (resumeJobId != null) {
+      QueryResponse response = reattach(bigquery, resumeJobId);
+      // only once, a retry after the job failed starts the query over
+      mResumeJobId = null;
+      if (response != null) {
+        return started(response);
+      }
+    }
+    if (mMetrics != null) {
+      mMetrics.onSubmit();
+    }
     QueryResponse response;
     try {
-      response = bigquery.query(mQueryRequest);
+      response = bigquery.query(queryRequest);
     } catch (BigQueryException e) {
       throw new BQQException(e);
     }
-
-    while (!response.jobCompleted()) {
-      Thread.sleep(500L);
+    if (mJournal != null && response.getJobId() != null) {
       try {
-        response = bigquery.getQueryResults(response.getJobId());
-      } catch (BigQueryException e) {
-        throw new BQQException("Failed to grab query results" + e, e);
+        mJournal.started(mJournalId, response.getJobId());
+      } catch (IOException e) {
+        LOG.warn("Failed to journal job " + response.getJobId(), e);
       }
     }
+    return started(response);
+  }
+
+  /**
+   * Checks on a job started before a restart, the way a running job is checked on.
+   * @return the job's status, or null if it's gone and the query has to start over
+   * @throws BQQException if the status could not be fetched for another reason than the job
+   *     being gone, leaving the job to be checked on again if the retry policy allows
+   */
+  private QueryResponse reattach(BigQuery bigquery, JobId jobId) throws BQQException {
+    try {
+      return poll(bigquery, jobId);
+    } catch (NullPointerException e) {
+      // the client library fails with a NullPointerException on a job it can't find
+      LOG.warn("Job " + jobId + " is gone, starting it over", e);
+      return null;
+    } catch (BQQException e) {
+      boolean notFound = e.getCause() instanceof BigQueryException
+          && ((BigQueryException) e.getCause()).getCode() == 404;
+      if (!notFound && !e.hasReason("notFound", "invalid")) {
+        throw e;
+      }
+      LOG.warn("Failed to re-attach to job " + jobId + ", starting it over", e);
+      return null;
+    }
+  }
+
+  /**
+   * Keeps track of a job which was just started or re-attached to, so it can be cancelled.
+   */
+  private QueryResponse started(QueryResponse response) {
+    mJobCreatedNanos = System.nanoTime();
+    if (!response.jobCompleted()) {
+      mRunningJobId = response.getJobId();
+      if (mCancelled) {
+        // cancelled while the job was being started
+        cancel();
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Checks on a running query job once.
+   * @param bigquery client to poll with
+   * @param jobId the job returned by submit
+   * @return the latest response for the job
+   * @throws BQQException if the status could not be fetched
+   */
+  QueryResponse poll(BigQuery bigquery, JobId jobId) throws BQQException {
+    mPollCount.incrementAndGet();
+    if (mMetrics != null) {
+      mMetrics.onPoll();
+    }
+    long serverWait = mPollingStrategy.getServerWaitMillis();
+    Supplier<QueryResponse> rpc = serverWait > 0
+        ? () -> bigquery.getQueryResults(jobId, QueryResultsOption.maxWaitTime(serverWait))
+        : () -> bigquery.getQueryResults(jobId);
+    try {
+      QueryResponse response = mHedger == null ? rpc.get() : mHedger.call(rpc, serverWait);
+      mPollFailures.set(0);
+      return response;
+    } catch (BigQueryException e) {
+      throw new BQQException("Failed to grab query results" + e, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BQQException("Interrupted while checking on job " + jobId);
+    }
+  }
+
+  /**
+   * Turns a completed job's response into its result.
+   * @param response a response with a completed job
+   * @return the query result
+   * @throws BQQException if the job completed with errors
+   */
+  QueryResult getResult(QueryResponse response) throws BQQException {
+    mJobCompletedNanos = System.nanoTime();
+    mRunningJobId = null;
+    if (mPollCounter != null) {
+      mPollCounter.record(mPollCount.get());
+    }
 
     List<BigQueryError> executionErrors = response.getExecutionErrors();
     if (!executionErrors.isEmpty()) {
       throw new BQQException("BigQueryError", executionErrors);
     }
+    mJobId = response.getJobId();
 
     QueryResult result = response.getResult();
+    mResultFetchedNanos = System.nanoTime();
     return result;
   }
 
+  /**
+   * Records the query's job in a journal, so it can be re-attached to after a restart.
+   * @param journal the journal
+   * @param id the query's id in the journal
+   */
+  void setJournal(BQQJobJournal journal, long id) {
+    mJournal = journal;
+    mJournalId = id;
+  }
+
+  /**
+   * @return the query's id in the client's journal, or 0 if not journaled
+   */
+  long getJournalId() {
+    return mJournalId;
+  }
+
+  /**
+   * Stops the query: its running job is cancelled in the background, and a job it's starting
+   * is cancelled as soon as it started. No new job is started. The job is never cancelled on
+   * the query's own thread, which may have been interrupted, making the call fail.
+   */
+  void cancel() {
+    mCancelled = true;
+    if (mRunningJobId == null) {
+      return;
+    }
+    CANCELLER.execute(() -> {
+      try {
+        cancelJob(getBigQuery());
+      } catch (IOException e) {
+        LOG.warn("Failed to cancel job " + mRunningJobId, e);
+      }
+    });
+  }
+
+  /**
+   * Cancels the running job, if there is one and it wasn't cancelled already.
+   */
+  private void cancelJob(BigQuery bigquery) {
+    JobId jobId = mRunningJobId;
+    if (jobId == null || !mJobCancelIssued.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      if (bigquery.cancel(jobId) && mMetrics != null) {
+        mMetrics.onJobCancelled();
+      }
+    } catch (BigQueryException e) {
+      // the job runs to completion, but the query is over either way
+      LOG.warn("Failed to cancel job " + jobId, e);
+    }
+  }
+
+  /**
+   * Takes a permit for starting the job from the submit rate limiter, if any.
+   * @return time in ns to wait before calling submit
+   */
+  long reserveSubmit() {
+    return mSubmitRateLimiter == null ? 0 : mSubmitRateLimiter.reserve();
+  }
+
+  /**
+   * Takes a permit for a status check from the status rate limiter, if any.
+   * @return time in ns to wait before calling poll
+   */
+  long reservePoll() {
+    return mStatusRateLimiter == null ? 0 : mStatusRateLimiter.reserve();
+  }
+
+  /**
+   * Decides whether to start a new job after the job failed to start, or failed transiently.
+   * @param error the failure
+   * @return time in ms to wait before submitting again, or -1 to give up
+   */
+  long getSubmitRetryDelayMillis(Throwable error) {
+    if (mResumeJobId != null) {
+      // failed to check on the resumed job, check on the same job again
+      return getPollRetryDelayMillis(error);
+    }
+    return getRetryDelayMillis(error, mSubmitCount.get());
+  }
+
+  /**
+   * Decides whether to check on the same job again after a status check failed.
+   * @param error the failure
+   * @return time in ms to wait before polling again, or -1 to give up
+   */
+  long getPollRetryDelayMillis(Throwable error) {
+    return getRetryDelayMillis(error, mPollFailures.incrementAndGet());
+  }
+
+  private long getRetryDelayMillis(Throwable error, int attempt) {
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mFirstSubmitNanos);
+    long delay = mRetryPolicy.getRetryDelayMillis(error, attempt, elapsedMs);
+    if (delay >= 0) {
+      mRetryCount.incrementAndGet();
+      Consumer<Throwable> listener = mRetryListener;
+      if (listener != null) {
+        listener.accept(error);
+      }
+    }
+    return delay;
+  }
+
+  /**
+   * @param listener told about each failure which is retried, so overloads are noticed
+   *     before the query gives up
+   */
+  void setRetryListener(Consumer<Throwable> listener) {
+    mRetryListener = listener;
+  }
+
+  /**
+   * Notes the time the query was put in a queue.
+   */
+  void markEnqueued() {
+    mEnqueuedNanos = System.nanoTime();
+  }
+
+  /**
+   * Notes the time a worker took the query off the queue.
+   */
+  void markStarted() {
+    if (mStartedNanos == 0) {
+      mStartedNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * @return the hedger status checks and page fetches go through, or null
+   */
+  BQQHedger getHedger() {
+    return mHedger;
+  }
+
+  /**
+   * @return the client metrics this query reports to, or null
+   */
+  BQQQueryMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  /**
+   * @return time in ms to wait before the next status check
+   */
+  long getPollDelayMillis() {
+    return mPollingStrategy.getDelayMillis(mPollCount.get() + 1);
+  }
+
+  public QueryRequest getQueryRequest() {
+    return mQueryRequest;
+  }
+
+  public BQQPollingStrategy getPollingStrategy() {
+    return mPollingStrategy;
+  }
+
+  public BQQRetryPolicy getRetryPolicy() {
+    return mRetryPolicy;
+  }
+
+  /**
+   * @return time in ms the query may take from when it's queued, or 0 for no limit
+   */
+  public long getDeadlineMillis() {
+    return mDeadlineMs;
+  }
+
+  /**
+   * @return the lane the query waits in until a worker is free
+   */
+  public BQQPriority getPriority() {
+    return mPriority;
+  }
+
+  /**
+   * @return the team or application the query is run for, which shares the client's
+   *     workers fairly with other tenants
+   */
+  public String getTenant() {
+    return mTenant;
+  }
+
+  /**
+   * @return number of status check RPCs made so far for this query
+   */
+  public int getPollCount() {
+    return mPollCount.get();
+  }
+
+  /**
+   * @return the job the result was read from, or null until the query succeeded
+   */
+  public JobId getJobId() {
+    return mJobId;
+  }
+
+  /**
+   * @return number of failed calls which were retried so far for this query
+   */
+  public int getRetryCount() {
+    return mRetryCount.get();
+  }
+
+  /**
+   * @return System.nanoTime() when the query was queued, or 0 if it wasn't
+   */
+  public long getEnqueuedNanos() {
+    return mEnqueuedNanos;
+  }
+
+  /**
+   * @return System.nanoTime() when a worker took the query, or 0 until then
+   */
+  public long getStartedNanos() {
+    return mStartedNanos;
+  }
+
+  /**
+   * @return System.nanoTime() when BigQuery last accepted a job for the query, or 0 until then
+   */
+  public long getJobCreatedNanos() {
+    return mJobCreatedNanos;
+  }
+
+  /**
+   * @return System.nanoTime() when the query's job was last seen complete, or 0 until then
+   */
+  public long getJobCompletedNanos() {
+    return mJobCompletedNanos;
+  }
+
+  /**
+   * @return System.nanoTime() when the query's result was handed over, or 0 until then
+   */
+  public long getResultFetchedNanos() {
+    return mResultFetchedNanos;
+  }
+
+  private static ThreadPoolExecutor newCanceller() {
+    ThreadPoolExecutor canceller = new ThreadPoolExecutor(4, 4, 1, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        r -> new Thread(r, "bqq-cancel-" + CANCELLER_COUNT.incrementAndGet()));
+    canceller.allowCoreThreadTimeOut(true);
+    return canceller;
+  }
 }
@@ -13,6 +13,7 @@
 
 package com.google.bqq;
 
+import com.google.cloud.bigquery.JobId;
 import com.google.cloud.bigquery.QueryRequest;
 
 /**
@@ -22,6 +23,18 @@ public class BQQCallableBuilder {
   private String mProjectId;
   private String mServiceAccountPath = "";
   private QueryRequest mQueryRequest;
+  private BQQPollingStrategy mPollingStrategy;
+  private BQQRetryPolicy mRetryPolicy;
+  private BQQPollCounter mPollCounter;
+  private BQQQueryMetrics mMetrics;
+  private BQQPriority mPriority;
+  private String mTenant;
+  private BQQRateLimiter mSubmitRateLimiter;
+  private BQQRateLimiter mStatusRateLimiter;
+  private BQQHedger mHedger;
+  // -1 until set, so a client can tell "no deadline" from "the client's deadline"
+  private long mDeadlineMs = -1;
+  private JobId mResumeJobId;
     
   public BQQCallableBuilder() {}
 
@@ -40,6 +53,182 @@ public class BQQCallableBuilder {
     mServiceAccountPath = serviceAccountPath;
     return this;
   }
+
+  /**
+   * Overrides how often the query's job is checked on.
+   * @param pollingStrategy the strategy, or null for BQQPollingStrategy.defaultStrategy()
+   * @return this builder
+   */
+  public BQQCallableBuilder setPollingStrategy(BQQPollingStrategy pollingStrategy) {
+    mPollingStrategy = pollingStrategy;
+    return this;
+  }
+
+  /**
+   * Sets a counter the query reports its number of status checks to once its job is done.
+   * @param pollCounter the counter, or null to not report, or to report to the client's when
+   *     queued through a BQQClient
+   * @return this builder
+   */
+  public BQQCallableBuilder setPollCounter(BQQPollCounter pollCounter) {
+    mPollCounter = pollCounter;
+    return this;
+  }
+
+  /**
+   * Sets the client metrics the query reports its RPCs to.
+   * @param metrics the metrics, or null to not report
+   * @return this builder
+   */
+  BQQCallableBuilder setMetrics(BQQQueryMetrics metrics) {
+    mMetrics = metrics;
+    return this;
+  }
+
+  /**
+   * Sets the lane the query waits in until a worker is free.
+   * @param priority the lane, or null for BQQPriority.NORMAL
+   * @return this builder
+   */
+  public BQQCallableBuilder setPriority(BQQPriority priority) {
+    mPriority = priority;
+    return this;
+  }
+
+  /**
+   * Sets who the query is run for. Tenants sharing a client take turns at its workers.
+   * @param tenant the tenant, or null for BQQCallable.DEFAULT_TENANT
+   * @return this builder
+   */
+  public BQQCallableBuilder setTenant(String tenant) {
+    mTenant = tenant;
+    return this;
+  }
+
+  /**
+   * Sets a rate limiter the query takes a permit from before starting its job.
+   * @param submitRateLimiter the limiter, or null to not limit, or to use the client's when
+   *     queued through a BQQClient
+   * @return this builder
+   */
+  public BQQCallableBuilder setSubmitRateLimiter(BQQRateLimiter submitRateLimiter) {
+    mSubmitRateLimiter = submitRateLimiter;
+    return this;
+  }
+
+  /**
+   * Overrides how failed job starts and status checks are retried.
+   * @param retryPolicy the policy, or null for BQQRetryPolicy.defaultPolicy()
+   * @return this builder
+   */
+  public BQQCallableBuilder setRetryPolicy(BQQRetryPolicy retryPolicy) {
+    mRetryPolicy = retryPolicy;
+    return this;
+  }
+
+  /**
+   * Sets a rate limiter the query takes a permit from before each status check.
+   * @param statusRateLimiter the limiter, or null to not limit, or to use the client's when
+   *     queued through a BQQClient
+   * @return this builder
+   */
+  public BQQCallableBuilder setStatusRateLimiter(BQQRateLimiter statusRateLimiter) {
+    mStatusRateLimiter = statusRateLimiter;
+    return this;
+  }
+
+  /**
+   * Sets a hedger the query's status checks go through, so a hung check is raced by a second one.
+   * @param hedger the hedger, or null to not hedge, or to use the client's when queued through
+   *     a BQQClient
+   * @return this builder
+   */
+  public BQQCallableBuilder setHedger(BQQHedger hedger) {
+    mHedger = hedger;
+    return this;
+  }
+
+  /**
+   * Sets a time limit on the query, measured from when it's queued. A query still queued or
+   * running at its deadline fails with a BQQDeadlineExceededException, and its job is
+   * cancelled.
+   * @param deadlineMs time in ms the query may take, or 0 for no limit, even if the client
+   *     it's queued through has a default deadline
+   * @return this builder
+   */
+  public BQQCallableBuilder setDeadline(long deadlineMs) {
+    if (deadlineMs < 0) {
+      throw new IllegalArgumentException("deadlineMs must not be negative");
+    }
+    mDeadlineMs = deadlineMs;
+    return this;
+  }
+
+  String getProjectId() {
+    return mProjectId;
+  }
+
+  String getServiceAccountPath() {
+    return mServiceAccountPath;
+  }
+
+  QueryRequest getQueryRequest() {
+    return mQueryRequest;
+  }
+
+  BQQPollingStrategy getPollingStrategy() {
+    return mPollingStrategy;
+  }
+
+  BQQRetryPolicy getRetryPolicy() {
+    return mRetryPolicy;
+  }
+
+  BQQPollCounter getPollCounter() {
+    return mPollCounter;
+  }
+
+  BQQQueryMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  BQQPriority getPriority() {
+    return mPriority;
+  }
+
+  String getTenant() {
+    return mTenant;
+  }
+
+  BQQRateLimiter getSubmitRateLimiter() {
+    return mSubmitRateLimiter;
+  }
+
+  BQQRateLimiter getStatusRateLimiter() {
+    return mStatusRateLimiter;
+  }
+
+  BQQHedger getHedger() {
+    return mHedger;
+  }
+
+  long getDeadlineMillis() {
+    return mDeadlineMs;
+  }
+
+  /**
+   * Re-attaches the query to a job started before a restart, rather than starting a new one.
+   * @param jobId the job, or null to start a new one
+   * @return this builder
+   */
+  BQQCallableBuilder setResumeJobId(JobId jobId) {
+    mResumeJobId = jobId;
+    return this;
+  }
+
+  JobId getResumeJobId() {
+    return mResumeJobId;
+  }
   
   public BQQCallable build() {
     if (mQueryRequest == null) {
@@ -51,6 +240,6 @@ public class BQQCallableBuilder {
       throw new IllegalArgumentException("Need a project ID Specified if using service account");
     }
     
-    return new BQQCallable(mProjectId, mServiceAccountPath, mQueryRequest);
+    return new BQQCallable(this);
   }
 }
@@ -13,26 +13,92 @@
 
 package com.google.bqq;
 
-import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.QueryRequest;
 import com.google.cloud.bigquery.QueryResult;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A class to schedule BQQCallable tasks across n threads. It handles the
  * entire thread pool life-cycle from startup, scheduling, and shutdown.
  */
 public class BQQClient {  
+  /** Default number of threads in each of the poller's submit and status pools. */
+  public static final int DEFAULT_POLLER_IO_THREADS = 4;
+  /** Default time in ms the BLOCK overflow policy waits for room in the queue. */
+  public static final long DEFAULT_BLOCK_TIMEOUT_MS = 30000L;
+
+  private static final Logger LOG = LoggerFactory.getLogger(BQQClient.class);
+
+  // results are read on a thread each, there are few of them and they take long
+  private static final Executor MATERIALIZER = r -> {
+    Thread t = new Thread(r, "bqq-materialize");
+    t.setDaemon(true);
+    t.start();
+  };
+  // fails queries past their deadline, the timers of queries done in time are dropped
+  private static final ScheduledThreadPoolExecutor DEADLINES = newDeadlineTimer();
+
   private String mProjectId;
   private String mServiceAccountPath;
-  private ThreadPoolExecutor mPool;
+  private int mPollerIoThreads = DEFAULT_POLLER_IO_THREADS;
+  private long mPriorityAgingMs = BQQSchedulingQueue.DEFAULT_AGING_MS;
+  private int mQueueCapacity = Integer.MAX_VALUE;
+  private BQQOverflowPolicy mOverflowPolicy = BQQOverflowPolicy.REJECT;
+  private long mBlockTimeoutMs = DEFAULT_BLOCK_TIMEOUT_MS;
+  private long mDeadlineMs = 0;
+  private final Map<String, Integer> mTenantWeights = new HashMap<>();
+  private final Map<String, Integer> mTenantMaxRunning = new HashMap<>();
+  private BQQExecutionMode mMode = BQQExecutionMode.THREAD_POOL;
+  private BQQPollingStrategy mPollingStrategy = BQQPollingStrategy.defaultStrategy();
+  private BQQRetryPolicy mRetryPolicy = BQQRetryPolicy.defaultPolicy();
+  private final BQQPollCounter mPollCounter = new BQQPollCounter();
+  private final BQQQueryMetrics mMetrics = new BQQQueryMetrics();
+  private BQQResultCache mResultCache;
+  private BQQResultStore mResultStore;
+  private BQQHeapBudget mResultBudget = new BQQHeapBudget(Runtime.getRuntime().maxMemory() / 4);
+  private BQQSingleFlight mSingleFlight;
+  private ExecutorService mPool;
+  private BQQSchedulingQueue mQueue;
+  private BQQPoller mPoller;
+  private BQQConcurrencyLimiter mLimiter;
+  private BQQRateLimiter mSubmitRateLimiter;
+  private BQQRateLimiter mStatusRateLimiter;
+  private BQQHedger mHedger;
+  private BQQJobJournal mJournal;
+  private final Map<BQQJournalEntry, CompletableFuture<QueryResult>> mResumed =
+      new LinkedHashMap<>();
+  // set once shutdown gave up waiting with a journal, so running jobs are left to be resumed
+  private volatile boolean mDetached = false;
+  private final Set<BQQScheduledTask> mActive = ConcurrentHashMap.newKeySet();
+  // queuers hold the read lock from the shutdown check until their query is queued, so
+  // shutdown can't slip in between and leave the query in a queue nobody drains
+  private final ReadWriteLock mShutdownLock = new ReentrantReadWriteLock();
+  private boolean mShutdown = false;
 
   /**
    * Instantiates a Big Query Queue using default credentials
@@ -57,6 +123,359 @@ public class BQQClient {
     mServiceAccountPath = serviceAccountPath;
   }
   
+  /**
+   * Sets the number of threads the POLLER mode uses to start jobs and to check on them.
+   * Must be called before startup.
+   * @param ioThreads number of threads in each of the submit and status pools
+   * @return this client
+   */
+  public BQQClient setPollerIoThreads(int ioThreads) {
+    if (ioThreads < 1) {
+      throw new IllegalArgumentException("ioThreads must be at least 1");
+    }
+    mPollerIoThreads = ioThreads;
+    return this;
+  }
+
+  /**
+   * Sets how long a queued query waits before being promoted to the next higher lane,
+   * so BATCH queries still run while INTERACTIVE ones keep coming in.
+   * Must be called before startup.
+   * @param agingMs time in ms per lane promotion
+   * @return this client
+   */
+  public BQQClient setPriorityAging(long agingMs) {
+    if (agingMs <= 0) {
+      throw new IllegalArgumentException("agingMs must be positive");
+    }
+    mPriorityAgingMs = agingMs;
+    return this;
+  }
+
+  /**
+   * Bounds the number of queued queries which haven't started running yet, so a burst of
+   * queries can't run the JVM out of heap. Unbounded by default.
+   * Must be called before startup.
+   * @param capacity max number of queued queries
+   * @return this client
+   */
+  public BQQClient setQueueCapacity(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+    mQueueCapacity = capacity;
+    return this;
+  }
+
+  /**
+   * Sets what happens to a query queued while the queue is full, REJECT by default.
+   * @param overflowPolicy the policy
+   * @return this client
+   */
+  public BQQClient setOverflowPolicy(BQQOverflowPolicy overflowPolicy) {
+    if (overflowPolicy == null) {
+      throw new IllegalArgumentException("overflowPolicy is null");
+    }
+    mOverflowPolicy = overflowPolicy;
+    return this;
+  }
+
+  /**
+   * Sets how long the BLOCK overflow policy waits for room in the queue.
+   * @param timeoutMs time in ms to wait before failing with BQQQueueFullException
+   * @return this client
+   */
+  public BQQClient setBlockTimeout(long timeoutMs) {
+    if (timeoutMs < 0) {
+      throw new IllegalArgumentException("timeoutMs is negative");
+    }
+    mBlockTimeoutMs = timeoutMs;
+    return this;
+  }
+
+  /**
+   * Gives a tenant a bigger share of the workers while other tenants have queries queued.
+   * Tenants take turns, a tenant with weight w getting w queries started per turn.
+   * Must be called before startup.
+   * @param tenant the tenant
+   * @param weight number of queries started per turn, 1 by default
+   * @return this client
+   */
+  public BQQClient setTenantWeight(String tenant, int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("weight must be at least 1");
+    }
+    mTenantWeights.put(tenant, weight);
+    return this;
+  }
+
+  /**
+   * Caps the number of a tenant's queries running at once, leaving its other queries
+   * queued even when workers are free. Must be called before startup.
+   * @param tenant the tenant
+   * @param maxConcurrentQueries max number of the tenant's queries running at once
+   * @return this client
+   */
+  public BQQClient setTenantConcurrencyLimit(String tenant, int maxConcurrentQueries) {
+    if (maxConcurrentQueries < 1) {
+      throw new IllegalArgumentException("maxConcurrentQueries must be at least 1");
+    }
+    mTenantMaxRunning.put(tenant, maxConcurrentQueries);
+    return this;
+  }
+
+  /**
+   * Adapts the number of queries running at once to how BigQuery copes, backing off on
+   * quota and overload errors. startup's maxConcurrentQueries stays the upper bound.
+   * Must be called before startup.
+   * @param limiter the limiter, or null to always run maxConcurrentQueries queries at once
+   * @return this client
+   */
+  public BQQClient setConcurrencyLimiter(BQQConcurrencyLimiter limiter) {
+    mLimiter = limiter;
+    return this;
+  }
+
+  /**
+   * @return the adaptive limiter, whose current limit and history can be looked at,
+   *     or null if not set
+   */
+  public BQQConcurrencyLimiter getConcurrencyLimiter() {
+    return mLimiter;
+  }
+
+  /**
+   * Limits the rate at which jobs are started across all of the client's queries,
+   * to stay within BigQuery's API requests per second limits.
+   * @param submitRateLimiter the limiter, or null to not limit
+   * @return this client
+   */
+  public BQQClient setSubmitRateLimiter(BQQRateLimiter submitRateLimiter) {
+    mSubmitRateLimiter = submitRateLimiter;
+    return this;
+  }
+
+  /**
+   * @return the limiter on starting jobs, with its wait metrics, or null if not set
+   */
+  public BQQRateLimiter getSubmitRateLimiter() {
+    return mSubmitRateLimiter;
+  }
+
+  /**
+   * Limits the rate of getQueryResults status checks across all of the client's queries,
+   * separately from starting jobs.
+   * @param statusRateLimiter the limiter, or null to not limit
+   * @return this client
+   */
+  public BQQClient setStatusRateLimiter(BQQRateLimiter statusRateLimiter) {
+    mStatusRateLimiter = statusRateLimiter;
+    return this;
+  }
+
+  /**
+   * @return the limiter on status checks, with its wait metrics, or null if not set
+   */
+  public BQQRateLimiter getStatusRateLimiter() {
+    return mStatusRateLimiter;
+  }
+
+  /**
+   * Hedges status checks and the page fetches of streamed, parallel and materialized results,
+   * so a single hung call doesn't hold up a query whose job is long done.
+   * @param hedger the hedger, or null to not hedge
+   * @return this client
+   */
+  public BQQClient setHedger(BQQHedger hedger) {
+    mHedger = hedger;
+    return this;
+  }
+
+  /**
+   * @return the hedger, with its hedge counts, or null if not set
+   */
+  public BQQHedger getHedger() {
+    return mHedger;
+  }
+
+  /**
+   * Sets the time queries get from being queued to being done, unless a query overrides it
+   * through BQQCallableBuilder.setDeadline, setDeadline(0) opting it out of any deadline.
+   * A query past its deadline fails with BQQDeadlineExceededException, and is removed from
+   * the queue or has its job cancelled.
+   * @param deadlineMs time in ms, 0 for no deadline
+   * @return this client
+   */
+  public BQQClient setDeadline(long deadlineMs) {
+    if (deadlineMs < 0) {
+      throw new IllegalArgumentException("deadlineMs is negative");
+    }
+    mDeadlineMs = deadlineMs;
+    return this;
+  }
+
+  /**
+   * @return the default deadline in ms of queries, 0 for none
+   */
+  public long getDeadline() {
+    return mDeadlineMs;
+  }
+
+  /**
+   * Records every queued query and its BigQuery job in a journal on disk, so a client
+   * restarted with the same journal resumes the queries that weren't done. Jobs of queries
+   * still running when shutdown gives up waiting are left running rather than cancelled.
+   * Must be called before startup, and the client closes the journal on shutdown.
+   * @param journal the journal, or null to not journal queries
+   * @return this client
+   */
+  public BQQClient setJournal(BQQJobJournal journal) {
+    mJournal = journal;
+    return this;
+  }
+
+  /**
+   * @return the journal, or null if not set
+   */
+  public BQQJobJournal getJournal() {
+    return mJournal;
+  }
+
+  /**
+   * @return futures of the queries resumed from the journal at startup, by journal entry.
+   *     Queries whose job was started are re-attached to it, the others are run again.
+   */
+  public Map<BQQJournalEntry, CompletableFuture<QueryResult>> getResumedQueries() {
+    synchronized (mResumed) {
+      return Collections.unmodifiableMap(new LinkedHashMap<>(mResumed));
+    }
+  }
+
+  /**
+   * Sets how often running jobs are checked on, unless a query overrides it
+   * through BQQCallableBuilder.setPollingStrategy.
+   * @param pollingStrategy the default polling strategy
+   * @return this client
+   */
+  public BQQClient setPollingStrategy(BQQPollingStrategy pollingStrategy) {
+    if (pollingStrategy == null) {
+      throw new IllegalArgumentException("pollingStrategy is null");
+    }
+    mPollingStrategy = pollingStrategy;
+    return this;
+  }
+
+  /**
+   * Sets how transient failures are retried, unless a query overrides it
+   * through BQQCallableBuilder.setRetryPolicy. BQQRetryPolicy.defaultPolicy() by default.
+   * The BigQuery clients BQQ builds don't retry on their own, so this is the only retry layer:
+   * with BQQRetryPolicy.none() a failed call fails the query.
+   * @param retryPolicy the default retry policy, BQQRetryPolicy.none() to never retry
+   * @return this client
+   */
+  public BQQClient setRetryPolicy(BQQRetryPolicy retryPolicy) {
+    if (retryPolicy == null) {
+      throw new IllegalArgumentException("retryPolicy is null");
+    }
+    mRetryPolicy = retryPolicy;
+    return this;
+  }
+
+  /**
+   * Sets the heap budget shared by results from queueQueryMaterialized, past which their
+   * rows are spilled to memory-mapped temp files. A quarter of the max heap by default.
+   * @param resultBudget the budget
+   * @return this client
+   */
+  public BQQClient setResultHeapBudget(BQQHeapBudget resultBudget) {
+    if (resultBudget == null) {
+      throw new IllegalArgumentException("resultBudget is null");
+    }
+    mResultBudget = resultBudget;
+    return this;
+  }
+
+  /**
+   * @return the heap budget of materialized results, with its spill metrics
+   */
+  public BQQHeapBudget getResultHeapBudget() {
+    return mResultBudget;
+  }
+
+  /**
+   * Serves results of queueQueryMaterialized from a store on disk which survives restarts,
+   * storing the results of queries which weren't in it. Requests built with
+   * setUseQueryCache(false) or setDryRun(true) skip the store.
+   * @param resultStore the store, or null to not store results
+   * @return this client
+   */
+  public BQQClient setResultStore(BQQResultStore resultStore) {
+    mResultStore = resultStore;
+    return this;
+  }
+
+  /**
+   * @return the result store, with its hit and eviction counts, or null if not set
+   */
+  public BQQResultStore getResultStore() {
+    return mResultStore;
+  }
+
+  /**
+   * Serves repeated queries from an in-memory result cache instead of running them again.
+   * Queries built with setUseQueryCache(false) or setDryRun(true) skip the cache.
+   * @param resultCache the cache, or null to not cache results
+   * @return this client
+   */
+  public BQQClient setResultCache(BQQResultCache resultCache) {
+    mResultCache = resultCache;
+    return this;
+  }
+
+  /**
+   * @return the result cache, or null if results are not cached
+   */
+  public BQQResultCache getResultCache() {
+    return mResultCache;
+  }
+
+  /**
+   * Coalesces identical queries which are queued or running into a single BigQuery job,
+   * fanning its result out to every caller. Only queries with the same priority and tenant
+   * are coalesced. Cancelling one caller's future, or its deadline passing, does not cancel
+   * the shared job while other callers still wait on it.
+   * Queries built with setUseQueryCache(false) or setDryRun(true) always get their own job.
+   * @param deduplicate true to coalesce identical queries
+   * @return this client
+   */
+  public BQQClient setDeduplicateQueries(boolean deduplicate) {
+    mSingleFlight = deduplicate ? new BQQSingleFlight() : null;
+    return this;
+  }
+
+  /**
+   * @return number of queries which joined an identical in-flight query instead of
+   *     starting their own job
+   */
+  public long getCoalescedQueryCount() {
+    return mSingleFlight == null ? 0 : mSingleFlight.getCoalescedCount();
+  }
+
+  /**
+   * @return tally of the status check RPCs made per query by this client
+   */
+  public BQQPollCounter getPollCounter() {
+    return mPollCounter;
+  }
+
+  /**
+   * @return counters and latency histograms of every phase of the queries run so far,
+   *     from waiting in the queue to handing over the result
+   */
+  public BQQStats getStats() {
+    return mMetrics.snapshot();
+  }
+
   /**
    * Starts up a thread pool to handle BQ SQL requests.
    * @param numThreads number of worker threads / max concurrent queries to handle requests 
@@ -64,19 +483,110 @@ public class BQQClient {
    * @throws FileNotFoundException thrown if no service account found in path specified 
    */
   public void startup(int numThreads) throws FileNotFoundException, IOException {   
-    // Sanity check that our credentials are valid by creating a BQ client connection
-    BQQServiceFactory.buildClient(mProjectId, mServiceAccountPath);
- 
-    // FIFO Queue
-    BlockingQueue<Runnable> blockingQueue = new LinkedBlockingQueue<Runnable>();
-    
-    // ThreadPool of numThread workers which kills all threads that have done no work in 1000ms
-    mPool = new ThreadPoolExecutor(numThreads, numThreads,
-        1000, TimeUnit.MILLISECONDS, blockingQueue);
+    startup(numThreads, BQQExecutionMode.THREAD_POOL);
+  }
+
+  /**
+   * Starts up the workers that handle BQ SQL requests.
+   * @param maxConcurrentQueries max number of queries running at once
+   * @param mode how queries get run, see BQQExecutionMode
+   * @throws IOException thrown if failed to read service account
+   * @throws FileNotFoundException thrown if no service account found in path specified 
+   * @throws UnsupportedOperationException if VIRTUAL_THREADS is used on a JVM older than 21
+   */
+  public void startup(int maxConcurrentQueries, BQQExecutionMode mode)
+      throws FileNotFoundException, IOException {
+    // Sanity check that our credentials are valid by creating a BQ client connection,
+    // which is then cached and shared by all the workers.
+    BQQServiceFactory.getClient(mProjectId, mServiceAccountPath);
+    mMode = mode;
+
+    // FIFO Queue per priority lane and tenant
+    mQueue = new BQQSchedulingQueue(mQueueCapacity, mPriorityAgingMs);
+    mQueue.setLimiter(mLimiter);
+    for (Map.Entry<String, Integer> weight : mTenantWeights.entrySet()) {
+      mQueue.setTenantWeight(weight.getKey(), weight.getValue());
+    }
+    for (Map.Entry<String, Integer> limit : mTenantMaxRunning.entrySet()) {
+      mQueue.setTenantMaxRunning(limit.getKey(), limit.getValue());
+    }
+
+    if (mode == BQQExecutionMode.POLLER) {
+      mPoller = new BQQPoller(maxConcurrentQueries, mPollerIoThreads, mQueue);
+    } else if (mode == BQQExecutionMode.VIRTUAL_THREADS) {
+      mPool = new BQQVirtualThreadExecutor(maxConcurrentQueries, mQueue);
+    } else {
+      int numThreads = maxConcurrentQueries;
+
+      // ThreadPool of numThread workers which kills all threads that have done no work in
+      // 1000ms. Queries are put straight into mQueue, so every worker is started up front.
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads,
+          1000, TimeUnit.MILLISECONDS, mQueue);
+      pool.prestartAllCoreThreads();
+      mPool = pool;
+    }
+    resume();
+  }
+
+  /**
+   * Queues the queries the journal holds which weren't done when the last client stopped,
+   * re-attaching those which started a job to it. Those the overflow policy turns away are
+   * failed with a BQQQueueFullException rather than failing startup.
+   */
+  private void resume() {
+    if (mJournal == null) {
+      return;
+    }
+    for (BQQJournalEntry entry : mJournal.getPending()) {
+      BQQCallable c = build(new BQQCallableBuilder()
+          .setQueryRequest(entry.getQueryRequest())
+          .setPriority(entry.getPriority())
+          .setTenant(entry.getTenant())
+          .setResumeJobId(entry.getJobId()));
+      c.setJournal(mJournal, entry.getId());
+      CompletableFuture<QueryResult> future;
+      try {
+        future = execute(c, false);
+      } catch (BQQQueueFullException e) {
+        // more pending than the queue holds, the overflow policy gave up on it and it's done
+        future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+      }
+      synchronized (mResumed) {
+        mResumed.put(entry, future);
+      }
+    }
   }
   
+  /**
+   * @return number of queued up queries that have not started running yet
+   */
   public Integer getNumJobs() {
-    return mPool.getQueue().size();
+    return mQueue.size();
+  }
+
+  /**
+   * @param priority a lane
+   * @return number of queued up queries in the lane that have not started running yet
+   */
+  public Integer getNumJobs(BQQPriority priority) {
+    return mQueue.size(priority);
+  }
+
+  /**
+   * @param tenant a tenant
+   * @return number of the tenant's queued up queries that have not started running yet
+   */
+  public Integer getNumJobs(String tenant) {
+    return mQueue.size(tenant);
+  }
+
+  /**
+   * @return queue depth, running count and queue wait times of every tenant which queued
+   *     a query, by tenant
+   */
+  public Map<String, BQQTenantStats> getTenantStats() {
+    return mQueue.getTenantStats();
   }
   
   /**
@@ -85,12 +595,37 @@ public class BQQClient {
    * @return a future with query results
    */
   public Future<QueryResult> queueQuery(QueryRequest queryRequest) {
-    BQQCallable c = new BQQCallableBuilder()
-        .setProjectId(mProjectId)
-        .setServiceAccountPath(mServiceAccountPath)
-        .setQueryRequest(queryRequest)
-        .build();
-    return mPool.submit(c);
+    return queueQueryAsync(queryRequest);
+  }
+
+  /**
+   * Queues up a QueryRequest in a priority lane.
+   * @param queryRequest a QueryRequest to be queued up
+   * @param priority the lane the query waits in until a worker is free
+   * @return a future with query results
+   */
+  public Future<QueryResult> queueQuery(QueryRequest queryRequest, BQQPriority priority) {
+    return queueQueryAsync(queryRequest, priority);
+  }
+
+  /**
+   * Queues up a QueryRequest for a tenant, which shares the workers fairly with other tenants.
+   * @param queryRequest a QueryRequest to be queued up
+   * @param tenant who the query is run for
+   * @return a future with query results
+   */
+  public Future<QueryResult> queueQuery(QueryRequest queryRequest, String tenant) {
+    return queueQueryAsync(queryRequest, tenant);
+  }
+
+  /**
+   * Queues up a query with per query options, such-as a polling strategy, to be executed
+   * on one of the thread pool threads. The client's credentials are filled in for you.
+   * @param builder a builder with at least the QueryRequest set
+   * @return a future with query results
+   */
+  public Future<QueryResult> queueQuery(BQQCallableBuilder builder) {
+    return queueQueryAsync(builder);
   }
   
   /**
@@ -100,13 +635,465 @@ public class BQQClient {
    * @return a future with the query results
    */
   public Future<QueryResult> queueQuery(String query, boolean useLegacySql) {
+    return queueQueryAsync(query, useLegacySql);
+  }
+
+  /**
+   * Queues up a QueryRequest, returning a CompletableFuture which is completed by the worker
+   * as soon as the query is done. Failures complete it exceptionally with a BQQException.
+   * Cancelling it removes a queued query from the queue, or cancels the job of a running one.
+   * @param queryRequest a QueryRequest to be queued up
+   * @return a future with query results
+   */
+  public CompletableFuture<QueryResult> queueQueryAsync(QueryRequest queryRequest) {
+    return queueQueryAsync(new BQQCallableBuilder().setQueryRequest(queryRequest));
+  }
+
+  /**
+   * Queues up a QueryRequest in a priority lane, returning a CompletableFuture which is
+   * completed by the worker as soon as the query is done.
+   * @param queryRequest a QueryRequest to be queued up
+   * @param priority the lane the query waits in until a worker is free
+   * @return a future with query results
+   */
+  public CompletableFuture<QueryResult> queueQueryAsync(QueryRequest queryRequest,
+      BQQPriority priority) {
+    return queueQueryAsync(new BQQCallableBuilder()
+        .setQueryRequest(queryRequest)
+        .setPriority(priority));
+  }
+
+  /**
+   * Queues up a QueryRequest for a tenant, returning a CompletableFuture which is
+   * completed by the worker as soon as the query is done.
+   * @param queryRequest a QueryRequest to be queued up
+   * @param tenant who the query is run for
+   * @return a future with query results
+   */
+  public CompletableFuture<QueryResult> queueQueryAsync(QueryRequest queryRequest,
+      String tenant) {
+    return queueQueryAsync(new BQQCallableBuilder()
+        .setQueryRequest(queryRequest)
+        .setTenant(tenant));
+  }
+
+  /**
+   * Queues up a query with per query options, returning a CompletableFuture which is
+   * completed by the worker as soon as the query is done.
+   * @param builder a builder with at least the QueryRequest set
+   * @return a future with query results
+   * @throws BQQQueueFullException if the queue is full and the overflow policy gave up
+   */
+  public CompletableFuture<QueryResult> queueQueryAsync(BQQCallableBuilder builder) {
+    return queue(builder, false);
+  }
+
+  /**
+   * Queues up a QueryRequest only if there's room in the queue, never blocking whatever the
+   * overflow policy, so producers can back off while the client is saturated.
+   * @param queryRequest a QueryRequest to be queued up
+   * @return a future with query results, or null if the queue is full
+   */
+  public CompletableFuture<QueryResult> tryQueueQuery(QueryRequest queryRequest) {
+    return tryQueueQuery(new BQQCallableBuilder().setQueryRequest(queryRequest));
+  }
+
+  /**
+   * Queues up a query with per query options only if there's room in the queue, never
+   * blocking whatever the overflow policy.
+   * @param builder a builder with at least the QueryRequest set
+   * @return a future with query results, or null if the queue is full
+   */
+  public CompletableFuture<QueryResult> tryQueueQuery(BQQCallableBuilder builder) {
+    try {
+      return queue(builder, true);
+    } catch (BQQQueueFullException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Queues up a query, serving it from the result cache or an identical in-flight query
+   * when possible.
+   * @param builder a builder with at least the QueryRequest set
+   * @param tryOnly true to fail instead of applying the overflow policy if the queue is full
+   * @return a future with query results
+   */
+  private CompletableFuture<QueryResult> queue(BQQCallableBuilder builder, boolean tryOnly) {
+    BQQCallable c = build(builder);
+
+    // Only queries happy with a cached result may share results with other queries
+    QueryRequest queryRequest = c.getQueryRequest();
+    boolean shareable = (mResultCache != null || mSingleFlight != null)
+        && !Boolean.FALSE.equals(queryRequest.useQueryCache())
+        && !Boolean.TRUE.equals(queryRequest.dryRun());
+    if (!shareable) {
+      return execute(c, tryOnly);
+    }
+
+    BQQQueryKey key = BQQQueryKey.of(queryRequest);
+    if (mResultCache != null) {
+      QueryResult cached = mResultCache.get(key);
+      if (cached != null) {
+        return CompletableFuture.completedFuture(cached);
+      }
+    }
+
+    // A shared job has no deadline of its own, each caller's deadline only times out its own
+    // view of the job, so one caller running out of time doesn't fail the others
+    long deadlineMs = mSingleFlight == null ? 0 : c.getDeadlineMillis();
+    BQQCallable shared = deadlineMs > 0 ? build(builder.setDeadline(0)) : c;
+    if (deadlineMs > 0) {
+      builder.setDeadline(deadlineMs);
+    }
+
+    Supplier<CompletableFuture<QueryResult>> run = () -> {
+      CompletableFuture<QueryResult> job = execute(shared, tryOnly);
+      if (mResultCache == null) {
+        return job;
+      }
+
+      // Cache the result before any caller sees it, so a caller queuing the query again
+      // straight away gets a hit. Cancelling the returned future still cancels the job.
+      CompletableFuture<QueryResult> future = new CompletableFuture<>();
+      job.whenComplete((result, error) -> {
+        if (error != null) {
+          future.completeExceptionally(error);
+          return;
+        }
+        mResultCache.put(key, result);
+        future.complete(result);
+      });
+      future.whenComplete((result, error) -> {
+        if (future.isCancelled()) {
+          job.cancel(true);
+        }
+      });
+      return future;
+    };
+    if (mSingleFlight != null) {
+      // only callers queuing with the same priority and tenant share a job
+      BQQQueryKey flightKey = key.with("priority", c.getPriority().name())
+          .with("tenant", c.getTenant());
+      return withDeadline(mSingleFlight.execute(flightKey, run), deadlineMs);
+    }
+    return run.get();
+  }
+
+  /**
+   * Builds a query with the client's settings filled in.
+   * @param builder a builder with at least the QueryRequest set
+   * @return the query to run
+   */
+  private BQQCallable build(BQQCallableBuilder builder) {
+    if (builder.getPollingStrategy() == null) {
+      builder.setPollingStrategy(mPollingStrategy);
+    }
+    if (builder.getRetryPolicy() == null) {
+      builder.setRetryPolicy(mRetryPolicy);
+    }
+    if (builder.getDeadlineMillis() < 0) {
+      builder.setDeadline(mDeadlineMs);
+    }
+    if (builder.getPollCounter() == null) {
+      builder.setPollCounter(mPollCounter);
+    }
+    if (builder.getSubmitRateLimiter() == null) {
+      builder.setSubmitRateLimiter(mSubmitRateLimiter);
+    }
+    if (builder.getStatusRateLimiter() == null) {
+      builder.setStatusRateLimiter(mStatusRateLimiter);
+    }
+    if (builder.getHedger() == null) {
+      builder.setHedger(mHedger);
+    }
+    return builder
+        .setProjectId(mProjectId)
+        .setServiceAccountPath(mServiceAccountPath)
+        .setMetrics(mMetrics)
+        .build();
+  }
+
+  /**
+   * Queues a query for the workers of the current execution mode, applying the overflow
+   * policy if the queue is full. Shutdown waits for a query being queued, for as long as
+   * the BLOCK policy waits for room at most.
+   * @param c the query to run
+   * @param tryOnly true to fail instead of applying the overflow policy
+   * @return a future with query results
+   * @throws BQQQueueFullException if the query could not be queued
+   */
+  private CompletableFuture<QueryResult> execute(BQQCallable c, boolean tryOnly) {
+    BQQQueryTask local;
+    mShutdownLock.readLock().lock();
+    try {
+      if (mShutdown) {
+        throw new RejectedExecutionException("BQQClient is shut down");
+      }
+      BQQScheduledTask task = mMode == BQQExecutionMode.POLLER
+          ? mPoller.newTask(c) : new BQQQueryTask(c);
+      if (mJournal != null && c.getJournalId() == 0) {
+        try {
+          c.setJournal(mJournal, mJournal.queued(c.getQueryRequest(), c.getPriority(),
+              c.getTenant()));
+        } catch (IOException e) {
+          // the query still runs, it just won't be resumed after a restart
+          LOG.warn("Failed to journal query", e);
+        }
+      }
+      c.markEnqueued();
+      watch(task);
+      if (mQueue.offer(task)) {
+        return track(task);
+      }
+      if (tryOnly) {
+        throw rejected(c, "Queue is full");
+      }
+
+      switch (mOverflowPolicy) {
+        case BLOCK:
+          try {
+            if (mQueue.offer(task, mBlockTimeoutMs, TimeUnit.MILLISECONDS)) {
+              return track(task);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          throw rejected(c, "Queue still full after " + mBlockTimeoutMs + "ms");
+        case DROP_OLDEST:
+          Runnable dropped = mQueue.offerDroppingOldest(task);
+          if (dropped instanceof BQQScheduledTask) {
+            ((BQQScheduledTask) dropped).getFuture().completeExceptionally(
+                new BQQQueueFullException("Dropped from a full queue"));
+          }
+          return track(task);
+        case CALLER_RUNS:
+          // runs outside the workers, and without a POLLER permit, so it isn't held to
+          // maxConcurrentQueries, but it can still be cancelled and runs out of time alike
+          local = new BQQQueryTask(c);
+          watch(local);
+          break;
+        default:
+          throw rejected(c, "Queue is full");
+      }
+    } finally {
+      mShutdownLock.readLock().unlock();
+    }
+    // run after letting go of the lock, shutdown doesn't wait for a query it never queued
+    CompletableFuture<QueryResult> future = track(local);
+    local.run();
+    return future;
+  }
+
+  /**
+   * Records a query's outcome once its future completes, and stops it if it was cancelled or
+   * ran past its deadline.
+   * @param task the query
+   */
+  private void watch(BQQScheduledTask task) {
+    BQQCallable c = task.getCallable();
+    task.getFuture().whenComplete((result, error) -> {
+      mActive.remove(task);
+      onDone(c, error);
+      if (error instanceof CancellationException
+          || error instanceof BQQDeadlineExceededException) {
+        stop(task);
+      }
+    });
+  }
+
+  /**
+   * Keeps track of a queued query until it's done, so it can be cancelled, and starts the
+   * clock on its deadline.
+   * @param task the queued query
+   * @return the query's future
+   */
+  private CompletableFuture<QueryResult> track(BQQScheduledTask task) {
+    CompletableFuture<QueryResult> future = task.getFuture();
+    mActive.add(task);
+    if (future.isDone()) {
+      // done before it was tracked, e.g. cancelled by a worker during shutdown
+      mActive.remove(task);
+      return future;
+    }
+
+    return withDeadline(future, task.getCallable().getDeadlineMillis());
+  }
+
+  /**
+   * Fails a future with BQQDeadlineExceededException if it isn't done in time.
+   * @param future the future
+   * @param deadlineMs time in ms it may take, or 0 for no limit
+   * @return the future
+   */
+  private static CompletableFuture<QueryResult> withDeadline(
+      CompletableFuture<QueryResult> future, long deadlineMs) {
+    if (deadlineMs > 0) {
+      ScheduledFuture<?> timer = DEADLINES.schedule(() -> future.completeExceptionally(
+          new BQQDeadlineExceededException("Query took longer than " + deadlineMs + "ms")),
+          deadlineMs, TimeUnit.MILLISECONDS);
+      future.whenComplete((result, error) -> timer.cancel(false));
+    }
+    return future;
+  }
+
+  /**
+   * Stops a query which was cancelled or ran past its deadline: a queued query is removed from
+   * the queue without ever running, and a running query's job is cancelled.
+   * @param task the query to stop
+   */
+  private void stop(BQQScheduledTask task) {
+    if (mDetached) {
+      // shutting down, the journal resumes it
+      return;
+    }
+    if (mQueue != null && mQueue.remove(task)) {
+      mMetrics.onRemovedFromQueue();
+      return;
+    }
+    task.getCallable().cancel();
+  }
+
+  /**
+   * Cancels every query which is queued or running, removing queued ones from the queue and
+   * cancelling the BigQuery jobs of running ones. The client keeps accepting queries.
+   * @return number of queries cancelled
+   */
+  public int cancelAll() {
+    int cancelled = 0;
+    for (BQQScheduledTask task : mActive) {
+      if (task.getFuture().cancel(true)) {
+        ++cancelled;
+      }
+    }
+    return cancelled;
+  }
+
+  /**
+   * Counts a query turned away by a full queue as failed.
+   */
+  private BQQQueueFullException rejected(BQQCallable c, String message) {
+    BQQQueueFullException e = new BQQQueueFullException(message);
+    onDone(c, e);
+    return e;
+  }
+
+  /**
+   * Records a query's outcome in the metrics, and as done in the journal.
+   */
+  private void onDone(BQQCallable c, Throwable error) {
+    mMetrics.onDone(c, error);
+    if (c.getJournalId() != 0 && !mDetached) {
+      try {
+        mJournal.done(c.getJournalId());
+      } catch (IOException e) {
+        // it'll be resumed, and re-attached to its finished job, after a restart
+        LOG.warn("Failed to journal query " + c.getJournalId() + " as done", e);
+      }
+    }
+  }
+
+  /**
+   * Queues up a query, returning a CompletableFuture which is completed by the worker
+   * as soon as the query is done.
+   * @param query SQL statement to execute
+   * @param useLegacySql if the query is using Legacy SQL or not
+   * @return a future with the query results
+   */
+  public CompletableFuture<QueryResult> queueQueryAsync(String query, boolean useLegacySql) {
     QueryRequest queryRequest = QueryRequest.newBuilder(query)
         .setUseLegacySql(useLegacySql)
         .build();
 
-    return queueQuery(queryRequest);
+    return queueQueryAsync(queryRequest);
   }
   
+  /**
+   * Queues up a QueryRequest whose rows are streamed, fetching the pages after the first
+   * in the background while the consumer reads rows.
+   * @param queryRequest a QueryRequest to be queued up
+   * @return a future with a stream over all the result's rows, to be closed after use
+   */
+  public CompletableFuture<BQQRowStream> queueQueryStream(QueryRequest queryRequest) {
+    return queueQueryStream(queryRequest, BQQRowStream.DEFAULT_PREFETCH_PAGES);
+  }
+
+  /**
+   * Queues up a QueryRequest whose rows are streamed, fetching up to prefetchPages pages
+   * ahead of the consumer in the background.
+   * @param queryRequest a QueryRequest to be queued up
+   * @param prefetchPages max number of pages buffered ahead, which bounds the memory used
+   * @return a future with a stream over all the result's rows, to be closed after use
+   */
+  public CompletableFuture<BQQRowStream> queueQueryStream(QueryRequest queryRequest,
+      int prefetchPages) {
+    if (prefetchPages < 1) {
+      throw new IllegalArgumentException("prefetchPages must be at least 1");
+    }
+    BQQHedger hedger = mHedger;
+    return queueQueryAsync(queryRequest).thenApply(result -> new BQQRowStream(result,
+        result.getSchema(), result.getTotalRows(), prefetchPages, hedger));
+  }
+
+  /**
+   * Queues up a QueryRequest whose rows are to be read in parallel, for results too big to
+   * page through on one thread. The query always runs its own job, so it's neither served
+   * from the result cache nor shared with identical queries.
+   * @param queryRequest a QueryRequest to be queued up
+   * @return a future with a reader over the job's rows
+   */
+  public CompletableFuture<BQQParallelReader> queueQueryParallel(QueryRequest queryRequest) {
+    BQQCallable c = build(new BQQCallableBuilder().setQueryRequest(queryRequest));
+    return execute(c, false).thenApply(result -> {
+      try {
+        return new BQQParallelReader(c.getBigQuery(), c.getJobId(), result.getSchema(),
+            result.getTotalRows(), c.getHedger());
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    });
+  }
+
+  /**
+   * Queues up a QueryRequest and reads all its rows once it's done, keeping them on heap
+   * within the client's result heap budget and spilling the rest to disk. Rows are read
+   * on a thread of their own, so workers are free to run the next queries. If a result store
+   * is set, a stored result is returned without running the query.
+   * @param queryRequest a QueryRequest to be queued up
+   * @return a future with all the rows, to be closed once no longer needed
+   */
+  public CompletableFuture<BQQMaterializedResult> queueQueryMaterialized(
+      QueryRequest queryRequest) {
+    BQQHeapBudget budget = mResultBudget;
+    BQQHedger hedger = mHedger;
+    BQQResultStore store = !Boolean.FALSE.equals(queryRequest.useQueryCache())
+        && !Boolean.TRUE.equals(queryRequest.dryRun()) ? mResultStore : null;
+    BQQQueryKey key = store == null ? null : BQQQueryKey.of(queryRequest);
+    if (store != null) {
+      BQQMaterializedResult stored = store.get(key);
+      if (stored != null) {
+        return CompletableFuture.completedFuture(stored);
+      }
+    }
+
+    return queueQueryAsync(queryRequest).thenApplyAsync(result -> {
+      try {
+        BQQMaterializedResult rows = budget.materialize(result, hedger);
+        if (store != null) {
+          try {
+            store.put(key, rows);
+          } catch (IOException e) {
+            // the query still succeeded, it'll just run again next time
+            LOG.warn("Failed to store result for " + key, e);
+          }
+        }
+        return rows;
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    }, MATERIALIZER);
+  }
+
   /**
    * Resolves a Future<QueryResult> from queueQuery
    * @param queryResultFuture a QueryResult future
@@ -123,12 +1110,9 @@ public class BQQClient {
       result = queryResultFuture.get();
 
     } catch (ExecutionException e) { 
-      Throwable t = e.getCause();
+      Throwable t = BQQException.unwrap(e);
       if (t instanceof BQQException) {
         throw ((BQQException) t);
-        
-      } else if (t instanceof BigQueryException) {
-        throw new BQQException((BigQueryException) t);
       } else {
         throw e;
       }
@@ -150,26 +1134,89 @@ public class BQQClient {
    * @throws Exception error that occurs when tearing down thread pool.
    */
   public void shutdown(int terminationTimeout) throws Exception {
-    // gracefully shutdown thread pool
-    mPool.shutdown();
-    
+    mShutdownLock.writeLock().lock();
     try {
-      // Check if thread pool terminated.
-      // If after 'timeout' then force a shutdown.
-      if (!mPool.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS)) {
-        mPool.shutdownNow();
-        
-        // Check if forced shutdown was successful.
+      mShutdown = true;
+    } finally {
+      mShutdownLock.writeLock().unlock();
+    }
+    try {
+      if (mMode == BQQExecutionMode.POLLER) {
+        mPoller.shutdown(terminationTimeout, this::detach);
+        return;
+      }
+
+      // gracefully shutdown thread pool
+      mPool.shutdown();
+
+      try {
+        // Check if thread pool terminated.
+        // If after 'timeout' then force a shutdown.
         if (!mPool.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS)) {
-          throw new Exception("BQQClient.mPool will not terminate");
+          // cancel the jobs of running queries too, unless the journal resumes them
+          detach();
+          cancelAll();
+          cancelNeverRun(mPool.shutdownNow());
+
+          // Check if forced shutdown was successful.
+          if (!mPool.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS)) {
+            throw new Exception("BQQClient.mPool will not terminate");
+          }
         }
+      } catch (InterruptedException e) {
+        detach();
+        cancelAll();
+        cancelNeverRun(mPool.shutdownNow());
+
+        // Preserve interrupt status
+        Thread.currentThread().interrupt();
       }
-    } catch (InterruptedException e) {
-      mPool.shutdownNow();
-      
-      // Preserve interrupt status
-      Thread.currentThread().interrupt();
+    } finally {
+      closeJournal();
     }
   }
 
+  /**
+   * Leaves the queries shutdown gave up on to the journal: their jobs keep running and
+   * they stay pending, to be resumed by the next client. Does nothing without a journal.
+   */
+  private void detach() {
+    if (mJournal != null) {
+      mDetached = true;
+    }
+  }
+
+  private void closeJournal() {
+    if (mJournal == null) {
+      return;
+    }
+    try {
+      mJournal.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close journal", e);
+    }
+  }
+
+  /**
+   * Cancels queries which were still queued when the pool was shut down,
+   * so nobody waits forever on their futures.
+   * @param neverRun tasks drained from the pool's queue
+   */
+  private static void cancelNeverRun(List<Runnable> neverRun) {
+    for (Runnable r : neverRun) {
+      if (r instanceof Future) {
+        ((Future<?>) r).cancel(false);
+      }
+    }
+  }
+
+  private static ScheduledThreadPoolExecutor newDeadlineTimer() {
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "bqq-deadline");
+      t.setDaemon(true);
+      return t;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+    return timer;
+  }
 }
@@ -0,0 +1,187 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.auth.Credentials;
+import com.google.auth.oauth2.OAuth2Credentials;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.bigquery.BigQuery;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread safe registry of BigQuery clients keyed by (projectId, serviceAccountPath).
+ * Each client is built once and shared by every worker. OAuth2 tokens of registered
+ * clients are refreshed on a background daemon thread so queries never block on a refresh.
+ */
+public final class BQQClientRegistry {
+  /** How often cached credentials get their access token refreshed. Tokens live for 1h. */
+  public static final long TOKEN_REFRESH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(45);
+
+  private static final Logger LOG = LoggerFactory.getLogger(BQQClientRegistry.class);
+  private static final BQQClientRegistry INSTANCE = new BQQClientRegistry();
+
+  private final ConcurrentMap<Key, BigQuery> mClients = new ConcurrentHashMap<>();
+  private final AtomicLong mHits = new AtomicLong();
+  private final AtomicLong mMisses = new AtomicLong();
+  private ScheduledExecutorService mRefresher;
+
+  private BQQClientRegistry() {}
+
+  /**
+   * @return the process wide registry
+   */
+  public static BQQClientRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the shared client for the given credentials, building it on first use.
+   * If serviceAccountPath is an empty string / null, then default credentials used instead.
+   * @param projectId project id, or null if using default credentials
+   * @param serviceAccountPath path to service account, or null if using default credentials
+   * @return a shared BQ client
+   * @throws FileNotFoundException if no service account found in path
+   * @throws IOException if failed to read service account
+   */
+  public BigQuery getClient(String projectId, String serviceAccountPath)
+      throws FileNotFoundException, IOException {
+    Key key = new Key(projectId, serviceAccountPath);
+    BigQuery client = mClients.get(key);
+    if (client != null) {
+      mHits.incrementAndGet();
+      return client;
+    }
+
+    // Slow path, only taken once per key. Serialized so two racing workers
+    // don't both read the service account and build a transport.
+    synchronized (this) {
+      client = mClients.get(key);
+      if (client != null) {
+        mHits.incrementAndGet();
+        return client;
+      }
+
+      mMisses.incrementAndGet();
+      client = BQQServiceFactory.buildClient(projectId, serviceAccountPath);
+      mClients.put(key, client);
+      scheduleRefresh(client.getOptions().getCredentials());
+      return client;
+    }
+  }
+
+  /**
+   * @return number of lookups served from the registry
+   */
+  public long getHitCount() {
+    return mHits.get();
+  }
+
+  /**
+   * @return number of lookups that had to build a new client
+   */
+  public long getMissCount() {
+    return mMisses.get();
+  }
+
+  /**
+   * @return number of distinct clients currently registered
+   */
+  public int size() {
+    return mClients.size();
+  }
+
+  /**
+   * Drops all registered clients and stops refreshing their credentials.
+   * Clients already handed out keep working.
+   */
+  public synchronized void clear() {
+    mClients.clear();
+    if (mRefresher != null) {
+      mRefresher.shutdownNow();
+      mRefresher = null;
+    }
+  }
+
+  /**
+   * Periodically refreshes the access token of OAuth2 credentials in the background.
+   * @param credentials credentials of a newly registered client
+   */
+  private void scheduleRefresh(Credentials credentials) {
+    if (!(credentials instanceof OAuth2Credentials) || credentials instanceof NoCredentials) {
+      return;
+    }
+    final OAuth2Credentials oauth = (OAuth2Credentials) credentials;
+
+    if (mRefresher == null) {
+      mRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "bqq-token-refresher");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+
+    mRefresher.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          oauth.refresh();
+        } catch (IOException | RuntimeException e) {
+          // Requests will refresh on demand, so just log and retry next interval
+          LOG.warn("Failed to refresh BigQuery credentials", e);
+        }
+      }
+    }, 0, TOKEN_REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Registry key, treats null and "" as the same (default credentials).
+   */
+  private static final class Key {
+    private final String mProjectId;
+    private final String mServiceAccountPath;
+
+    Key(String projectId, String serviceAccountPath) {
+      mProjectId = projectId == null ? "" : projectId;
+      mServiceAccountPath = serviceAccountPath == null ? "" : serviceAccountPath;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return mProjectId.equals(other.mProjectId)
+          && mServiceAccountPath.equals(other.mServiceAccountPath);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * mProjectId.hashCode() + mServiceAccountPath.hashCode();
+    }
+  }
+}
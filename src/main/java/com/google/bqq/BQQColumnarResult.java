@@ -0,0 +1,467 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.QueryResult;
+import com.google.cloud.bigquery.Schema;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query result materialized column by column into primitive arrays, driven by the schema.
+ * INTEGER and TIMESTAMP (in microseconds) columns are held in long[], FLOAT in double[] and
+ * BOOLEAN in a bitmap, without boxing. STRING, BYTES, DATE, TIME and DATETIME values are
+ * dictionary encoded, so repeated values are stored once. Nulls are tracked in a bitmap per
+ * column. RECORD and REPEATED columns are kept as FieldValues.
+ * The result is immutable once built.
+ */
+public class BQQColumnarResult {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final Schema mSchema;
+  private final Map<String, Integer> mColumnIndex = new HashMap<>();
+  private final Column[] mColumns;
+  private final int mRowCount;
+
+  private BQQColumnarResult(Schema schema, Iterator<List<FieldValue>> rows) {
+    mSchema = schema;
+    List<Field> fields = schema.getFields();
+    mColumns = new Column[fields.size()];
+    for (int i = 0; i < mColumns.length; i++) {
+      mColumns[i] = newColumn(fields.get(i));
+      mColumnIndex.put(fields.get(i).getName(), i);
+    }
+
+    int rowCount = 0;
+    while (rows.hasNext()) {
+      List<FieldValue> row = rows.next();
+      for (int i = 0; i < mColumns.length; i++) {
+        mColumns[i].add(rowCount, row.get(i));
+      }
+      rowCount++;
+    }
+    for (Column column : mColumns) {
+      column.trim(rowCount);
+    }
+    mRowCount = rowCount;
+  }
+
+  /**
+   * Materializes all rows of a query result, prefetching pages while earlier ones are decoded.
+   * @param result first page of a query result
+   * @return the columnar result
+   */
+  public static BQQColumnarResult of(QueryResult result) {
+    try (BQQRowStream rows = new BQQRowStream(result, BQQRowStream.DEFAULT_PREFETCH_PAGES)) {
+      return of(result.getSchema(), rows);
+    }
+  }
+
+  /**
+   * Materializes rows matching a schema.
+   * @param schema the rows' schema
+   * @param rows the rows, with one value per schema field
+   * @return the columnar result
+   */
+  public static BQQColumnarResult of(Schema schema, Iterator<List<FieldValue>> rows) {
+    return new BQQColumnarResult(schema, rows);
+  }
+
+  private static Column newColumn(Field field) {
+    if (field.getMode() == Field.Mode.REPEATED) {
+      return new ValueColumn(field);
+    }
+    LegacySQLTypeName type = field.getType().getValue();
+    switch (type) {
+      case INTEGER:
+      case TIMESTAMP:
+        return new LongColumn(field);
+      case FLOAT:
+        return new DoubleColumn(field);
+      case BOOLEAN:
+        return new BooleanColumn(field);
+      case RECORD:
+        return new ValueColumn(field);
+      default:
+        return new StringColumn(field);
+    }
+  }
+
+  public Schema getSchema() {
+    return mSchema;
+  }
+
+  public int getRowCount() {
+    return mRowCount;
+  }
+
+  public int getColumnCount() {
+    return mColumns.length;
+  }
+
+  /**
+   * @param name a field name of the schema
+   * @return the field's column index
+   * @throws IllegalArgumentException if there is no such field
+   */
+  public int getColumnIndex(String name) {
+    Integer index = mColumnIndex.get(name);
+    if (index == null) {
+      throw new IllegalArgumentException("No column " + name);
+    }
+    return index;
+  }
+
+  public boolean isNull(int column, int row) {
+    return mColumns[column].isNull(checkRow(row));
+  }
+
+  /**
+   * @return the value of an INTEGER column, or of a TIMESTAMP column in microseconds since
+   *     the epoch, 0 if null
+   */
+  public long getLong(int column, int row) {
+    return as(column, LongColumn.class).mValues[checkRow(row)];
+  }
+
+  /**
+   * @return the value of a FLOAT column, 0 if null
+   */
+  public double getDouble(int column, int row) {
+    return as(column, DoubleColumn.class).mValues[checkRow(row)];
+  }
+
+  /**
+   * @return the value of a BOOLEAN column, false if null
+   */
+  public boolean getBoolean(int column, int row) {
+    return get(as(column, BooleanColumn.class).mValues, checkRow(row));
+  }
+
+  /**
+   * @return the value of a STRING, BYTES (base64), DATE, TIME or DATETIME column, null if null
+   */
+  public String getString(int column, int row) {
+    StringColumn strings = as(column, StringColumn.class);
+    int code = strings.mCodes[checkRow(row)];
+    return code < 0 ? null : strings.mDictionary[code];
+  }
+
+  /**
+   * Reads a dictionary encoded value without looking it up, for grouping or comparing rows.
+   * @return index of the value in getDictionary(column), -1 if null
+   */
+  public int getStringCode(int column, int row) {
+    return as(column, StringColumn.class).mCodes[checkRow(row)];
+  }
+
+  /**
+   * @return the distinct values of a dictionary encoded column
+   */
+  public List<String> getDictionary(int column) {
+    return Arrays.asList(as(column, StringColumn.class).mDictionary.clone());
+  }
+
+  /**
+   * @return the value of a RECORD or REPEATED column
+   */
+  public FieldValue getValue(int column, int row) {
+    return as(column, ValueColumn.class).mValues[checkRow(row)];
+  }
+
+  /**
+   * Estimates the heap used by the columns: their arrays, null bitmaps and dictionaries.
+   * FieldValues of RECORD and REPEATED columns are only counted by reference.
+   * @return estimated size in bytes
+   */
+  public long getMemoryBytes() {
+    long bytes = 0;
+    for (Column column : mColumns) {
+      bytes += column.getMemoryBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return "BQQColumnarResult{rows=" + mRowCount + ", columns=" + mColumns.length
+        + ", memoryBytes=" + getMemoryBytes() + "}";
+  }
+
+  private int checkRow(int row) {
+    if (row < 0 || row >= mRowCount) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + mRowCount);
+    }
+    return row;
+  }
+
+  private <C extends Column> C as(int column, Class<C> type) {
+    Column c = mColumns[column];
+    if (!type.isInstance(c)) {
+      throw new IllegalArgumentException("Column " + c.mField.getName() + " is of type "
+          + c.mField.getType().getValue() + ", not read by " + type.getSimpleName());
+    }
+    return type.cast(c);
+  }
+
+  private static boolean get(long[] bits, int index) {
+    return (bits[index >>> 6] & (1L << index)) != 0;
+  }
+
+  private static long[] set(long[] bits, int index) {
+    if (index >>> 6 >= bits.length) {
+      bits = Arrays.copyOf(bits, Math.max(bits.length * 2, (index >>> 6) + 1));
+    }
+    bits[index >>> 6] |= 1L << index;
+    return bits;
+  }
+
+  private static long arrayBytes(int length, int elementBytes) {
+    return 16 + (long) length * elementBytes;
+  }
+
+  /**
+   * Values of one field, with a bitmap of the null ones.
+   */
+  private abstract static class Column {
+    final Field mField;
+    long[] mNulls = new long[INITIAL_CAPACITY / 64];
+
+    Column(Field field) {
+      mField = field;
+    }
+
+    void add(int row, FieldValue value) {
+      ensureCapacity(row);
+      if (value == null || value.isNull()) {
+        mNulls = set(mNulls, row);
+        setNull(row);
+      } else {
+        setValue(row, value);
+      }
+    }
+
+    boolean isNull(int row) {
+      return row >>> 6 < mNulls.length && get(mNulls, row);
+    }
+
+    /** Grows the values array to hold row. */
+    abstract void ensureCapacity(int row);
+
+    /** Stores the placeholder of a null at row. */
+    void setNull(int row) {
+    }
+
+    /** Stores a non-null value at row. */
+    abstract void setValue(int row, FieldValue value);
+
+    /** Shrinks the arrays to rowCount rows. */
+    void trim(int rowCount) {
+      mNulls = Arrays.copyOf(mNulls, Math.min(mNulls.length, (rowCount + 63) >>> 6));
+    }
+
+    long getMemoryBytes() {
+      return arrayBytes(mNulls.length, 8);
+    }
+  }
+
+  private static final class LongColumn extends Column {
+    final boolean mTimestamp;
+    long[] mValues = new long[INITIAL_CAPACITY];
+
+    LongColumn(Field field) {
+      super(field);
+      mTimestamp = field.getType().getValue() == LegacySQLTypeName.TIMESTAMP;
+    }
+
+    @Override
+    void ensureCapacity(int row) {
+      if (row == mValues.length) {
+        mValues = Arrays.copyOf(mValues, row * 2);
+      }
+    }
+
+    @Override
+    void setValue(int row, FieldValue value) {
+      mValues[row] = mTimestamp ? value.getTimestampValue() : value.getLongValue();
+    }
+
+    @Override
+    void trim(int rowCount) {
+      super.trim(rowCount);
+      mValues = Arrays.copyOf(mValues, rowCount);
+    }
+
+    @Override
+    long getMemoryBytes() {
+      return super.getMemoryBytes() + arrayBytes(mValues.length, 8);
+    }
+  }
+
+  private static final class DoubleColumn extends Column {
+    double[] mValues = new double[INITIAL_CAPACITY];
+
+    DoubleColumn(Field field) {
+      super(field);
+    }
+
+    @Override
+    void ensureCapacity(int row) {
+      if (row == mValues.length) {
+        mValues = Arrays.copyOf(mValues, row * 2);
+      }
+    }
+
+    @Override
+    void setValue(int row, FieldValue value) {
+      mValues[row] = value.getDoubleValue();
+    }
+
+    @Override
+    void trim(int rowCount) {
+      super.trim(rowCount);
+      mValues = Arrays.copyOf(mValues, rowCount);
+    }
+
+    @Override
+    long getMemoryBytes() {
+      return super.getMemoryBytes() + arrayBytes(mValues.length, 8);
+    }
+  }
+
+  private static final class BooleanColumn extends Column {
+    long[] mValues = new long[INITIAL_CAPACITY / 64];
+
+    BooleanColumn(Field field) {
+      super(field);
+    }
+
+    @Override
+    void ensureCapacity(int row) {
+      // the bitmap grows as bits are set
+    }
+
+    @Override
+    void setValue(int row, FieldValue value) {
+      if (value.getBooleanValue()) {
+        mValues = set(mValues, row);
+      }
+    }
+
+    @Override
+    void trim(int rowCount) {
+      super.trim(rowCount);
+      // the accessor reads any row, so keep a word for every row
+      mValues = Arrays.copyOf(mValues, (rowCount + 63) >>> 6);
+    }
+
+    @Override
+    long getMemoryBytes() {
+      return super.getMemoryBytes() + arrayBytes(mValues.length, 8);
+    }
+  }
+
+  private static final class StringColumn extends Column {
+    int[] mCodes = new int[INITIAL_CAPACITY];
+    String[] mDictionary;
+    private Map<String, Integer> mCodesByValue = new HashMap<>();
+    private List<String> mValuesByCode = new ArrayList<>();
+
+    StringColumn(Field field) {
+      super(field);
+    }
+
+    @Override
+    void ensureCapacity(int row) {
+      if (row == mCodes.length) {
+        mCodes = Arrays.copyOf(mCodes, row * 2);
+      }
+    }
+
+    @Override
+    void setNull(int row) {
+      mCodes[row] = -1;
+    }
+
+    @Override
+    void setValue(int row, FieldValue value) {
+      String s = value.getStringValue();
+      Integer code = mCodesByValue.get(s);
+      if (code == null) {
+        code = mValuesByCode.size();
+        mCodesByValue.put(s, code);
+        mValuesByCode.add(s);
+      }
+      mCodes[row] = code;
+    }
+
+    @Override
+    void trim(int rowCount) {
+      super.trim(rowCount);
+      mCodes = Arrays.copyOf(mCodes, rowCount);
+      mDictionary = mValuesByCode.toArray(new String[0]);
+      mCodesByValue = null;
+      mValuesByCode = null;
+    }
+
+    @Override
+    long getMemoryBytes() {
+      long bytes = super.getMemoryBytes() + arrayBytes(mCodes.length, 4)
+          + arrayBytes(mDictionary.length, 8);
+      for (String s : mDictionary) {
+        // String object and its char[]
+        bytes += 24 + arrayBytes(s.length(), 2);
+      }
+      return bytes;
+    }
+  }
+
+  private static final class ValueColumn extends Column {
+    FieldValue[] mValues = new FieldValue[INITIAL_CAPACITY];
+
+    ValueColumn(Field field) {
+      super(field);
+    }
+
+    @Override
+    void ensureCapacity(int row) {
+      if (row == mValues.length) {
+        mValues = Arrays.copyOf(mValues, row * 2);
+      }
+    }
+
+    @Override
+    void setValue(int row, FieldValue value) {
+      mValues[row] = value;
+    }
+
+    @Override
+    void trim(int rowCount) {
+      super.trim(rowCount);
+      mValues = Arrays.copyOf(mValues, rowCount);
+    }
+
+    @Override
+    long getMemoryBytes() {
+      return super.getMemoryBytes() + arrayBytes(mValues.length, 8);
+    }
+  }
+}
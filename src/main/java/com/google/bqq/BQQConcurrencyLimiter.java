@@ -0,0 +1,193 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit on the number of queries running at once, using additive increase /
+ * multiplicative decrease (AIMD). The limit grows by about one each time a limit's worth
+ * of queries succeed while the limit is in use and latencies are healthy, and is cut by
+ * the backoff ratio whenever a query fails with a quota or overload error.
+ * A latency is healthy when it's at most latencyTolerance times the moving average.
+ */
+public class BQQConcurrencyLimiter {
+  /** BigQuery error reasons which mean too many queries are running. */
+  public static final String[] OVERLOAD_REASONS =
+      {"rateLimitExceeded", "quotaExceeded", "backendError"};
+
+  private static final double LATENCY_SMOOTHING = 0.05;
+  private static final int MAX_HISTORY = 256;
+
+  private final int mMinLimit;
+  private final int mMaxLimit;
+  private double mBackoffRatio = 0.7;
+  private double mLatencyTolerance = 2.0;
+
+  private double mLimit;
+  private double mSmoothedLatencyNanos = 0;
+  private boolean mDecreased = false;
+  private long mLastDecreaseNanos;
+  private final ArrayDeque<Change> mHistory = new ArrayDeque<>();
+
+  /**
+   * @param initialLimit limit to start at
+   * @param minLimit the limit is never cut below this
+   * @param maxLimit the limit never grows past this, nor past BQQClient.startup's
+   *     maxConcurrentQueries
+   */
+  public BQQConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+      throw new IllegalArgumentException("Need 1 <= minLimit <= initialLimit <= maxLimit");
+    }
+    mMinLimit = minLimit;
+    mMaxLimit = maxLimit;
+    mLimit = initialLimit;
+    record(initialLimit, "initial");
+  }
+
+  /**
+   * @param backoffRatio fraction (0-1) of the limit kept on an overload error, 0.7 by default
+   * @return this limiter
+   */
+  public synchronized BQQConcurrencyLimiter setBackoffRatio(double backoffRatio) {
+    if (backoffRatio <= 0 || backoffRatio >= 1) {
+      throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+    }
+    mBackoffRatio = backoffRatio;
+    return this;
+  }
+
+  /**
+   * @param latencyTolerance how many times the average latency a query may take without
+   *     holding back the limit's growth, 2 by default
+   * @return this limiter
+   */
+  public synchronized BQQConcurrencyLimiter setLatencyTolerance(double latencyTolerance) {
+    if (latencyTolerance < 1) {
+      throw new IllegalArgumentException("latencyTolerance must be at least 1");
+    }
+    mLatencyTolerance = latencyTolerance;
+    return this;
+  }
+
+  /**
+   * @return number of queries allowed to run at once
+   */
+  public synchronized int getLimit() {
+    return (int) mLimit;
+  }
+
+  /**
+   * @return the last changes to the limit, oldest first
+   */
+  public synchronized List<Change> getHistory() {
+    return new ArrayList<>(mHistory);
+  }
+
+  /**
+   * Feeds back the outcome of a query.
+   * @param startNanos System.nanoTime() when the query started
+   * @param latencyNanos time the query took
+   * @param inFlight number of queries running when it started, counting itself
+   * @param error the query's failure, or null if it succeeded
+   */
+  synchronized void onSample(long startNanos, long latencyNanos, int inFlight, Throwable error) {
+    if (error != null) {
+      Throwable t = BQQException.unwrap(error);
+      boolean overload = t instanceof BQQException
+          && ((BQQException) t).hasReason(OVERLOAD_REASONS);
+      // only cut once per overload, queries started before the last cut saw the old limit
+      if (overload && (!mDecreased || startNanos - mLastDecreaseNanos >= 0)) {
+        mLimit = Math.max(mMinLimit, mLimit * mBackoffRatio);
+        mDecreased = true;
+        mLastDecreaseNanos = startNanos + latencyNanos;
+        record(getLimit(), "overload");
+      }
+      return;
+    }
+
+    boolean healthy = mSmoothedLatencyNanos == 0
+        || latencyNanos <= mSmoothedLatencyNanos * mLatencyTolerance;
+    mSmoothedLatencyNanos = mSmoothedLatencyNanos == 0 ? latencyNanos
+        : mSmoothedLatencyNanos + LATENCY_SMOOTHING * (latencyNanos - mSmoothedLatencyNanos);
+
+    // an unused limit proves nothing, so only grow when it's being hit
+    if (healthy && inFlight >= (int) mLimit && mLimit < mMaxLimit) {
+      int before = getLimit();
+      mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+      if (getLimit() != before) {
+        record(getLimit(), "increase");
+      }
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "BQQConcurrencyLimiter{limit=" + getLimit() + ", min=" + mMinLimit
+        + ", max=" + mMaxLimit + ", avgLatencyMs="
+        + TimeUnit.NANOSECONDS.toMillis((long) mSmoothedLatencyNanos) + "}";
+  }
+
+  private void record(int limit, String reason) {
+    if (mHistory.size() == MAX_HISTORY) {
+      mHistory.removeFirst();
+    }
+    mHistory.addLast(new Change(System.currentTimeMillis(), limit, reason));
+  }
+
+  /**
+   * A change to the limit.
+   */
+  public static final class Change {
+    private final long mTimeMillis;
+    private final int mLimit;
+    private final String mReason;
+
+    Change(long timeMillis, int limit, String reason) {
+      mTimeMillis = timeMillis;
+      mLimit = limit;
+      mReason = reason;
+    }
+
+    /**
+     * @return wall clock time of the change, in ms since the epoch
+     */
+    public long getTimeMillis() {
+      return mTimeMillis;
+    }
+
+    /**
+     * @return the new limit
+     */
+    public int getLimit() {
+      return mLimit;
+    }
+
+    /**
+     * @return why the limit changed: initial, increase or overload
+     */
+    public String getReason() {
+      return mReason;
+    }
+
+    @Override
+    public String toString() {
+      return mTimeMillis + ":" + mLimit + "(" + mReason + ")";
+    }
+  }
+}
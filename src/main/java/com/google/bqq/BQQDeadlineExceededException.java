@@ -0,0 +1,26 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+/**
+ * Used to fail a query's future when it didn't finish within its deadline. Its job, if it
+ * had started one, is cancelled.
+ */
+public class BQQDeadlineExceededException extends BQQException {
+  private static final long serialVersionUID = 1L;
+
+  public BQQDeadlineExceededException(String message) {
+    super(message);
+  }
+}
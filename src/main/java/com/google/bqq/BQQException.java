@@ -17,12 +17,18 @@ import com.google.cloud.bigquery.BigQueryError;
 import com.google.cloud.bigquery.BigQueryException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Generic class to handle all Exceptions related to BigQuery execution.
  * Is a simple wrapper class to handle all BigQuery thrown errors.
  */
 public class BQQException extends Exception {
+  /** BigQuery error reasons of failures which may succeed if tried again. */
+  public static final String[] RETRYABLE_REASONS =
+      {"backendError", "internalError", "rateLimitExceeded"};
+
   private List<BigQueryError> mBQErrors;
   
   public BQQException() {
@@ -65,4 +71,58 @@ public class BQQException extends Exception {
   public List<BigQueryError> getBQErrors() {
     return mBQErrors;
   }
+
+  /**
+   * @param reasons BigQuery error reasons, such-as "rateLimitExceeded"
+   * @return true if any of the BigQuery errors has one of the reasons
+   */
+  public boolean hasReason(String... reasons) {
+    if (mBQErrors == null) {
+      return false;
+    }
+    for (BigQueryError error : mBQErrors) {
+      for (String reason : reasons) {
+        if (error != null && reason.equals(error.getReason())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Classifies the failure: transient backend errors, rate limits and 5xx responses may
+   * succeed if tried again, while invalid queries, missing tables, denied access or used up
+   * quotas won't.
+   * @return true if retrying the failed call may succeed
+   */
+  public boolean isRetryable() {
+    if (hasReason(RETRYABLE_REASONS)) {
+      return true;
+    }
+    if (getCause() instanceof BigQueryException) {
+      BigQueryException cause = (BigQueryException) getCause();
+      int code = cause.getCode();
+      return cause.isRetryable() || code == 500 || code == 502 || code == 503 || code == 504;
+    }
+    return false;
+  }
+
+  /**
+   * Unwraps an exception thrown by a worker thread or a CompletableFuture stage.
+   * Strips ExecutionException / CompletionException layers and turns
+   * BigQueryExceptions into BQQExceptions.
+   * @param t exception to unwrap
+   * @return the underlying exception
+   */
+  public static Throwable unwrap(Throwable t) {
+    while ((t instanceof ExecutionException || t instanceof CompletionException)
+        && t.getCause() != null) {
+      t = t.getCause();
+    }
+    if (t instanceof BigQueryException) {
+      return new BQQException((BigQueryException) t);
+    }
+    return t;
+  }
 }
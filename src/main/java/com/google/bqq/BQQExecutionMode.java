@@ -0,0 +1,34 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+/**
+ * How a BQQClient runs its queries.
+ */
+public enum BQQExecutionMode {
+  /** One worker thread per concurrent query, each blocking until its job is done. */
+  THREAD_POOL,
+
+  /**
+   * A few threads start jobs and a single poller tracks every running job.
+   * Concurrent queries are bounded by a permit count instead of a thread count.
+   */
+  POLLER,
+
+  /**
+   * Every query runs on its own virtual thread, with the number of concurrent queries capped
+   * by a semaphore. Cheap enough for thousands of concurrent queries. Needs a Java 21+ runtime.
+   */
+  VIRTUAL_THREADS
+}
@@ -0,0 +1,165 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.QueryResult;
+import com.google.cloud.bigquery.Schema;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Heap budget shared by all of a client's materialized results. Rows are kept on heap while
+ * the budget allows, the rest of a result is spilled to a memory-mapped temp file, so several
+ * huge results landing at once don't exhaust the heap. Closing a result hands its share of
+ * the budget back and deletes its file.
+ */
+public class BQQHeapBudget {
+  /** Heap reserved at a time while materializing, so the budget isn't locked for every row. */
+  static final long RESERVE_CHUNK_BYTES = 1024 * 1024;
+
+  private final long mMaxBytes;
+  private final File mSpillDirectory;
+  private long mUsedBytes = 0;
+  private long mSpilledResults = 0;
+  private long mSpilledBytes = 0;
+
+  /**
+   * Spills to the default temp directory.
+   * @param maxBytes max estimated heap size of all materialized rows
+   */
+  public BQQHeapBudget(long maxBytes) {
+    this(maxBytes, new File(System.getProperty("java.io.tmpdir")));
+  }
+
+  /**
+   * @param maxBytes max estimated heap size of all materialized rows
+   * @param spillDirectory directory spill files are created in
+   */
+  public BQQHeapBudget(long maxBytes, File spillDirectory) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative");
+    }
+    mMaxBytes = maxBytes;
+    mSpillDirectory = spillDirectory;
+  }
+
+  /**
+   * Reads all rows of a query result, keeping them on heap within the budget and spilling
+   * the rest. The next page is fetched while the current one is stored.
+   * @param result first page of a query result
+   * @return the rows, to be closed once no longer needed
+   * @throws IOException if the spill file could not be written
+   */
+  public BQQMaterializedResult materialize(QueryResult result) throws IOException {
+    return materialize(result, null);
+  }
+
+  /**
+   * Reads all rows of a query result as materialize(result) does, hedging page fetches.
+   * @param result first page of a query result
+   * @param hedger the hedger page fetches go through, or null to not hedge
+   * @return the rows, to be closed once no longer needed
+   * @throws IOException if the spill file could not be written
+   */
+  BQQMaterializedResult materialize(QueryResult result, BQQHedger hedger) throws IOException {
+    try (BQQRowStream rows = new BQQRowStream(result, result.getSchema(), result.getTotalRows(),
+        BQQRowStream.DEFAULT_PREFETCH_PAGES, hedger)) {
+      return materialize(result.getSchema(), rows);
+    }
+  }
+
+  /**
+   * Stores rows, keeping them on heap within the budget and spilling the rest.
+   * @param schema the rows' schema
+   * @param rows the rows to store
+   * @return the rows, to be closed once no longer needed
+   * @throws IOException if the spill file could not be written
+   */
+  public BQQMaterializedResult materialize(Schema schema, Iterator<List<FieldValue>> rows)
+      throws IOException {
+    BQQMaterializedResult result = new BQQMaterializedResult(this, schema, mSpillDirectory,
+        BQQMaterializedResult.SEGMENT_BYTES);
+    try {
+      while (rows.hasNext()) {
+        result.add(rows.next());
+      }
+      result.finish();
+    } catch (IOException | RuntimeException e) {
+      result.close();
+      throw e;
+    }
+    return result;
+  }
+
+  /**
+   * @param bytes heap to take from the budget
+   * @return true if the budget had room
+   */
+  synchronized boolean tryReserve(long bytes) {
+    if (mUsedBytes + bytes > mMaxBytes) {
+      return false;
+    }
+    mUsedBytes += bytes;
+    return true;
+  }
+
+  /**
+   * @param bytes heap to hand back to the budget
+   */
+  synchronized void release(long bytes) {
+    mUsedBytes -= bytes;
+  }
+
+  /**
+   * @param bytes size of a spill file that was written
+   */
+  synchronized void recordSpill(long bytes) {
+    mSpilledResults++;
+    mSpilledBytes += bytes;
+  }
+
+  public long getMaxBytes() {
+    return mMaxBytes;
+  }
+
+  /**
+   * @return estimated heap size of the rows currently held by open results
+   */
+  public synchronized long getUsedBytes() {
+    return mUsedBytes;
+  }
+
+  /**
+   * @return number of results which didn't fit in the budget and were partly spilled
+   */
+  public synchronized long getSpilledResultCount() {
+    return mSpilledResults;
+  }
+
+  /**
+   * @return total size in bytes of the spill files written
+   */
+  public synchronized long getSpilledBytes() {
+    return mSpilledBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "BQQHeapBudget{used=" + mUsedBytes + "/" + mMaxBytes + ", spilledResults="
+        + mSpilledResults + ", spilledBytes=" + mSpilledBytes + "}";
+  }
+}
@@ -0,0 +1,254 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Hedges idempotent RPCs, such as status checks and page fetches. A call which hasn't
+ * returned once a percentile of the observed latency has passed gets a second, identical
+ * call, and whichever returns first wins. Hedges are paid for out of a budget which grows by
+ * maxExtraRatio per call, so they never add more than that fraction of extra requests.
+ * No call is hedged until MIN_SAMPLES latencies have been observed, and calls which return
+ * while the server holds them add no latency, so minDelayMs bounds how eagerly they're hedged.
+ */
+public class BQQHedger {
+  /** Max number of hedges the budget saves up during quiet periods. */
+  public static final int MAX_BUDGET = 10;
+  /** Number of observed latencies before calls are hedged. */
+  public static final int MIN_SAMPLES = 20;
+
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  private final double mPercentile;
+  private final double mMaxExtraRatio;
+  private final long mMinDelayMs;
+  private final BQQLatencyHistogram mLatency = new BQQLatencyHistogram();
+  private final ThreadPoolExecutor mPool;
+
+  // hedges that can be sent right now, in hedges
+  private double mBudget = 0;
+
+  private final LongAdder mCalls = new LongAdder();
+  private final LongAdder mHedges = new LongAdder();
+  private final LongAdder mHedgeWins = new LongAdder();
+  private final LongAdder mOverBudget = new LongAdder();
+
+  /**
+   * @param percentile percentile (0-100) of observed latency after which a call is hedged
+   * @param maxExtraRatio max number of hedges per call, e.g. 0.05 for 5% extra requests
+   * @param minDelayMs min time to wait before hedging, however fast calls usually are
+   */
+  public BQQHedger(double percentile, double maxExtraRatio, long minDelayMs) {
+    if (!(percentile > 0 && percentile < 100)) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100");
+    }
+    if (!(maxExtraRatio >= 0 && maxExtraRatio <= 1)) {
+      throw new IllegalArgumentException("maxExtraRatio must be between 0 and 1");
+    }
+    if (minDelayMs < 0) {
+      throw new IllegalArgumentException("minDelayMs must not be negative");
+    }
+    mPercentile = percentile;
+    mMaxExtraRatio = maxExtraRatio;
+    mMinDelayMs = minDelayMs;
+    mPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), r -> {
+          Thread t = new Thread(r, "bqq-hedge-" + THREAD_COUNT.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+  }
+
+  /**
+   * Makes a call, hedging it if it's slow.
+   * @param rpc the call, which must be safe to make twice
+   * @return the result of whichever call returned first
+   * @throws InterruptedException if interrupted while waiting for the call
+   */
+  public <T> T call(Supplier<T> rpc) throws InterruptedException {
+    return call(rpc, 0);
+  }
+
+  /**
+   * Makes a call, hedging it if it's slow.
+   * @param rpc the call, which must be safe to make twice
+   * @param serverWaitMs time the server is asked to hold the call, e.g. waiting for a job,
+   *     which is added to the hedge delay and left out of the observed latency
+   * @return the result of whichever call returned first, or the last error if both failed
+   * @throws InterruptedException if interrupted while waiting for the call
+   */
+  public <T> T call(Supplier<T> rpc, long serverWaitMs) throws InterruptedException {
+    mCalls.increment();
+    long serverWaitNanos = TimeUnit.MILLISECONDS.toNanos(serverWaitMs);
+    long delayNanos = getHedgeDelayNanos();
+    synchronized (this) {
+      mBudget = Math.min(MAX_BUDGET, mBudget + mMaxExtraRatio);
+    }
+    if (delayNanos < 0) {
+      // not enough samples yet, no need for a second thread
+      long start = System.nanoTime();
+      T value = rpc.get();
+      record(start, serverWaitNanos);
+      return value;
+    }
+
+    CompletableFuture<Outcome<T>> result = new CompletableFuture<>();
+    AtomicInteger running = new AtomicInteger(1);
+    Future<?> first = start(rpc, serverWaitNanos, result, running, false);
+    Future<?> second = null;
+    try {
+      Outcome<T> outcome;
+      try {
+        outcome = result.get(serverWaitNanos + delayNanos, TimeUnit.NANOSECONDS);
+        return outcome.mValue;
+      } catch (TimeoutException e) {
+        if (!result.isDone() && takeBudget()) {
+          mHedges.increment();
+          running.incrementAndGet();
+          second = start(rpc, serverWaitNanos, result, running, true);
+        } else if (!result.isDone()) {
+          mOverBudget.increment();
+        }
+      }
+      outcome = result.get();
+      if (outcome.mHedge) {
+        mHedgeWins.increment();
+      }
+      return outcome.mValue;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      // the loser's answer isn't needed anymore
+      first.cancel(true);
+      if (second != null) {
+        second.cancel(true);
+      }
+    }
+  }
+
+  private <T> Future<?> start(Supplier<T> rpc, long serverWaitNanos,
+      CompletableFuture<Outcome<T>> result, AtomicInteger running, boolean hedge) {
+    return mPool.submit(() -> {
+      long start = System.nanoTime();
+      try {
+        T value = rpc.get();
+        record(start, serverWaitNanos);
+        result.complete(new Outcome<>(value, hedge));
+      } catch (RuntimeException | Error e) {
+        // wait for the other call, if there is one
+        if (running.decrementAndGet() == 0) {
+          result.completeExceptionally(e);
+        }
+      }
+    });
+  }
+
+  private void record(long startNanos, long serverWaitNanos) {
+    long nanos = System.nanoTime() - startNanos - serverWaitNanos;
+    mLatency.record(TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos)));
+  }
+
+  private synchronized boolean takeBudget() {
+    if (mBudget < 1) {
+      return false;
+    }
+    mBudget -= 1;
+    return true;
+  }
+
+  /**
+   * @return time in ns after which a call is hedged, or -1 while too few calls were observed
+   */
+  long getHedgeDelayNanos() {
+    if (mLatency.getCount() < MIN_SAMPLES) {
+      return -1;
+    }
+    return Math.max(TimeUnit.MILLISECONDS.toNanos(mMinDelayMs),
+        TimeUnit.MICROSECONDS.toNanos(mLatency.getValueAtPercentile(mPercentile)));
+  }
+
+  /**
+   * @return number of calls made through the hedger, not counting hedges
+   */
+  public long getCallCount() {
+    return mCalls.sum();
+  }
+
+  /**
+   * @return number of hedges sent
+   */
+  public long getHedgeCount() {
+    return mHedges.sum();
+  }
+
+  /**
+   * @return number of hedges which returned before the call they hedged
+   */
+  public long getHedgeWinCount() {
+    return mHedgeWins.sum();
+  }
+
+  /**
+   * @return number of slow calls which weren't hedged because the budget was used up
+   */
+  public long getOverBudgetCount() {
+    return mOverBudget.sum();
+  }
+
+  /**
+   * @return latencies of calls which returned, less the server wait
+   */
+  public BQQLatencyHistogram getLatency() {
+    return mLatency.copy();
+  }
+
+  @Override
+  public String toString() {
+    long delayNanos = getHedgeDelayNanos();
+    return "BQQHedger{p" + mPercentile + ", maxExtra=" + mMaxExtraRatio
+        + ", delayMs=" + (delayNanos < 0 ? "-" : TimeUnit.NANOSECONDS.toMillis(delayNanos))
+        + ", calls=" + getCallCount() + ", hedges=" + getHedgeCount()
+        + ", hedgeWins=" + getHedgeWinCount() + ", overBudget=" + getOverBudgetCount() + "}";
+  }
+
+  /**
+   * The first answer of a hedged call.
+   */
+  private static final class Outcome<T> {
+    private final T mValue;
+    private final boolean mHedge;
+
+    Outcome(T value, boolean hedge) {
+      mValue = value;
+      mHedge = hedge;
+    }
+  }
+}
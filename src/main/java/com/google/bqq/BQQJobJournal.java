@@ -0,0 +1,293 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.QueryRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the queries a client queued, so a restarted client can pick up where
+ * the last one left off instead of running them all over again. Each query gets a record when
+ * it's queued, one when its BigQuery job starts, and one once it's done. The queries which
+ * aren't done when the journal is opened are pending: those with a job get re-attached to it,
+ * the others are queued again.
+ * Queued and started records are forced to disk before the query goes on, done records aren't,
+ * as losing one only means a finished job's result is fetched again. A job whose start wasn't
+ * recorded before a crash is started again. The journal is rewritten with only the pending
+ * queries when opened, and whenever done queries make up most of it. Records made after the
+ * journal is closed are dropped.
+ */
+public class BQQJobJournal implements AutoCloseable {
+  static final String JOURNAL_FILE = "journal.log";
+  /** Number of records past which the journal is compacted once most are done queries. */
+  static final int COMPACT_MIN_RECORDS = 1000;
+
+  private static final byte QUEUED = 1;
+  private static final byte STARTED = 2;
+  private static final byte DONE = 3;
+  // length, crc
+  private static final int HEADER_BYTES = 4 + 4;
+
+  private final File mDirectory;
+  // insertion ordered, so pending queries are queued again in their original order
+  private final LinkedHashMap<Long, BQQJournalEntry> mPending = new LinkedHashMap<>();
+  private FileChannel mFile;
+  private long mNextId = 1;
+  private long mRecords = 0;
+
+  /**
+   * Opens or creates a journal, reading its pending queries.
+   * @param directory directory holding the journal's file
+   * @throws IOException if the journal could not be read or rewritten
+   */
+  public BQQJobJournal(File directory) throws IOException {
+    mDirectory = directory;
+    Files.createDirectories(directory.toPath());
+    mFile = FileChannel.open(new File(directory, JOURNAL_FILE).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    replay();
+    compact();
+  }
+
+  /**
+   * Replays the journal, stopping at a torn or corrupt last record.
+   */
+  private void replay() throws IOException {
+    long size = mFile.size();
+    MappedByteBuffer file = mFile.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    while (file.remaining() >= HEADER_BYTES) {
+      int length = file.getInt();
+      int crc = file.getInt();
+      if (length <= 0 || length > file.remaining()) {
+        break;
+      }
+      byte[] record = new byte[length];
+      file.get(record);
+      if (crc != (int) crc(record)) {
+        break;
+      }
+      try {
+        apply(record);
+      } catch (IOException | ClassNotFoundException | RuntimeException e) {
+        break;
+      }
+    }
+  }
+
+  private void apply(byte[] record) throws IOException, ClassNotFoundException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    byte type = in.readByte();
+    long id = in.readLong();
+    mNextId = Math.max(mNextId, id + 1);
+    switch (type) {
+      case QUEUED:
+        BQQPriority priority = BQQPriority.valueOf(in.readUTF());
+        String tenant = in.readUTF();
+        byte[] request = new byte[in.readInt()];
+        in.readFully(request);
+        try (ObjectInputStream object = new ObjectInputStream(new ByteArrayInputStream(request))) {
+          mPending.put(id, new BQQJournalEntry(id, (QueryRequest) object.readObject(), priority,
+              tenant, null));
+        }
+        break;
+      case STARTED:
+        String project = in.readUTF();
+        JobId jobId = JobId.of(project.isEmpty() ? null : project, in.readUTF());
+        BQQJournalEntry entry = mPending.get(id);
+        if (entry != null) {
+          mPending.put(id, entry.withJobId(jobId));
+        }
+        break;
+      case DONE:
+        mPending.remove(id);
+        break;
+      default:
+        throw new IOException("Unknown journal record type " + type);
+    }
+  }
+
+  /**
+   * Records a newly queued query.
+   * @param queryRequest the query's request
+   * @param priority the lane it's queued in
+   * @param tenant who it's run for
+   * @return the query's id in the journal, to record its job and completion with
+   * @throws IOException if the record could not be written
+   */
+  public synchronized long queued(QueryRequest queryRequest, BQQPriority priority,
+      String tenant) throws IOException {
+    long id = mNextId++;
+    if (!mFile.isOpen()) {
+      return id;
+    }
+    mPending.put(id, new BQQJournalEntry(id, queryRequest, priority, tenant, null));
+    append(queuedRecord(mPending.get(id)), true);
+    return id;
+  }
+
+  /**
+   * Records the BigQuery job a query started.
+   * @param id the query's id in the journal
+   * @param jobId the job
+   * @throws IOException if the record could not be written
+   */
+  public synchronized void started(long id, JobId jobId) throws IOException {
+    BQQJournalEntry entry = mPending.get(id);
+    if (entry == null || !mFile.isOpen()) {
+      return;
+    }
+    mPending.put(id, entry.withJobId(jobId));
+    append(startedRecord(id, jobId), true);
+  }
+
+  /**
+   * Records a query as done, whether it succeeded, failed or was cancelled.
+   * @param id the query's id in the journal
+   * @throws IOException if the record could not be written
+   */
+  public synchronized void done(long id) throws IOException {
+    if (mPending.remove(id) == null || !mFile.isOpen()) {
+      return;
+    }
+    append(record(DONE, id).toByteArray(), false);
+    if (mRecords > COMPACT_MIN_RECORDS && mRecords > 4 * mPending.size()) {
+      compact();
+    }
+  }
+
+  /**
+   * @return the queries which aren't done, oldest first
+   */
+  public synchronized List<BQQJournalEntry> getPending() {
+    return new ArrayList<>(mPending.values());
+  }
+
+  /**
+   * @return number of queries which aren't done
+   */
+  public synchronized int size() {
+    return mPending.size();
+  }
+
+  /**
+   * Rewrites the journal with only the records of pending queries.
+   * @throws IOException if the journal could not be rewritten
+   */
+  public synchronized void compact() throws IOException {
+    File tmp = new File(mDirectory, JOURNAL_FILE + ".tmp");
+    long records = 0;
+    try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      for (BQQJournalEntry entry : mPending.values()) {
+        out.write(frame(queuedRecord(entry)));
+        records++;
+        if (entry.getJobId() != null) {
+          out.write(frame(startedRecord(entry.getId(), entry.getJobId())));
+          records++;
+        }
+      }
+      out.force(true);
+    }
+    mFile.close();
+    File journal = new File(mDirectory, JOURNAL_FILE);
+    Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    mFile = FileChannel.open(journal.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    mRecords = records;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    mFile.close();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "BQQJobJournal{dir=" + mDirectory + ", pending=" + mPending.size()
+        + ", records=" + mRecords + "}";
+  }
+
+  private void append(byte[] record, boolean force) throws IOException {
+    ByteBuffer framed = frame(record);
+    long position = mFile.size();
+    while (framed.hasRemaining()) {
+      position += mFile.write(framed, position);
+    }
+    if (force) {
+      mFile.force(false);
+    }
+    mRecords++;
+  }
+
+  private static byte[] queuedRecord(BQQJournalEntry entry) throws IOException {
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(request)) {
+      out.writeObject(entry.getQueryRequest());
+    }
+    ByteArrayOutputStream bytes = record(QUEUED, entry.getId());
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(entry.getPriority().name());
+    out.writeUTF(entry.getTenant());
+    out.writeInt(request.size());
+    request.writeTo(out);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] startedRecord(long id, JobId jobId) throws IOException {
+    ByteArrayOutputStream bytes = record(STARTED, id);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(jobId.getProject() == null ? "" : jobId.getProject());
+    out.writeUTF(jobId.getJob());
+    return bytes.toByteArray();
+  }
+
+  private static ByteArrayOutputStream record(byte type, long id) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(type);
+    out.writeLong(id);
+    return bytes;
+  }
+
+  private static ByteBuffer frame(byte[] record) {
+    ByteBuffer framed = ByteBuffer.allocate(HEADER_BYTES + record.length);
+    framed.putInt(record.length).putInt((int) crc(record)).put(record).flip();
+    return framed;
+  }
+
+  private static long crc(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+}
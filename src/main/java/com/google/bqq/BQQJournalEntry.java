@@ -0,0 +1,73 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.QueryRequest;
+
+/**
+ * A query recorded in a BQQJobJournal which isn't done yet.
+ */
+public final class BQQJournalEntry {
+  private final long mId;
+  private final QueryRequest mQueryRequest;
+  private final BQQPriority mPriority;
+  private final String mTenant;
+  private final JobId mJobId;
+
+  BQQJournalEntry(long id, QueryRequest queryRequest, BQQPriority priority, String tenant,
+      JobId jobId) {
+    mId = id;
+    mQueryRequest = queryRequest;
+    mPriority = priority;
+    mTenant = tenant;
+    mJobId = jobId;
+  }
+
+  /**
+   * @return the query's id in the journal
+   */
+  public long getId() {
+    return mId;
+  }
+
+  public QueryRequest getQueryRequest() {
+    return mQueryRequest;
+  }
+
+  public BQQPriority getPriority() {
+    return mPriority;
+  }
+
+  public String getTenant() {
+    return mTenant;
+  }
+
+  /**
+   * @return the query's BigQuery job, or null if it never got to start one
+   */
+  public JobId getJobId() {
+    return mJobId;
+  }
+
+  BQQJournalEntry withJobId(JobId jobId) {
+    return new BQQJournalEntry(mId, mQueryRequest, mPriority, mTenant, jobId);
+  }
+
+  @Override
+  public String toString() {
+    return "BQQJournalEntry{id=" + mId + ", job=" + mJobId + ", priority=" + mPriority
+        + ", tenant=" + mTenant + ", query=" + mQueryRequest.getQuery() + "}";
+  }
+}
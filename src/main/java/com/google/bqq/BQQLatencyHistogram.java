@@ -0,0 +1,146 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of latencies in microseconds, cheap enough to record every query.
+ * Buckets are log-linear like an HDR histogram: each power of two is split into 32 buckets,
+ * so any percentile is within about 3% of the recorded value, from 1us up to about 50 days.
+ * Recording only increments counters; reading scans the buckets, so a histogram read while
+ * being recorded to may be a little behind.
+ */
+public final class BQQLatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** Largest value recorded as is, larger ones are recorded as this. */
+  static final long MAX_MICROS = (1L << 42) - 1;
+  private static final int BUCKETS = bucketOf(MAX_MICROS) + 1;
+
+  private final AtomicLongArray mCounts;
+  private final LongAdder mCount = new LongAdder();
+  private final LongAdder mSum = new LongAdder();
+  private final LongAccumulator mMax = new LongAccumulator(Math::max, 0);
+
+  public BQQLatencyHistogram() {
+    mCounts = new AtomicLongArray(BUCKETS);
+  }
+
+  /**
+   * Records a latency.
+   * @param micros the latency in microseconds, negative values are recorded as 0
+   */
+  public void record(long micros) {
+    long value = Math.min(Math.max(micros, 0), MAX_MICROS);
+    mCounts.incrementAndGet(bucketOf(value));
+    mCount.increment();
+    mSum.add(value);
+    mMax.accumulate(value);
+  }
+
+  /**
+   * @return number of latencies recorded
+   */
+  public long getCount() {
+    return mCount.sum();
+  }
+
+  /**
+   * @return largest latency recorded in microseconds, or 0 if none recorded
+   */
+  public long getMaxMicros() {
+    return mMax.get();
+  }
+
+  /**
+   * @return mean latency in microseconds, or 0 if none recorded
+   */
+  public double getMeanMicros() {
+    long count = mCount.sum();
+    return count == 0 ? 0 : (double) mSum.sum() / count;
+  }
+
+  /**
+   * @param percentile a percentile between 0 and 100, such-as 99.9
+   * @return latency in microseconds which that percentage of the recorded latencies didn't
+   *     exceed, rounded up to the top of its bucket, or 0 if none recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100");
+    }
+    long total = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; ++i) {
+      counts[i] = mCounts.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestInBucket(i), getMaxMicros());
+      }
+    }
+    return getMaxMicros();
+  }
+
+  /**
+   * @return a copy of this histogram, which later recordings don't change
+   */
+  public BQQLatencyHistogram copy() {
+    BQQLatencyHistogram copy = new BQQLatencyHistogram();
+    for (int i = 0; i < BUCKETS; ++i) {
+      copy.mCounts.set(i, mCounts.get(i));
+    }
+    copy.mCount.add(mCount.sum());
+    copy.mSum.add(mSum.sum());
+    copy.mMax.accumulate(mMax.get());
+    return copy;
+  }
+
+  /**
+   * Values below 32 get a bucket each, larger values keep their top 5 bits.
+   */
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  static long highestInBucket(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  @Override
+  public String toString() {
+    return "BQQLatencyHistogram{count=" + getCount() + ", meanUs=" + getMeanMicros()
+        + ", p50Us=" + getValueAtPercentile(50) + ", p99Us=" + getValueAtPercentile(99)
+        + ", p999Us=" + getValueAtPercentile(99.9) + ", maxUs=" + getMaxMicros() + "}";
+  }
+}
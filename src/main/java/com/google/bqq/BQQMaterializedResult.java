@@ -0,0 +1,283 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.Schema;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * All rows of a query result, the first ones on heap and, past the client's heap budget,
+ * the rest in a memory-mapped temp file. Spilled rows are stored in BQQRowCodec's compact
+ * binary form and decoded back into FieldValues as they're iterated, so callers can't tell the
+ * difference. Iterators may be used from several threads at once.
+ * Closing the result releases its heap budget and deletes its file.
+ */
+public class BQQMaterializedResult implements Iterable<List<FieldValue>>, AutoCloseable {
+  /** Size of each mapped region of a spill file. */
+  static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+  private final BQQHeapBudget mBudget;
+  private final Schema mSchema;
+  private final File mSpillDirectory;
+  private final int mSegmentBytes;
+  // replaced rather than cleared on close, as iterators may still be walking them
+  private List<List<FieldValue>> mHeapRows = new ArrayList<>();
+  private List<Segment> mSegments = new ArrayList<>();
+  private long mHeapBytes = 0;
+  private long mReservedBytes = 0;
+  private long mRowCount = 0;
+  private volatile boolean mClosed = false;
+
+  // while spilling
+  private File mSpillFile;
+  private FileChannel mChannel;
+  private long mFileBytes = 0;
+  private ByteBuffer mScratch = ByteBuffer.allocate(4096);
+
+  BQQMaterializedResult(BQQHeapBudget budget, Schema schema, File spillDirectory,
+      int segmentBytes) {
+    mBudget = budget;
+    mSchema = schema;
+    mSpillDirectory = spillDirectory;
+    mSegmentBytes = segmentBytes;
+  }
+
+  /**
+   * Wraps rows encoded by BQQRowCodec which are stored elsewhere, such as in the result store.
+   * Closing the result leaves the rows' storage alone.
+   * @param schema the rows' schema
+   * @param rows the encoded rows, from position to limit
+   * @param rowCount number of rows
+   * @return the rows, decoded as they're iterated
+   */
+  static BQQMaterializedResult ofEncoded(Schema schema, ByteBuffer rows, int rowCount) {
+    BQQMaterializedResult result =
+        new BQQMaterializedResult(new BQQHeapBudget(0, null), schema, null, 0);
+    Segment segment = new Segment(rows.slice());
+    segment.mRows = rowCount;
+    result.mSegments.add(segment);
+    result.mRowCount = rowCount;
+    result.mFileBytes = rows.remaining();
+    return result;
+  }
+
+  /**
+   * Appends a row, on heap if the budget has room and nothing was spilled yet.
+   */
+  void add(List<FieldValue> row) throws IOException {
+    mRowCount++;
+    if (mSpillFile == null) {
+      long size = BQQResultCache.estimateSize(row);
+      if (mHeapBytes + size <= mReservedBytes || reserve(size)) {
+        mHeapRows.add(row);
+        mHeapBytes += size;
+        return;
+      }
+    }
+    spill(row);
+  }
+
+  private boolean reserve(long size) {
+    long chunk = Math.max(BQQHeapBudget.RESERVE_CHUNK_BYTES, size);
+    if (mBudget.tryReserve(chunk)) {
+      mReservedBytes += chunk;
+      return true;
+    }
+    // take what's left of the budget a row at a time
+    if (mBudget.tryReserve(size)) {
+      mReservedBytes += size;
+      return true;
+    }
+    return false;
+  }
+
+  private void spill(List<FieldValue> row) throws IOException {
+    if (mSpillFile == null) {
+      mSpillFile = File.createTempFile("bqq-spill-", ".bin", mSpillDirectory);
+      mChannel = new RandomAccessFile(mSpillFile, "rw").getChannel();
+    }
+    mScratch.clear();
+    mScratch = BQQRowCodec.encode(row, mScratch);
+    mScratch.flip();
+
+    Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+    if (segment == null || segment.mBuffer.remaining() < mScratch.remaining()) {
+      if (segment != null) {
+        segment.mBuffer.flip();
+      }
+      long size = Math.max(mSegmentBytes, mScratch.remaining());
+      segment = new Segment(mChannel.map(FileChannel.MapMode.READ_WRITE, mFileBytes, size));
+      mSegments.add(segment);
+    }
+    mFileBytes += mScratch.remaining();
+    segment.mBuffer.put(mScratch);
+    segment.mRows++;
+  }
+
+  /**
+   * Ends writing: hands back unused budget and stops writing to the spill file.
+   */
+  void finish() throws IOException {
+    mBudget.release(mReservedBytes - mHeapBytes);
+    mReservedBytes = mHeapBytes;
+    if (mChannel != null) {
+      mSegments.get(mSegments.size() - 1).mBuffer.flip();
+      // mappings stay valid once the channel is closed
+      mChannel.close();
+      mChannel = null;
+      mScratch = null;
+      mBudget.recordSpill(mFileBytes);
+    }
+  }
+
+  /**
+   * @return an iterator over all rows, heap rows first then spilled ones
+   * @throws IllegalStateException if the result was closed
+   */
+  @Override
+  public Iterator<List<FieldValue>> iterator() {
+    if (mClosed) {
+      throw new IllegalStateException("Result is closed");
+    }
+    Iterator<List<FieldValue>> heapRows = mHeapRows.iterator();
+    Iterator<Segment> segments = mSegments.iterator();
+    return new Iterator<List<FieldValue>>() {
+      private ByteBuffer mSegment;
+      private int mSegmentRows = 0;
+
+      @Override
+      public boolean hasNext() {
+        if (mClosed) {
+          throw new IllegalStateException("Result is closed");
+        }
+        if (heapRows.hasNext() || mSegmentRows > 0) {
+          return true;
+        }
+        while (segments.hasNext()) {
+          Segment segment = segments.next();
+          mSegment = segment.mBuffer.duplicate();
+          mSegmentRows = segment.mRows;
+          if (mSegmentRows > 0) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public List<FieldValue> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        if (heapRows.hasNext()) {
+          return heapRows.next();
+        }
+        mSegmentRows--;
+        return BQQRowCodec.decode(mSegment);
+      }
+    };
+  }
+
+  /**
+   * Releases the heap budget and deletes the spill file. The file's space is freed once
+   * its mappings are garbage collected.
+   */
+  @Override
+  public synchronized void close() {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    mBudget.release(mReservedBytes);
+    mReservedBytes = 0;
+    mHeapRows = new ArrayList<>();
+    mSegments = new ArrayList<>();
+    if (mSpillFile != null) {
+      try {
+        if (mChannel != null) {
+          mChannel.close();
+        }
+      } catch (IOException e) {
+        // deleting the file is all that's left to do
+      }
+      mSpillFile.delete();
+    }
+  }
+
+  public Schema getSchema() {
+    return mSchema;
+  }
+
+  /**
+   * @return number of rows, on heap and spilled
+   */
+  public long getRowCount() {
+    return mRowCount;
+  }
+
+  /**
+   * @return estimated heap size of the rows kept on heap
+   */
+  public long getHeapBytes() {
+    return mHeapBytes;
+  }
+
+  /**
+   * @return number of rows in the spill file
+   */
+  public long getSpilledRowCount() {
+    return mRowCount - mHeapRows.size();
+  }
+
+  /**
+   * @return size in bytes of the spill file
+   */
+  public long getSpilledBytes() {
+    return mFileBytes;
+  }
+
+  /**
+   * @return the spill file, or null if every row is on heap
+   */
+  File getSpillFile() {
+    return mSpillFile;
+  }
+
+  @Override
+  public String toString() {
+    return "BQQMaterializedResult{rows=" + mRowCount + ", heapBytes=" + mHeapBytes
+        + ", spilledRows=" + getSpilledRowCount() + ", spilledBytes=" + mFileBytes + "}";
+  }
+
+  /**
+   * A mapped region of the spill file.
+   */
+  private static final class Segment {
+    private final ByteBuffer mBuffer;
+    private int mRows = 0;
+
+    Segment(ByteBuffer buffer) {
+      mBuffer = buffer;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+/**
+ * What BQQClient does with a query queued while its queue is full.
+ */
+public enum BQQOverflowPolicy {
+  /** Blocks the caller until there's room, failing with BQQQueueFullException on timeout. */
+  BLOCK,
+
+  /** Fails straight away with BQQQueueFullException. */
+  REJECT,
+
+  /**
+   * Makes room by failing the oldest queued query of the lowest lane, with a
+   * BQQQueueFullException. A query is never dropped for one in a lower lane.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Runs the query on the caller's thread, which slows the caller down to the rate queries
+   * complete at. Such queries don't count against the max number of concurrent queries, and
+   * don't take one of the POLLER mode's permits, but have deadlines and can be cancelled.
+   */
+  CALLER_RUNS
+}
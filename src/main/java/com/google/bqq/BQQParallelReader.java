@@ -0,0 +1,274 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQuery.QueryResultsOption;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.QueryResponse;
+import com.google.cloud.bigquery.Schema;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Reads a completed query's rows with several readers at once. The result is split into
+ * ranges of pageSize rows, each fetched by start index on one of the reader threads, then
+ * decoded on a fork-join pool. Ranges are handed to the consumer on the calling thread,
+ * either in row order or as soon as they're decoded. At most 2 ranges per reader are
+ * fetched ahead of the consumer, which bounds the memory used.
+ */
+public class BQQParallelReader {
+  /** Number of reader threads unless specified. */
+  public static final int DEFAULT_READERS = 4;
+  /** Number of rows per range unless specified. */
+  public static final long DEFAULT_PAGE_SIZE = 10000L;
+
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  private final RangeFetcher mFetcher;
+  private final Schema mSchema;
+  private final long mTotalRows;
+  private int mReaders = DEFAULT_READERS;
+  private long mPageSize = DEFAULT_PAGE_SIZE;
+  private ForkJoinPool mDecodePool = ForkJoinPool.commonPool();
+
+  private volatile long mRowsRead = 0;
+  private volatile boolean mReading = false;
+  private volatile long mStartNanos;
+  private volatile long mElapsedNanos = 0;
+
+  /**
+   * @param bigquery client to read with
+   * @param jobId the completed query job
+   * @param schema the result's schema
+   * @param totalRows number of rows in the result
+   * @param hedger the hedger range fetches go through, or null to not hedge
+   */
+  BQQParallelReader(BigQuery bigquery, JobId jobId, Schema schema, long totalRows,
+      BQQHedger hedger) {
+    this((startIndex, maxRows) -> {
+      Supplier<QueryResponse> rpc = () -> bigquery.getQueryResults(jobId,
+          QueryResultsOption.startIndex(startIndex), QueryResultsOption.pageSize(maxRows));
+      QueryResponse response;
+      try {
+        response = hedger == null ? rpc.get() : hedger.call(rpc);
+      } catch (InterruptedException e) {
+        // the read was cancelled
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Interrupted while fetching rows " + startIndex);
+      }
+      List<List<FieldValue>> rows = new ArrayList<>();
+      for (List<FieldValue> row : response.getResult().getValues()) {
+        rows.add(row);
+      }
+      return rows;
+    }, schema, totalRows);
+  }
+
+  BQQParallelReader(RangeFetcher fetcher, Schema schema, long totalRows) {
+    mFetcher = fetcher;
+    mSchema = schema;
+    mTotalRows = totalRows;
+  }
+
+  /**
+   * @param readers number of ranges fetched at once, 4 by default
+   * @return this reader
+   */
+  public BQQParallelReader setReaders(int readers) {
+    if (readers < 1) {
+      throw new IllegalArgumentException("readers must be at least 1");
+    }
+    mReaders = readers;
+    return this;
+  }
+
+  /**
+   * @param pageSize number of rows per range, 10000 by default
+   * @return this reader
+   */
+  public BQQParallelReader setPageSize(long pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be at least 1");
+    }
+    mPageSize = pageSize;
+    return this;
+  }
+
+  /**
+   * @param decodePool pool rows are decoded on, the common pool by default
+   * @return this reader
+   */
+  public BQQParallelReader setDecodePool(ForkJoinPool decodePool) {
+    if (decodePool == null) {
+      throw new IllegalArgumentException("decodePool is null");
+    }
+    mDecodePool = decodePool;
+    return this;
+  }
+
+  /**
+   * Reads every row, decoding them in parallel and collecting them in row order.
+   * @param decoder turns a row into the caller's type, called from several threads at once
+   * @return the decoded rows
+   * @throws BQQException if a range could not be fetched
+   * @throws InterruptedException if interrupted while waiting for a range
+   */
+  public <T> List<T> readAll(Function<List<FieldValue>, T> decoder)
+      throws BQQException, InterruptedException {
+    List<T> rows = new ArrayList<>((int) Math.min(mTotalRows, Integer.MAX_VALUE - 8));
+    read(decoder, rows::addAll, true);
+    return rows;
+  }
+
+  /**
+   * Reads every row, handing decoded ranges to the consumer on the calling thread.
+   * @param decoder turns a row into the caller's type, called from several threads at once
+   * @param consumer receives each range of decoded rows
+   * @param ordered true to receive ranges in row order, false to receive them as they're ready
+   * @throws BQQException if a range could not be fetched
+   * @throws InterruptedException if interrupted while waiting for a range
+   */
+  public <T> void read(Function<List<FieldValue>, T> decoder, Consumer<List<T>> consumer,
+      boolean ordered) throws BQQException, InterruptedException {
+    int ranges = (int) ((mTotalRows + mPageSize - 1) / mPageSize);
+    int window = 2 * mReaders;
+    ExecutorService readers = Executors.newFixedThreadPool(mReaders, r -> {
+      Thread t = new Thread(r, "bqq-reader-" + THREAD_COUNT.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    List<CompletableFuture<List<T>>> futures = new ArrayList<>();
+    BlockingQueue<CompletableFuture<List<T>>> done = new LinkedBlockingQueue<>();
+    mRowsRead = 0;
+    mStartNanos = System.nanoTime();
+    mReading = true;
+    try {
+      for (int delivered = 0; delivered < ranges; delivered++) {
+        while (futures.size() < ranges && futures.size() - delivered < window) {
+          long start = futures.size() * mPageSize;
+          long count = Math.min(mPageSize, mTotalRows - start);
+          CompletableFuture<List<T>> range = CompletableFuture
+              .supplyAsync(() -> fetch(start, count), readers)
+              .thenApplyAsync(rows -> decode(rows, decoder), mDecodePool);
+          range.whenComplete((rows, error) -> done.add(range));
+          futures.add(range);
+        }
+        List<T> rows = (ordered ? futures.get(delivered) : done.take()).get();
+        mRowsRead += rows.size();
+        consumer.accept(rows);
+      }
+    } catch (ExecutionException e) {
+      Throwable t = BQQException.unwrap(e);
+      if (t instanceof BQQException) {
+        throw (BQQException) t;
+      }
+      throw new BQQException("Failed to read query results: " + t);
+    } finally {
+      mElapsedNanos = System.nanoTime() - mStartNanos;
+      mReading = false;
+      for (CompletableFuture<List<T>> range : futures) {
+        range.cancel(true);
+      }
+      readers.shutdownNow();
+    }
+  }
+
+  /**
+   * Fetches a range, following up with further requests if the server returned fewer rows
+   * than asked for.
+   */
+  private List<List<FieldValue>> fetch(long start, long count) {
+    List<List<FieldValue>> rows = new ArrayList<>((int) count);
+    while (rows.size() < count) {
+      List<List<FieldValue>> page = mFetcher.fetch(start + rows.size(), count - rows.size());
+      if (page.isEmpty()) {
+        break;
+      }
+      rows.addAll(page);
+    }
+    return rows;
+  }
+
+  private static <T> List<T> decode(List<List<FieldValue>> rows,
+      Function<List<FieldValue>, T> decoder) {
+    List<T> decoded = new ArrayList<>(rows.size());
+    for (List<FieldValue> row : rows) {
+      decoded.add(decoder.apply(row));
+    }
+    return decoded;
+  }
+
+  public Schema getSchema() {
+    return mSchema;
+  }
+
+  /**
+   * @return total number of rows in the result
+   */
+  public long getTotalRows() {
+    return mTotalRows;
+  }
+
+  /**
+   * @return number of rows handed to the consumer by the current or last read
+   */
+  public long getRowsRead() {
+    return mRowsRead;
+  }
+
+  /**
+   * @return time in ms the current or last read took
+   */
+  public long getElapsedMillis() {
+    long elapsedNanos = mReading ? System.nanoTime() - mStartNanos : mElapsedNanos;
+    return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+  }
+
+  /**
+   * @return throughput of the current or last read, in rows per second
+   */
+  public double getRowsPerSecond() {
+    long elapsedMs = getElapsedMillis();
+    return elapsedMs == 0 ? 0 : mRowsRead * 1000.0 / elapsedMs;
+  }
+
+  @Override
+  public String toString() {
+    return "BQQParallelReader{rows=" + mRowsRead + "/" + mTotalRows + ", readers=" + mReaders
+        + ", pageSize=" + mPageSize + ", elapsedMs=" + getElapsedMillis()
+        + ", rowsPerSecond=" + Math.round(getRowsPerSecond()) + "}";
+  }
+
+  /**
+   * Fetches up to maxRows rows starting at a row index.
+   */
+  interface RangeFetcher {
+    List<List<FieldValue>> fetch(long startIndex, long maxRows);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe tally of the status check RPCs made per query, used to tune polling.
+ */
+public class BQQPollCounter {
+  private final LongAdder mPolls = new LongAdder();
+  private final LongAdder mQueries = new LongAdder();
+  private final AtomicInteger mMaxPolls = new AtomicInteger();
+
+  /**
+   * Records a query whose job finished.
+   * @param polls number of status checks made for the query
+   */
+  public void record(int polls) {
+    mPolls.add(polls);
+    mQueries.increment();
+    mMaxPolls.accumulateAndGet(polls, Math::max);
+  }
+
+  /**
+   * @return total number of status check RPCs made
+   */
+  public long getPollCount() {
+    return mPolls.sum();
+  }
+
+  /**
+   * @return number of queries recorded
+   */
+  public long getQueryCount() {
+    return mQueries.sum();
+  }
+
+  /**
+   * @return most status checks made for a single query
+   */
+  public int getMaxPollsPerQuery() {
+    return mMaxPolls.get();
+  }
+
+  /**
+   * @return mean number of status checks per query, or 0 if none recorded
+   */
+  public double getMeanPollsPerQuery() {
+    long queries = mQueries.sum();
+    return queries == 0 ? 0 : (double) mPolls.sum() / queries;
+  }
+
+  @Override
+  public String toString() {
+    return "BQQPollCounter{queries=" + getQueryCount() + ", polls=" + getPollCount()
+        + ", mean=" + getMeanPollsPerQuery() + ", max=" + getMaxPollsPerQuery() + "}";
+  }
+}
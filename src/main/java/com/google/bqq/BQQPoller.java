@@ -0,0 +1,338 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResponse;
+import com.google.cloud.bigquery.QueryResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs queries without parking a thread per query. A small submit pool starts jobs,
+ * a single scheduler thread tracks every in-flight job and hands status checks to a
+ * small status pool, which completes the query's future once its job is done.
+ * The number of running jobs is bounded by a permit count instead of a thread count:
+ * queries wait in the queue until a dispatcher thread gets them a permit.
+ */
+class BQQPoller {
+  /** Server side wait used when starting a job, unless the request specifies its own. */
+  static final long SUBMIT_MAX_WAIT_MS = 1000L;
+
+  private final BlockingQueue<Runnable> mQueue;
+  private final Semaphore mPermits;
+  private final Thread mDispatcher;
+  private final ThreadPoolExecutor mSubmitPool;
+  private final ThreadPoolExecutor mStatusPool;
+  private final ScheduledExecutorService mScheduler;
+  private final Map<CompletableFuture<QueryResult>, BQQCallable> mInFlight =
+      new ConcurrentHashMap<>();
+  private volatile boolean mShutdown = false;
+
+  /**
+   * @param maxConcurrentQueries max number of BigQuery jobs running at once
+   * @param ioThreads number of threads in each of the submit and status pools
+   * @param queue queue queries wait in until a permit is free
+   */
+  BQQPoller(int maxConcurrentQueries, int ioThreads, BlockingQueue<Runnable> queue) {
+    mQueue = queue;
+    mPermits = new Semaphore(maxConcurrentQueries);
+    mSubmitPool = new ThreadPoolExecutor(ioThreads, ioThreads,
+        1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        namedThreads("bqq-submit"));
+    mStatusPool = new ThreadPoolExecutor(ioThreads, ioThreads,
+        1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        namedThreads("bqq-status"));
+    mScheduler = Executors.newSingleThreadScheduledExecutor(namedThreads("bqq-poller"));
+    mDispatcher = namedThreads("bqq-dispatcher").newThread(this::dispatch);
+    mDispatcher.start();
+  }
+
+  /**
+   * Wraps a query into a task to be put in the poller's queue. Once the dispatcher gets it
+   * a permit, the poller starts its job and completes the task's future when it is done.
+   * @param callable the query to run
+   * @return the task to queue
+   */
+  BQQScheduledTask newTask(BQQCallable callable) {
+    if (mShutdown) {
+      throw new RejectedExecutionException("BQQPoller is shut down");
+    }
+    return new StartTask(callable, new CompletableFuture<QueryResult>());
+  }
+
+  /**
+   * @return number of queries waiting for a permit
+   */
+  int getNumQueued() {
+    return mQueue.size();
+  }
+
+  /**
+   * @return number of queries holding a permit
+   */
+  int getNumInFlight() {
+    return mInFlight.size();
+  }
+
+  /**
+   * Stops accepting queries and waits for in-flight jobs to finish. Queries still running
+   * after the timeout have their futures cancelled.
+   * @param terminationTimeout time in ms to wait for in-flight queries
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void shutdown(long terminationTimeout) throws InterruptedException {
+    shutdown(terminationTimeout, () -> { });
+  }
+
+  /**
+   * Stops accepting queries and waits for in-flight jobs to finish. Queries still running
+   * after the timeout have their futures cancelled.
+   * @param terminationTimeout time in ms to wait for in-flight queries
+   * @param beforeForce run once the wait is over if queries are left, before their futures
+   *     are cancelled
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void shutdown(long terminationTimeout, Runnable beforeForce) throws InterruptedException {
+    mShutdown = true;
+
+    long deadline = System.currentTimeMillis() + terminationTimeout;
+    mDispatcher.join(Math.max(1, terminationTimeout));
+    mSubmitPool.shutdown();
+    // the waits share the timeout, so shutdown takes terminationTimeout at most
+    mSubmitPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+        TimeUnit.MILLISECONDS);
+    while (!mInFlight.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    if (!mInFlight.isEmpty() || !mQueue.isEmpty()) {
+      beforeForce.run();
+    }
+    mDispatcher.interrupt();
+    mDispatcher.join(100);
+    List<Runnable> neverRun = new ArrayList<>(mSubmitPool.shutdownNow());
+    mQueue.drainTo(neverRun);
+    mScheduler.shutdownNow();
+    mStatusPool.shutdownNow();
+    for (Runnable task : neverRun) {
+      if (task instanceof StartTask) {
+        ((StartTask) task).mFuture.cancel(false);
+      }
+    }
+    for (CompletableFuture<QueryResult> future : mInFlight.keySet()) {
+      future.cancel(true);
+    }
+  }
+
+  /**
+   * Dispatcher loop, hands queued queries to the submit pool as permits free up
+   * until shut down and drained.
+   */
+  private void dispatch() {
+    try {
+      while (!mShutdown || !mQueue.isEmpty()) {
+        mPermits.acquire();
+        Runnable task = mQueue.poll(100, TimeUnit.MILLISECONDS);
+        if (task == null) {
+          mPermits.release();
+          continue;
+        }
+        try {
+          mSubmitPool.execute(task);
+        } catch (RejectedExecutionException e) {
+          mPermits.release();
+          mQueue.offer(task);
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      // shutdown timed out, stop dispatching
+    }
+  }
+
+  /**
+   * Runs on the submit pool with a permit held, starts the job once the submit rate limit
+   * allows.
+   */
+  private void start(BQQCallable callable, CompletableFuture<QueryResult> future) {
+    callable.markStarted();
+    mInFlight.put(future, callable);
+    future.whenComplete((result, error) -> {
+      mInFlight.remove(future);
+      mPermits.release();
+    });
+    if (future.isDone()) {
+      // cancelled while queued
+      return;
+    }
+
+    // wait for a rate limit permit without holding up the submit thread
+    long waitNanos = callable.reserveSubmit();
+    if (waitNanos > 0) {
+      runLater(waitNanos, mSubmitPool, () -> submit(callable, future), future);
+      return;
+    }
+    submit(callable, future);
+  }
+
+  /**
+   * Runs on the submit pool. Starts the job.
+   */
+  private void submit(BQQCallable callable, CompletableFuture<QueryResult> future) {
+    if (future.isDone()) {
+      return;
+    }
+    try {
+      BigQuery bigquery = callable.getBigQuery();
+      QueryRequest request = callable.getQueryRequest();
+      if (request.getMaxWaitTime() == null) {
+        request = request.toBuilder().setMaxWaitTime(SUBMIT_MAX_WAIT_MS).build();
+      }
+      check(callable, bigquery, callable.submit(bigquery, request), future);
+    } catch (Exception e) {
+      retrySubmit(callable, e, future);
+    }
+  }
+
+  /**
+   * Starts a new job after a backoff if the retry policy allows, otherwise fails the query.
+   */
+  private void retrySubmit(BQQCallable callable, Exception error,
+      CompletableFuture<QueryResult> future) {
+    long delayMs = callable.getSubmitRetryDelayMillis(error);
+    if (delayMs < 0) {
+      future.completeExceptionally(BQQException.unwrap(error));
+      return;
+    }
+    runLater(TimeUnit.MILLISECONDS.toNanos(delayMs) + callable.reserveSubmit(), mSubmitPool,
+        () -> submit(callable, future), future);
+  }
+
+  /**
+   * Completes the future if the job is done, otherwise schedules the next status check.
+   */
+  private void check(BQQCallable callable, BigQuery bigquery, QueryResponse response,
+      CompletableFuture<QueryResult> future) {
+    if (response.jobCompleted()) {
+      QueryResult result;
+      try {
+        result = callable.getResult(response);
+      } catch (BQQException e) {
+        retrySubmit(callable, e, future);
+        return;
+      }
+      future.complete(result);
+      return;
+    }
+
+    try {
+      Runnable poll = () -> poll(callable, bigquery, response, future);
+      mScheduler.schedule(() -> runLater(callable.reservePoll(), mStatusPool, poll, future),
+          callable.getPollDelayMillis(), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      future.cancel(true);
+    }
+  }
+
+  /**
+   * Runs a step of a query on a pool once delayNanos passed, cancelling the query's future
+   * if the poller was shut down in the meantime.
+   */
+  private void runLater(long delayNanos, ThreadPoolExecutor pool, Runnable step,
+      CompletableFuture<QueryResult> future) {
+    try {
+      if (delayNanos <= 0) {
+        pool.execute(step);
+      } else {
+        mScheduler.schedule(() -> runLater(0, pool, step, future),
+            delayNanos, TimeUnit.NANOSECONDS);
+      }
+    } catch (RejectedExecutionException e) {
+      future.cancel(true);
+    }
+  }
+
+  /**
+   * Runs on the status pool. Checks on a job once.
+   */
+  private void poll(BQQCallable callable, BigQuery bigquery, QueryResponse previous,
+      CompletableFuture<QueryResult> future) {
+    if (future.isDone()) {
+      return;
+    }
+    QueryResponse response;
+    try {
+      response = callable.poll(bigquery, previous.getJobId());
+    } catch (Exception e) {
+      // check on the same job again rather than starting it over
+      long delayMs = callable.getPollRetryDelayMillis(e);
+      if (delayMs < 0) {
+        future.completeExceptionally(BQQException.unwrap(e));
+        return;
+      }
+      runLater(TimeUnit.MILLISECONDS.toNanos(delayMs) + callable.reservePoll(), mStatusPool,
+          () -> poll(callable, bigquery, previous, future), future);
+      return;
+    }
+    check(callable, bigquery, response, future);
+  }
+
+  /**
+   * A queued query, started once the dispatcher got it a permit.
+   */
+  private final class StartTask implements BQQScheduledTask {
+    private final BQQCallable mCallable;
+    private final CompletableFuture<QueryResult> mFuture;
+
+    StartTask(BQQCallable callable, CompletableFuture<QueryResult> future) {
+      mCallable = callable;
+      mFuture = future;
+    }
+
+    @Override
+    public BQQCallable getCallable() {
+      return mCallable;
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> getFuture() {
+      return mFuture;
+    }
+
+    @Override
+    public void run() {
+      start(mCallable, mFuture);
+    }
+  }
+
+  private static ThreadFactory namedThreads(String prefix) {
+    AtomicInteger count = new AtomicInteger();
+    return r -> new Thread(r, prefix + "-" + count.incrementAndGet());
+  }
+}
@@ -0,0 +1,181 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how often a running job is checked on.
+ */
+public interface BQQPollingStrategy {
+
+  /**
+   * @param attempt the status check about to be made, starting at 1
+   * @return time in ms to wait before making the check
+   */
+  long getDelayMillis(int attempt);
+
+  /**
+   * @return time in ms BigQuery may hold a status check open waiting for the job to finish,
+   *     or 0 to return immediately
+   */
+  long getServerWaitMillis();
+
+  /**
+   * Checks on the job every intervalMs.
+   * @param intervalMs time between checks
+   * @return a fixed interval strategy
+   */
+  static BQQPollingStrategy fixed(long intervalMs) {
+    return new Fixed(intervalMs);
+  }
+
+  /**
+   * Checks quickly at first, then backs off exponentially. Good for a mix of cache hits
+   * and long running queries.
+   * @param initialMs wait before the first check
+   * @param multiplier growth of the wait after each check
+   * @param maxMs cap on the wait between checks
+   * @param jitter fraction (0-1) of each wait that is randomized, to spread out checks
+   * @return an exponential backoff strategy
+   */
+  static BQQPollingStrategy exponential(long initialMs, double multiplier, long maxMs,
+      double jitter) {
+    return new Exponential(initialMs, multiplier, maxMs, jitter);
+  }
+
+  /**
+   * Has BigQuery hold each status check open for up to maxWaitMs until the job finishes,
+   * so the result is returned as soon as it is ready with very few RPCs. Each check keeps
+   * its thread busy for up to maxWaitMs, so this fits THREAD_POOL mode best.
+   * @param maxWaitMs server side wait per check, keep below the HTTP read timeout (20s)
+   * @return a long polling strategy
+   */
+  static BQQPollingStrategy longPoll(long maxWaitMs) {
+    return new LongPoll(maxWaitMs);
+  }
+
+  /**
+   * @return the strategy used when none is set, 100ms backing off by 1.5x up to 5s
+   */
+  static BQQPollingStrategy defaultStrategy() {
+    return Exponential.DEFAULT;
+  }
+
+  /**
+   * Checks on a job at a fixed interval.
+   */
+  final class Fixed implements BQQPollingStrategy {
+    private final long mIntervalMs;
+
+    Fixed(long intervalMs) {
+      if (intervalMs < 0) {
+        throw new IllegalArgumentException("intervalMs must not be negative");
+      }
+      mIntervalMs = intervalMs;
+    }
+
+    @Override
+    public long getDelayMillis(int attempt) {
+      return mIntervalMs;
+    }
+
+    @Override
+    public long getServerWaitMillis() {
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Fixed{" + mIntervalMs + "ms}";
+    }
+  }
+
+  /**
+   * Checks on a job with exponentially growing, jittered and capped waits.
+   */
+  final class Exponential implements BQQPollingStrategy {
+    static final Exponential DEFAULT = new Exponential(100, 1.5, 5000, 0.2);
+
+    private final long mInitialMs;
+    private final double mMultiplier;
+    private final long mMaxMs;
+    private final double mJitter;
+
+    Exponential(long initialMs, double multiplier, long maxMs, double jitter) {
+      if (initialMs < 0 || maxMs < initialMs) {
+        throw new IllegalArgumentException("Need 0 <= initialMs <= maxMs");
+      }
+      if (multiplier < 1) {
+        throw new IllegalArgumentException("multiplier must be at least 1");
+      }
+      if (jitter < 0 || jitter > 1) {
+        throw new IllegalArgumentException("jitter must be between 0 and 1");
+      }
+      mInitialMs = initialMs;
+      mMultiplier = multiplier;
+      mMaxMs = maxMs;
+      mJitter = jitter;
+    }
+
+    @Override
+    public long getDelayMillis(int attempt) {
+      double delay = Math.min(mMaxMs, mInitialMs * Math.pow(mMultiplier, attempt - 1));
+      if (mJitter > 0) {
+        delay *= 1 + mJitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+      }
+      return Math.min(mMaxMs, Math.round(delay));
+    }
+
+    @Override
+    public long getServerWaitMillis() {
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Exponential{" + mInitialMs + "ms x" + mMultiplier + " <= " + mMaxMs + "ms, jitter "
+          + mJitter + "}";
+    }
+  }
+
+  /**
+   * Checks on a job back to back, letting BigQuery hold each check open until the job is done.
+   */
+  final class LongPoll implements BQQPollingStrategy {
+    private final long mMaxWaitMs;
+
+    LongPoll(long maxWaitMs) {
+      if (maxWaitMs <= 0) {
+        throw new IllegalArgumentException("maxWaitMs must be positive");
+      }
+      mMaxWaitMs = maxWaitMs;
+    }
+
+    @Override
+    public long getDelayMillis(int attempt) {
+      return 0;
+    }
+
+    @Override
+    public long getServerWaitMillis() {
+      return mMaxWaitMs;
+    }
+
+    @Override
+    public String toString() {
+      return "LongPoll{" + mMaxWaitMs + "ms}";
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+/**
+ * Lane a query waits in before it is run. Queued queries in a higher lane run first,
+ * but queries which waited long enough get promoted so lower lanes are never starved.
+ */
+public enum BQQPriority {
+  /** Queries a user is waiting on. */
+  INTERACTIVE,
+
+  /** Default lane. */
+  NORMAL,
+
+  /** Bulk work, such-as scheduled reports, which only needs to finish eventually. */
+  BATCH
+}
@@ -0,0 +1,139 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.QueryParameterValue;
+import com.google.cloud.bigquery.QueryRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Canonical identity of a QueryRequest: everything that decides what the query returns
+ * (SQL, parameters, SQL dialect, default dataset, dry run, page size), and nothing that
+ * doesn't (max wait time, use of BigQuery's own query cache).
+ * Two requests with equal keys return the same rows.
+ */
+public final class BQQQueryKey {
+  private final String mCanonicalForm;
+  private volatile String mDigest;
+
+  private BQQQueryKey(String canonicalForm) {
+    mCanonicalForm = canonicalForm;
+  }
+
+  /**
+   * @param queryRequest request to build a key for
+   * @return the request's key
+   */
+  public static BQQQueryKey of(QueryRequest queryRequest) {
+    StringBuilder sb = new StringBuilder();
+    append(sb, "query", queryRequest.getQuery());
+    append(sb, "legacySql", String.valueOf(queryRequest.useLegacySql()));
+    append(sb, "dryRun", String.valueOf(queryRequest.dryRun()));
+    append(sb, "pageSize", String.valueOf(queryRequest.getPageSize()));
+    append(sb, "defaultDataset", String.valueOf(queryRequest.getDefaultDataset()));
+
+    // named parameters are order independent
+    Map<String, QueryParameterValue> named =
+        new TreeMap<>(queryRequest.getNamedParameters());
+    for (Map.Entry<String, QueryParameterValue> param : named.entrySet()) {
+      append(sb, "@" + param.getKey(), encode(param.getValue()));
+    }
+    List<QueryParameterValue> positional = queryRequest.getPositionalParameters();
+    for (int i = 0; i < positional.size(); ++i) {
+      append(sb, "?" + i, encode(positional.get(i)));
+    }
+    return new BQQQueryKey(sb.toString());
+  }
+
+  /**
+   * @param name name of an option the query is run with
+   * @param value the option's value
+   * @return a key which also tells apart queries run with different values of the option
+   */
+  BQQQueryKey with(String name, String value) {
+    StringBuilder sb = new StringBuilder(mCanonicalForm);
+    append(sb, name, value);
+    return new BQQQueryKey(sb.toString());
+  }
+
+  /**
+   * @return an unambiguous string holding all of the key's fields
+   */
+  public String getCanonicalForm() {
+    return mCanonicalForm;
+  }
+
+  /**
+   * @return hex SHA-256 of the canonical form, a fixed size stand-in for the key in storage
+   */
+  public String getDigest() {
+    String digest = mDigest;
+    if (digest == null) {
+      try {
+        byte[] hash = MessageDigest.getInstance("SHA-256")
+            .digest(mCanonicalForm.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+          sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        digest = sb.toString();
+      } catch (NoSuchAlgorithmException e) {
+        // every JVM supports SHA-256
+        throw new IllegalStateException(e);
+      }
+      mDigest = digest;
+    }
+    return digest;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof BQQQueryKey && mCanonicalForm.equals(((BQQQueryKey) o).mCanonicalForm);
+  }
+
+  @Override
+  public int hashCode() {
+    return mCanonicalForm.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "BQQQueryKey{" + mCanonicalForm + "}";
+  }
+
+  private static String encode(QueryParameterValue value) {
+    StringBuilder sb = new StringBuilder();
+    append(sb, "type", String.valueOf(value.getType()));
+    append(sb, "value", String.valueOf(value.getValue()));
+    if (value.getArrayValues() != null) {
+      append(sb, "arrayType", String.valueOf(value.getArrayType()));
+      for (QueryParameterValue element : value.getArrayValues()) {
+        append(sb, "element", encode(element));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Appends a length prefixed field, so no value can be mistaken for a field boundary.
+   */
+  private static void append(StringBuilder sb, String name, String value) {
+    sb.append(name).append('=').append(value.length()).append(':').append(value).append(';');
+  }
+}
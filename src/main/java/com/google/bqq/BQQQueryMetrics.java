@@ -0,0 +1,141 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.BigQueryError;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters and latency histograms of the queries run by a BQQClient. Queries report
+ * their RPCs as they make them and their lifecycle timestamps once their future completes.
+ * Nothing here takes a lock, so recording stays off the queries' critical path.
+ */
+final class BQQQueryMetrics {
+  /** Failure reason of queries whose future was cancelled. */
+  static final String CANCELLED = "cancelled";
+  /** Failure reason of queries which ran past their deadline. */
+  static final String DEADLINE_EXCEEDED = "deadlineExceeded";
+
+  private final BQQLatencyHistogram mQueueWait = new BQQLatencyHistogram();
+  private final BQQLatencyHistogram mSubmit = new BQQLatencyHistogram();
+  private final BQQLatencyHistogram mExecution = new BQQLatencyHistogram();
+  private final BQQLatencyHistogram mFetch = new BQQLatencyHistogram();
+  private final BQQLatencyHistogram mTotal = new BQQLatencyHistogram();
+  private final LongAdder mSubmissions = new LongAdder();
+  private final LongAdder mPolls = new LongAdder();
+  private final LongAdder mSuccesses = new LongAdder();
+  private final LongAdder mJobsCancelled = new LongAdder();
+  private final LongAdder mRemovedFromQueue = new LongAdder();
+  private final Map<String, LongAdder> mFailures = new ConcurrentHashMap<>();
+
+  /**
+   * Counts a job start RPC, retries included.
+   */
+  void onSubmit() {
+    mSubmissions.increment();
+  }
+
+  /**
+   * Counts a status check RPC.
+   */
+  void onPoll() {
+    mPolls.increment();
+  }
+
+  /**
+   * Counts a jobs.cancel RPC which stopped a running job.
+   */
+  void onJobCancelled() {
+    mJobsCancelled.increment();
+  }
+
+  /**
+   * Counts a cancelled or timed out query taken out of the queue before it ran.
+   */
+  void onRemovedFromQueue() {
+    mRemovedFromQueue.increment();
+  }
+
+  /**
+   * Records a query whose future completed. Phases the query didn't reach are left out.
+   * @param callable the query
+   * @param error the failure, or null if the query succeeded
+   */
+  void onDone(BQQCallable callable, Throwable error) {
+    long now = System.nanoTime();
+    if (error == null) {
+      mSuccesses.increment();
+    } else {
+      mFailures.computeIfAbsent(reasonOf(error), reason -> new LongAdder()).increment();
+    }
+
+    long enqueued = callable.getEnqueuedNanos();
+    long started = callable.getStartedNanos();
+    long created = callable.getJobCreatedNanos();
+    long completed = callable.getJobCompletedNanos();
+    long fetched = callable.getResultFetchedNanos();
+    record(mQueueWait, enqueued, started);
+    record(mSubmit, started, created);
+    record(mExecution, created, completed);
+    record(mFetch, completed, fetched);
+    record(mTotal, enqueued, now);
+  }
+
+  private static void record(BQQLatencyHistogram histogram, long fromNanos, long toNanos) {
+    if (fromNanos != 0 && toNanos != 0) {
+      histogram.record(TimeUnit.NANOSECONDS.toMicros(toNanos - fromNanos));
+    }
+  }
+
+  /**
+   * @param error a query's failure
+   * @return the BigQuery error reason, such-as "rateLimitExceeded", "cancelled" or
+   *     "deadlineExceeded", or the failure's class name if it has no reason
+   */
+  static String reasonOf(Throwable error) {
+    Throwable t = BQQException.unwrap(error);
+    if (t instanceof CancellationException) {
+      return CANCELLED;
+    }
+    if (t instanceof BQQDeadlineExceededException) {
+      return DEADLINE_EXCEEDED;
+    }
+    if (t instanceof BQQException && ((BQQException) t).getBQErrors() != null) {
+      for (BigQueryError bqError : ((BQQException) t).getBQErrors()) {
+        if (bqError != null && bqError.getReason() != null) {
+          return bqError.getReason();
+        }
+      }
+    }
+    return t.getClass().getSimpleName();
+  }
+
+  /**
+   * @return a copy of the counters and histograms as they are now
+   */
+  BQQStats snapshot() {
+    Map<String, Long> failures = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> failure : mFailures.entrySet()) {
+      failures.put(failure.getKey(), failure.getValue().sum());
+    }
+    return new BQQStats(mSubmissions.sum(), mPolls.sum(), mSuccesses.sum(), failures,
+        mJobsCancelled.sum(), mRemovedFromQueue.sum(),
+        mQueueWait.copy(), mSubmit.copy(), mExecution.copy(), mFetch.copy(), mTotal.copy());
+  }
+}
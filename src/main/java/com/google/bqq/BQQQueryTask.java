@@ -0,0 +1,66 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.QueryResult;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A queued BQQCallable which completes a CompletableFuture straight from the worker thread.
+ * Cancelling the CompletableFuture, or failing it from outside, such as at the query's
+ * deadline, cancels the task, interrupting its worker if running.
+ */
+class BQQQueryTask extends FutureTask<QueryResult> implements BQQScheduledTask {
+  private final BQQCallable mCallable;
+  private final CompletableFuture<QueryResult> mFuture = new CompletableFuture<>();
+
+  BQQQueryTask(BQQCallable callable) {
+    super(callable);
+    mCallable = callable;
+    mFuture.whenComplete((result, error) -> {
+      if (!isDone()) {
+        cancel(true);
+      }
+    });
+  }
+
+  @Override
+  public BQQCallable getCallable() {
+    return mCallable;
+  }
+
+  @Override
+  public CompletableFuture<QueryResult> getFuture() {
+    return mFuture;
+  }
+
+  @Override
+  protected void done() {
+    if (isCancelled()) {
+      mFuture.cancel(false);
+      return;
+    }
+
+    try {
+      mFuture.complete(get());
+    } catch (ExecutionException e) {
+      mFuture.completeExceptionally(BQQException.unwrap(e));
+    } catch (InterruptedException e) {
+      // can't happen, the task is done
+      Thread.currentThread().interrupt();
+    }
+  }
+}
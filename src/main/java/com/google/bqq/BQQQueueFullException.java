@@ -0,0 +1,27 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown, or used to fail a query's future, when BQQClient's queue has no room for it.
+ */
+public class BQQQueueFullException extends RejectedExecutionException {
+  private static final long serialVersionUID = 1L;
+
+  public BQQQueueFullException(String message) {
+    super(message);
+  }
+}
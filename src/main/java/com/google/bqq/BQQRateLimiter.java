@@ -0,0 +1,124 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket limiting the rate of an API call. Up to burst calls can be made at once,
+ * after which calls are spaced 1/permitsPerSecond apart.
+ * Callers reserve a permit and then wait outside of any lock, so waiting callers don't hold
+ * each other up beyond their turn, and callers which can't block may schedule the call
+ * for later instead. Every wait is recorded.
+ */
+public class BQQRateLimiter {
+  private final long mIntervalNanos;
+  private final int mBurst;
+  private final LongSupplier mNanoClock;
+
+  // when the bucket would be full again if no more permits were taken
+  private long mFullAtNanos;
+
+  private long mAcquired = 0;
+  private long mThrottled = 0;
+  private long mTotalWaitNanos = 0;
+  private long mMaxWaitNanos = 0;
+
+  /**
+   * @param permitsPerSecond sustained number of calls per second
+   * @param burst number of calls which can be made at once after a quiet period
+   */
+  public BQQRateLimiter(double permitsPerSecond, int burst) {
+    this(permitsPerSecond, burst, System::nanoTime);
+  }
+
+  BQQRateLimiter(double permitsPerSecond, int burst, LongSupplier nanoClock) {
+    if (permitsPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("permitsPerSecond and burst must be positive");
+    }
+    mIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    mBurst = burst;
+    mNanoClock = nanoClock;
+    mFullAtNanos = nanoClock.getAsLong();
+  }
+
+  /**
+   * Waits for a permit.
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void acquire() throws InterruptedException {
+    long waitNanos = reserve();
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * Takes a permit, to be used once the returned time has passed.
+   * @return time in ns to wait before making the call
+   */
+  public synchronized long reserve() {
+    long now = mNanoClock.getAsLong();
+    if (now - mFullAtNanos > 0) {
+      mFullAtNanos = now;
+    }
+    // the bucket holds burst permits, so a permit is free unless it's short of them all
+    long waitNanos = Math.max(0, mFullAtNanos - now - (mBurst - 1) * mIntervalNanos);
+    mFullAtNanos += mIntervalNanos;
+
+    mAcquired++;
+    if (waitNanos > 0) {
+      mThrottled++;
+      mTotalWaitNanos += waitNanos;
+      mMaxWaitNanos = Math.max(mMaxWaitNanos, waitNanos);
+    }
+    return waitNanos;
+  }
+
+  /**
+   * @return number of permits handed out
+   */
+  public synchronized long getAcquiredCount() {
+    return mAcquired;
+  }
+
+  /**
+   * @return number of permits which had to be waited for
+   */
+  public synchronized long getThrottledCount() {
+    return mThrottled;
+  }
+
+  /**
+   * @return total time in ms callers waited for permits
+   */
+  public synchronized long getTotalWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos);
+  }
+
+  /**
+   * @return longest time in ms a caller waited for a permit
+   */
+  public synchronized long getMaxWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "BQQRateLimiter{perSecond=" + (TimeUnit.SECONDS.toNanos(1) / (double) mIntervalNanos)
+        + ", burst=" + mBurst + ", acquired=" + mAcquired + ", throttled=" + mThrottled
+        + ", totalWaitMs=" + getTotalWaitMillis() + ", maxWaitMs=" + getMaxWaitMillis() + "}";
+  }
+}
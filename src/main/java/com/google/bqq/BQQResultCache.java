@@ -0,0 +1,301 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.QueryResult;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded in-memory cache of QueryResults keyed by BQQQueryKey.
+ * Entries expire after a TTL, and the cache holds at most maxBytes of (estimated) rows.
+ * When full, the least recently used entries are evicted, but only if the new entry has
+ * been asked for more often than the entry it would evict (a TinyLFU admission filter),
+ * so a burst of one-off queries can't flush out the popular ones.
+ * Only a result's first page is held in memory, later pages are fetched from BigQuery.
+ */
+public class BQQResultCache {
+  private static final long ENTRY_OVERHEAD_BYTES = 128;
+  private static final long ROW_OVERHEAD_BYTES = 32;
+  private static final long VALUE_OVERHEAD_BYTES = 48;
+
+  private final long mMaxBytes;
+  private final long mTtlNanos;
+  private final LongSupplier mNanoClock;
+  private final FrequencySketch mFrequency = new FrequencySketch();
+  // access ordered, eldest entry is the least recently used
+  private final LinkedHashMap<BQQQueryKey, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+  private long mWeightedSize = 0;
+
+  private long mHits = 0;
+  private long mMisses = 0;
+  private long mEvictions = 0;
+  private long mExpirations = 0;
+  private long mRejections = 0;
+
+  /**
+   * @param maxBytes budget for the estimated size of all cached results
+   * @param ttlMs time in ms a result stays valid after being cached
+   */
+  public BQQResultCache(long maxBytes, long ttlMs) {
+    this(maxBytes, ttlMs, System::nanoTime);
+  }
+
+  BQQResultCache(long maxBytes, long ttlMs, LongSupplier nanoClock) {
+    if (maxBytes <= 0 || ttlMs <= 0) {
+      throw new IllegalArgumentException("maxBytes and ttlMs must be positive");
+    }
+    mMaxBytes = maxBytes;
+    mTtlNanos = ttlMs * 1000000L;
+    mNanoClock = nanoClock;
+  }
+
+  /**
+   * Looks up a cached result.
+   * @param key the query's key
+   * @return the result, or null if not cached or expired
+   */
+  public synchronized QueryResult get(BQQQueryKey key) {
+    mFrequency.increment(key);
+    Entry entry = mEntries.get(key);
+    if (entry != null && entry.mExpiresAtNanos - mNanoClock.getAsLong() <= 0) {
+      remove(key);
+      mExpirations++;
+      entry = null;
+    }
+    if (entry == null) {
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    return entry.mResult;
+  }
+
+  /**
+   * Caches a result, evicting least recently used entries to make room if the result
+   * is popular enough to be admitted.
+   * @param key the query's key
+   * @param result the query's result
+   * @return true if the result was cached
+   */
+  public synchronized boolean put(BQQQueryKey key, QueryResult result) {
+    long weight = estimateSize(result);
+    remove(key);
+    if (weight > mMaxBytes) {
+      mRejections++;
+      return false;
+    }
+
+    long now = mNanoClock.getAsLong();
+    expire(now);
+    if (mWeightedSize + weight > mMaxBytes) {
+      BQQQueryKey victim = mEntries.keySet().iterator().next();
+      if (mFrequency.frequency(key) <= mFrequency.frequency(victim)) {
+        mRejections++;
+        return false;
+      }
+      Iterator<Entry> lru = mEntries.values().iterator();
+      while (mWeightedSize + weight > mMaxBytes) {
+        mWeightedSize -= lru.next().mWeight;
+        lru.remove();
+        mEvictions++;
+      }
+    }
+
+    mEntries.put(key, new Entry(result, weight, now + mTtlNanos));
+    mWeightedSize += weight;
+    return true;
+  }
+
+  /**
+   * Drops a cached result.
+   * @param key the query's key
+   */
+  public synchronized void invalidate(BQQQueryKey key) {
+    remove(key);
+  }
+
+  /**
+   * Drops all cached results.
+   */
+  public synchronized void invalidateAll() {
+    mEntries.clear();
+    mWeightedSize = 0;
+  }
+
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  /**
+   * @return number of entries evicted to make room for new ones
+   */
+  public synchronized long getEvictionCount() {
+    return mEvictions;
+  }
+
+  /**
+   * @return number of entries dropped because their TTL passed
+   */
+  public synchronized long getExpirationCount() {
+    return mExpirations;
+  }
+
+  /**
+   * @return number of results not cached, being too big or less popular than the LRU entry
+   */
+  public synchronized long getRejectionCount() {
+    return mRejections;
+  }
+
+  /**
+   * @return number of cached results
+   */
+  public synchronized int size() {
+    return mEntries.size();
+  }
+
+  /**
+   * @return estimated size in bytes of all cached results
+   */
+  public synchronized long getWeightedSize() {
+    return mWeightedSize;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "BQQResultCache{entries=" + mEntries.size() + ", bytes=" + mWeightedSize + "/"
+        + mMaxBytes + ", hits=" + mHits + ", misses=" + mMisses + ", evictions=" + mEvictions
+        + ", expirations=" + mExpirations + ", rejections=" + mRejections + "}";
+  }
+
+  /**
+   * Estimates the heap used by the rows of a result's first page.
+   * @param result a query result
+   * @return estimated size in bytes
+   */
+  public static long estimateSize(QueryResult result) {
+    long size = ENTRY_OVERHEAD_BYTES;
+    if (result == null || result.getValues() == null) {
+      return size;
+    }
+    for (List<FieldValue> row : result.getValues()) {
+      size += estimateSize(row);
+    }
+    return size;
+  }
+
+  static long estimateSize(List<FieldValue> row) {
+    long size = ROW_OVERHEAD_BYTES;
+    for (FieldValue value : row) {
+      size += VALUE_OVERHEAD_BYTES;
+      Object v = value.getValue();
+      if (v instanceof String) {
+        size += 2L * ((String) v).length();
+      } else if (v instanceof List) {
+        @SuppressWarnings("unchecked")
+        List<FieldValue> nested = (List<FieldValue>) v;
+        size += estimateSize(nested);
+      }
+    }
+    return size;
+  }
+
+  private void remove(BQQQueryKey key) {
+    Entry entry = mEntries.remove(key);
+    if (entry != null) {
+      mWeightedSize -= entry.mWeight;
+    }
+  }
+
+  private void expire(long now) {
+    Iterator<Map.Entry<BQQQueryKey, Entry>> it = mEntries.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next().getValue();
+      if (entry.mExpiresAtNanos - now <= 0) {
+        mWeightedSize -= entry.mWeight;
+        it.remove();
+        mExpirations++;
+      }
+    }
+  }
+
+  private static final class Entry {
+    private final QueryResult mResult;
+    private final long mWeight;
+    private final long mExpiresAtNanos;
+
+    Entry(QueryResult result, long weight, long expiresAtNanos) {
+      mResult = result;
+      mWeight = weight;
+      mExpiresAtNanos = expiresAtNanos;
+    }
+  }
+
+  /**
+   * Count-min sketch of how often keys were asked for, with 4 bit counters which are
+   * halved periodically so old popularity fades.
+   */
+  private static final class FrequencySketch {
+    private static final int WIDTH = 4096;
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int RESET_AFTER = 10 * WIDTH;
+    private static final int[] SEEDS = {0x97cb3127, 0xb5ad4ece, 0x7f4a7c15, 0x2127599b};
+
+    private final byte[][] mCounts = new byte[DEPTH][WIDTH];
+    private int mAdditions = 0;
+
+    void increment(BQQQueryKey key) {
+      int hash = key.hashCode();
+      for (int i = 0; i < DEPTH; ++i) {
+        int index = index(hash, i);
+        if (mCounts[i][index] < MAX_COUNT) {
+          mCounts[i][index]++;
+        }
+      }
+      if (++mAdditions >= RESET_AFTER) {
+        for (byte[] row : mCounts) {
+          for (int j = 0; j < WIDTH; ++j) {
+            row[j] >>= 1;
+          }
+        }
+        mAdditions /= 2;
+      }
+    }
+
+    int frequency(BQQQueryKey key) {
+      int hash = key.hashCode();
+      int min = MAX_COUNT;
+      for (int i = 0; i < DEPTH; ++i) {
+        min = Math.min(min, mCounts[i][index(hash, i)]);
+      }
+      return min;
+    }
+
+    private static int index(int hash, int row) {
+      int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+      h ^= h >>> 16;
+      return h & (WIDTH - 1);
+    }
+  }
+}
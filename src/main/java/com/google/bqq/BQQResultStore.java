@@ -0,0 +1,506 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.Schema;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed store of query results keyed by BQQQueryKey, which survives restarts.
+ * Results are appended to a data file, and an index entry per result (or removal) is
+ * appended to an index file. Only the index is read at startup, data is memory-mapped when
+ * a result is looked up, and decoded as it's iterated. Each result carries a CRC32 which is
+ * checked on its first lookup, a corrupt result is dropped and counted as a miss.
+ * Results are forced to disk before their index entry is appended, and lookups don't wait
+ * for a result being written. Results expire after a TTL. Once the live results exceed
+ * maxBytes the oldest are evicted, and the files are compacted when they hold more dead
+ * bytes than half of maxBytes.
+ */
+public class BQQResultStore implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(BQQResultStore.class);
+
+  static final String DATA_FILE = "results.dat";
+  static final String INDEX_FILE = "results.idx";
+
+  private static final int MAGIC = 0x42515152;
+  // magic, key length, schema length, row count, rows length, crc
+  private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8 + 8;
+  private static final int DIGEST_BYTES = 64;
+  // digest, offset, length (-1 for a removal), creation time, crc
+  private static final int INDEX_RECORD_BYTES = DIGEST_BYTES + 8 + 8 + 8 + 4;
+
+  private final File mDirectory;
+  private final long mMaxBytes;
+  private final long mTtlMs;
+  private final LongSupplier mClock;
+  // insertion ordered, eldest entry is the oldest result
+  private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+  // held while a result is written to the end of the data file, taken before the store's
+  // own lock, which guards the index and the maps
+  private final Object mWriteLock = new Object();
+  private FileChannel mData;
+  private FileChannel mIndex;
+  private long mLiveBytes = 0;
+
+  private long mHits = 0;
+  private long mMisses = 0;
+  private long mEvictions = 0;
+  private long mExpirations = 0;
+  private long mCorruptions = 0;
+
+  /**
+   * Opens or creates a store, reading its index.
+   * @param directory directory holding the store's files
+   * @param maxBytes max size of the live results on disk
+   * @param ttlMs time in ms a result stays valid after being stored
+   * @throws IOException if the files could not be opened
+   */
+  public BQQResultStore(File directory, long maxBytes, long ttlMs) throws IOException {
+    this(directory, maxBytes, ttlMs, System::currentTimeMillis);
+  }
+
+  BQQResultStore(File directory, long maxBytes, long ttlMs, LongSupplier clock)
+      throws IOException {
+    if (maxBytes <= 0 || ttlMs <= 0) {
+      throw new IllegalArgumentException("maxBytes and ttlMs must be positive");
+    }
+    mDirectory = directory;
+    mMaxBytes = maxBytes;
+    mTtlMs = ttlMs;
+    mClock = clock;
+    Files.createDirectories(directory.toPath());
+    open();
+  }
+
+  private void open() throws IOException {
+    mData = FileChannel.open(new File(mDirectory, DATA_FILE).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    mIndex = FileChannel.open(new File(mDirectory, INDEX_FILE).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    readIndex();
+  }
+
+  /**
+   * Replays the index log, skipping expired results and stopping at a torn last record.
+   */
+  private void readIndex() throws IOException {
+    mEntries.clear();
+    mLiveBytes = 0;
+    long dataBytes = mData.size();
+    long now = mClock.getAsLong();
+    long records = mIndex.size() / INDEX_RECORD_BYTES;
+    MappedByteBuffer index = mIndex.map(FileChannel.MapMode.READ_ONLY, 0,
+        records * INDEX_RECORD_BYTES);
+    byte[] record = new byte[INDEX_RECORD_BYTES];
+    long valid = 0;
+    for (; valid < records; valid++) {
+      index.get(record);
+      ByteBuffer in = ByteBuffer.wrap(record);
+      String digest = new String(record, 0, DIGEST_BYTES, StandardCharsets.US_ASCII);
+      in.position(DIGEST_BYTES);
+      long offset = in.getLong();
+      long length = in.getLong();
+      long createdMs = in.getLong();
+      if (in.getInt() != (int) crc(record, 0, INDEX_RECORD_BYTES - 4)) {
+        break;
+      }
+      removeEntry(digest);
+      if (length >= 0 && offset + length <= dataBytes && now - createdMs < mTtlMs) {
+        addEntry(digest, new Entry(offset, length, createdMs));
+      }
+    }
+    // drop a torn record so later appends line up
+    mIndex.truncate(valid * INDEX_RECORD_BYTES);
+  }
+
+  /**
+   * Looks up a stored result.
+   * @param key the query's key
+   * @return the result, to be closed once no longer needed, or null if not stored, expired
+   *     or corrupt
+   */
+  public synchronized BQQMaterializedResult get(BQQQueryKey key) {
+    String digest = key.getDigest();
+    Entry entry = mEntries.get(digest);
+    if (entry != null && mClock.getAsLong() - entry.mCreatedMs >= mTtlMs) {
+      drop(digest);
+      mExpirations++;
+      entry = null;
+    }
+    if (entry == null) {
+      mMisses++;
+      return null;
+    }
+
+    try {
+      MappedByteBuffer data = mData.map(FileChannel.MapMode.READ_ONLY, entry.mOffset,
+          entry.mLength);
+      BQQMaterializedResult result = read(data, key, !entry.mVerified);
+      if (result != null) {
+        entry.mVerified = true;
+        mHits++;
+        return result;
+      }
+      LOG.warn("Dropping corrupt stored result for " + key);
+    } catch (IOException | ClassNotFoundException | RuntimeException e) {
+      LOG.warn("Dropping unreadable stored result for " + key, e);
+    }
+    mCorruptions++;
+    mMisses++;
+    drop(digest);
+    return null;
+  }
+
+  /**
+   * @return the record's result, or null if it's corrupt or belongs to another key
+   */
+  private static BQQMaterializedResult read(ByteBuffer data, BQQQueryKey key, boolean verify)
+      throws IOException, ClassNotFoundException {
+    if (data.getInt() != MAGIC) {
+      return null;
+    }
+    int keyLength = data.getInt();
+    int schemaLength = data.getInt();
+    int rowCount = data.getInt();
+    long rowsLength = data.getLong();
+    long crc = data.getLong();
+    if (HEADER_BYTES + keyLength + schemaLength + rowsLength != data.limit()) {
+      return null;
+    }
+    if (verify) {
+      CRC32 check = new CRC32();
+      check.update(data.duplicate());
+      if (check.getValue() != crc) {
+        return null;
+      }
+    }
+
+    byte[] keyBytes = new byte[keyLength];
+    data.get(keyBytes);
+    if (!key.getCanonicalForm().equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+      return null;
+    }
+    Schema schema = null;
+    if (schemaLength > 0) {
+      byte[] schemaBytes = new byte[schemaLength];
+      data.get(schemaBytes);
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(schemaBytes))) {
+        schema = (Schema) in.readObject();
+      }
+    }
+    return BQQMaterializedResult.ofEncoded(schema, data.slice(), rowCount);
+  }
+
+  /**
+   * Stores a result, evicting the oldest results to make room. The result is written to the
+   * data file holding only the write lock, so lookups don't wait behind a large result.
+   * @param key the query's key
+   * @param result the query's rows
+   * @return true if stored, false if the result alone is bigger than maxBytes
+   * @throws IOException if the result could not be written
+   */
+  public boolean put(BQQQueryKey key, BQQMaterializedResult result) throws IOException {
+    String digest = key.getDigest();
+    byte[] keyBytes = key.getCanonicalForm().getBytes(StandardCharsets.UTF_8);
+    byte[] schemaBytes = new byte[0];
+    if (result.getSchema() != null) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+        out.writeObject(result.getSchema());
+      }
+      schemaBytes = bytes.toByteArray();
+    }
+
+    synchronized (mWriteLock) {
+      // stream the rows after a placeholder header, then fill the header in
+      long offset = mData.size();
+      long length;
+      try {
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(schemaBytes);
+        long position = offset + HEADER_BYTES;
+        position += write(ByteBuffer.wrap(keyBytes), position);
+        position += write(ByteBuffer.wrap(schemaBytes), position);
+        long rowsLength = 0;
+        int rowCount = 0;
+        ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+        for (Iterator<List<FieldValue>> rows = result.iterator(); rows.hasNext(); rowCount++) {
+          scratch = BQQRowCodec.encode(rows.next(), scratch);
+          if (scratch.position() >= 32 * 1024 || !rows.hasNext()) {
+            scratch.flip();
+            crc.update(scratch.duplicate());
+            rowsLength += write(scratch, position + rowsLength);
+            scratch.clear();
+          }
+        }
+        length = HEADER_BYTES + keyBytes.length + schemaBytes.length + rowsLength;
+        if (length > mMaxBytes) {
+          mData.truncate(offset);
+          return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(keyBytes.length).putInt(schemaBytes.length).putInt(rowCount)
+            .putLong(rowsLength).putLong(crc.getValue()).flip();
+        write(header, offset);
+        // on disk before the index points at it
+        mData.force(false);
+      } catch (IOException | RuntimeException e) {
+        // don't leave the partly written result behind as dead bytes
+        mData.truncate(offset);
+        throw e;
+      }
+
+      synchronized (this) {
+        drop(digest);
+        while (mLiveBytes + length > mMaxBytes) {
+          drop(mEntries.keySet().iterator().next());
+          mEvictions++;
+        }
+        long createdMs = mClock.getAsLong();
+        appendIndex(digest, offset, length, createdMs);
+        Entry entry = new Entry(offset, length, createdMs);
+        entry.mVerified = true;
+        addEntry(digest, entry);
+
+        if (mData.size() - mLiveBytes > mMaxBytes / 2) {
+          compactFiles();
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Drops a stored result.
+   * @param key the query's key
+   * @throws IOException if the removal could not be written
+   */
+  public synchronized void invalidate(BQQQueryKey key) throws IOException {
+    String digest = key.getDigest();
+    if (mEntries.containsKey(digest)) {
+      appendIndex(digest, 0, -1, 0);
+      removeEntry(digest);
+    }
+  }
+
+  /**
+   * Rewrites the files with only the live results, reclaiming the space of evicted,
+   * expired and invalidated ones. Results already handed out stay readable.
+   * @throws IOException if the files could not be rewritten
+   */
+  public void compact() throws IOException {
+    synchronized (mWriteLock) {
+      synchronized (this) {
+        compactFiles();
+      }
+    }
+  }
+
+  private void compactFiles() throws IOException {
+    File data = new File(mDirectory, DATA_FILE + ".tmp");
+    File index = new File(mDirectory, INDEX_FILE + ".tmp");
+    long now = mClock.getAsLong();
+    List<Map.Entry<String, Entry>> live = new ArrayList<>(mEntries.entrySet());
+    try (FileChannel newData = FileChannel.open(data.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        FileChannel newIndex = FileChannel.open(index.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      for (Map.Entry<String, Entry> e : live) {
+        Entry entry = e.getValue();
+        if (now - entry.mCreatedMs >= mTtlMs) {
+          continue;
+        }
+        long offset = newData.size();
+        for (long copied = 0; copied < entry.mLength; ) {
+          copied += mData.transferTo(entry.mOffset + copied, entry.mLength - copied, newData);
+        }
+        newIndex.write(indexRecord(e.getKey(), offset, entry.mLength, entry.mCreatedMs));
+      }
+      newData.force(true);
+      newIndex.force(true);
+    }
+    mData.close();
+    mIndex.close();
+    Files.move(data.toPath(), new File(mDirectory, DATA_FILE).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Files.move(index.toPath(), new File(mDirectory, INDEX_FILE).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    open();
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (mWriteLock) {
+      synchronized (this) {
+        mData.close();
+        mIndex.close();
+      }
+    }
+  }
+
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  /**
+   * @return number of results evicted to make room for new ones
+   */
+  public synchronized long getEvictionCount() {
+    return mEvictions;
+  }
+
+  /**
+   * @return number of results dropped on lookup because their TTL passed
+   */
+  public synchronized long getExpirationCount() {
+    return mExpirations;
+  }
+
+  /**
+   * @return number of results dropped because their checksum or header didn't match
+   */
+  public synchronized long getCorruptionCount() {
+    return mCorruptions;
+  }
+
+  /**
+   * @return number of stored results
+   */
+  public synchronized int size() {
+    return mEntries.size();
+  }
+
+  /**
+   * @return size in bytes of the stored results
+   */
+  public synchronized long getLiveBytes() {
+    return mLiveBytes;
+  }
+
+  /**
+   * @return size in bytes of the data file, including dead results not yet compacted away
+   * @throws IOException if the file size could not be read
+   */
+  public synchronized long getFileBytes() throws IOException {
+    return mData.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "BQQResultStore{dir=" + mDirectory + ", entries=" + mEntries.size() + ", bytes="
+        + mLiveBytes + "/" + mMaxBytes + ", hits=" + mHits + ", misses=" + mMisses
+        + ", evictions=" + mEvictions + ", expirations=" + mExpirations
+        + ", corruptions=" + mCorruptions + "}";
+  }
+
+  private int write(ByteBuffer buffer, long position) throws IOException {
+    int written = 0;
+    while (buffer.hasRemaining()) {
+      written += mData.write(buffer, position + written);
+    }
+    return written;
+  }
+
+  /**
+   * Removes a result from the index, recording the removal in the index file. If the
+   * removal can't be recorded the result comes back after a restart, to be dropped again.
+   */
+  private void drop(String digest) {
+    if (mEntries.containsKey(digest)) {
+      removeEntry(digest);
+      try {
+        appendIndex(digest, 0, -1, 0);
+      } catch (IOException e) {
+        LOG.warn("Failed to record the removal of stored result " + digest, e);
+      }
+    }
+  }
+
+  private void appendIndex(String digest, long offset, long length, long createdMs)
+      throws IOException {
+    ByteBuffer record = indexRecord(digest, offset, length, createdMs);
+    long position = mIndex.size();
+    while (record.hasRemaining()) {
+      position += mIndex.write(record, position);
+    }
+  }
+
+  private static ByteBuffer indexRecord(String digest, long offset, long length,
+      long createdMs) {
+    ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_BYTES);
+    record.put(digest.getBytes(StandardCharsets.US_ASCII)).putLong(offset).putLong(length)
+        .putLong(createdMs);
+    record.putInt((int) crc(record.array(), 0, INDEX_RECORD_BYTES - 4));
+    record.flip();
+    return record;
+  }
+
+  private void addEntry(String digest, Entry entry) {
+    mEntries.put(digest, entry);
+    mLiveBytes += entry.mLength;
+  }
+
+  private void removeEntry(String digest) {
+    Entry entry = mEntries.remove(digest);
+    if (entry != null) {
+      mLiveBytes -= entry.mLength;
+    }
+  }
+
+  private static long crc(byte[] bytes, int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, offset, length);
+    return crc.getValue();
+  }
+
+  private static final class Entry {
+    private final long mOffset;
+    private final long mLength;
+    private final long mCreatedMs;
+    private boolean mVerified = false;
+
+    Entry(long offset, long length, long createdMs) {
+      mOffset = offset;
+      mLength = length;
+      mCreatedMs = createdMs;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+/**
+ * Decides whether and when a failed BigQuery call is retried. Only errors for which
+ * BQQException.isRetryable holds are retried, up to maxAttempts attempts, with exponential,
+ * jittered backoff, and never past the deadline measured from the query's first attempt.
+ * Starting a job and checking on it keep separate attempt counts.
+ */
+public final class BQQRetryPolicy {
+  private static final BQQRetryPolicy DEFAULT = new BQQRetryPolicy(5, 1000, 2, 32000, 0.2, 300000);
+  private static final BQQRetryPolicy NONE = new BQQRetryPolicy(1, 0, 1, 0, 0, 0);
+
+  private final int mMaxAttempts;
+  private final long mDeadlineMs;
+  private final BQQPollingStrategy mBackoff;
+
+  /**
+   * @param maxAttempts max number of attempts, counting the first
+   * @param initialBackoffMs wait before the first retry
+   * @param multiplier growth of the wait after each retry
+   * @param maxBackoffMs cap on the wait between retries
+   * @param jitter fraction (0-1) of each wait that is randomized
+   * @param deadlineMs time after the first attempt past which no retry is started
+   */
+  public BQQRetryPolicy(int maxAttempts, long initialBackoffMs, double multiplier,
+      long maxBackoffMs, double jitter, long deadlineMs) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be at least 1");
+    }
+    if (deadlineMs < 0) {
+      throw new IllegalArgumentException("deadlineMs must not be negative");
+    }
+    mMaxAttempts = maxAttempts;
+    mDeadlineMs = deadlineMs;
+    mBackoff = BQQPollingStrategy.exponential(initialBackoffMs, multiplier, maxBackoffMs, jitter);
+  }
+
+  /**
+   * @return the policy used when none is set: 5 attempts, 1s backing off by 2x up to 32s,
+   *     within 5 minutes
+   */
+  public static BQQRetryPolicy defaultPolicy() {
+    return DEFAULT;
+  }
+
+  /**
+   * @return a policy which never retries
+   */
+  public static BQQRetryPolicy none() {
+    return NONE;
+  }
+
+  public int getMaxAttempts() {
+    return mMaxAttempts;
+  }
+
+  public long getDeadlineMillis() {
+    return mDeadlineMs;
+  }
+
+  /**
+   * @param error the failure of an attempt
+   * @param attempt the attempt which failed, starting at 1
+   * @param elapsedMs time since the query's first attempt
+   * @return time in ms to wait before the next attempt, or -1 to give up
+   */
+  public long getRetryDelayMillis(Throwable error, int attempt, long elapsedMs) {
+    Throwable t = BQQException.unwrap(error);
+    if (!(t instanceof BQQException) || !((BQQException) t).isRetryable()
+        || attempt >= mMaxAttempts) {
+      return -1;
+    }
+    long delay = mBackoff.getDelayMillis(attempt);
+    return elapsedMs + delay > mDeadlineMs ? -1 : delay;
+  }
+
+  @Override
+  public String toString() {
+    return "BQQRetryPolicy{maxAttempts=" + mMaxAttempts + ", backoff=" + mBackoff
+        + ", deadline=" + mDeadlineMs + "ms}";
+  }
+}
@@ -0,0 +1,152 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.FieldValue;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary form of rows, used for spill files and the result store. A row is a varint
+ * value count followed by its values, each a tag byte for null, primitive, repeated or record,
+ * then a varint length and UTF-8 bytes for a primitive, or the nested values.
+ */
+final class BQQRowCodec {
+  private static final byte NULL = 0;
+  private static final byte PRIMITIVE = 1;
+  private static final byte REPEATED = 2;
+  private static final byte RECORD = 3;
+  private static final FieldValue.Attribute[] ATTRIBUTES =
+      {FieldValue.Attribute.PRIMITIVE, FieldValue.Attribute.PRIMITIVE,
+       FieldValue.Attribute.REPEATED, FieldValue.Attribute.RECORD};
+  // FieldValues are only created by the BigQuery package, decoded rows need to be rebuilt
+  private static final Constructor<FieldValue> FIELD_VALUE;
+
+  static {
+    try {
+      FIELD_VALUE = FieldValue.class.getDeclaredConstructor(
+          FieldValue.Attribute.class, Object.class);
+      FIELD_VALUE.setAccessible(true);
+    } catch (NoSuchMethodException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private BQQRowCodec() {}
+
+  /**
+   * Encodes a row after the buffer's position, growing the buffer if needed.
+   * @param row the row to encode
+   * @param out buffer to write to
+   * @return out, or a bigger copy of it holding the row
+   */
+  static ByteBuffer encode(List<FieldValue> row, ByteBuffer out) {
+    out = ensure(out, 5);
+    writeVarint(row.size(), out);
+    for (FieldValue value : row) {
+      out = ensure(out, 6);
+      if (value == null || value.getValue() == null) {
+        out.put(NULL);
+        continue;
+      }
+      switch (value.getAttribute()) {
+        case PRIMITIVE:
+          byte[] bytes = value.getStringValue().getBytes(StandardCharsets.UTF_8);
+          out.put(PRIMITIVE);
+          writeVarint(bytes.length, out);
+          out = ensure(out, bytes.length);
+          out.put(bytes);
+          break;
+        case REPEATED:
+          out.put(REPEATED);
+          out = encode(value.getRepeatedValue(), out);
+          break;
+        default:
+          out.put(RECORD);
+          out = encode(value.getRecordValue(), out);
+          break;
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Decodes the row at the buffer's position, moving past it.
+   * @param in buffer to read from
+   * @return the row
+   */
+  static List<FieldValue> decode(ByteBuffer in) {
+    int count = readVarint(in);
+    List<FieldValue> values = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte type = in.get();
+      Object value;
+      switch (type) {
+        case NULL:
+          value = null;
+          break;
+        case PRIMITIVE:
+          byte[] bytes = new byte[readVarint(in)];
+          in.get(bytes);
+          value = new String(bytes, StandardCharsets.UTF_8);
+          break;
+        default:
+          value = decode(in);
+          break;
+      }
+      values.add(newFieldValue(ATTRIBUTES[type], value));
+    }
+    return values;
+  }
+
+  private static ByteBuffer ensure(ByteBuffer out, int bytes) {
+    if (out.remaining() >= bytes) {
+      return out;
+    }
+    ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+    out.flip();
+    bigger.put(out);
+    return bigger;
+  }
+
+  private static void writeVarint(int value, ByteBuffer out) {
+    while ((value & ~0x7f) != 0) {
+      out.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+
+  private static int readVarint(ByteBuffer in) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static FieldValue newFieldValue(FieldValue.Attribute attribute, Object value) {
+    try {
+      return FIELD_VALUE.newInstance(attribute, value);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Can't rebuild a decoded FieldValue", e);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.Page;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.QueryResult;
+import com.google.cloud.bigquery.Schema;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Iterates over all rows of a query result while a background thread fetches the next pages.
+ * Unlike QueryResult.iterateAll(), which only requests a page once the previous one is used up,
+ * up to prefetchPages pages are downloaded ahead, so rows can be processed while the next page
+ * is on its way. At most prefetchPages + 2 pages are held in memory: the buffered pages, the
+ * page being read and the page being handed over.
+ * A stream is meant for a single consumer thread, and should be closed when not read to the end.
+ */
+public class BQQRowStream implements Iterator<List<FieldValue>>, AutoCloseable {
+  /** Number of pages fetched ahead unless specified. */
+  public static final int DEFAULT_PREFETCH_PAGES = 2;
+
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+  private static final Fetched END = new Fetched(null, null);
+
+  private final Schema mSchema;
+  private final long mTotalRows;
+  private final BlockingQueue<Fetched> mBuffer;
+  private final Thread mFetcher;
+  private final AtomicInteger mPagesFetched = new AtomicInteger(1);
+  private final BQQHedger mHedger;
+  private volatile boolean mClosed = false;
+
+  private Iterator<List<FieldValue>> mRows;
+  private boolean mEnded = false;
+  private long mRowsRead = 0;
+  private long mWaitNanos = 0;
+
+  /**
+   * Starts fetching the pages after the result's first page.
+   * @param result first page of a query result
+   * @param prefetchPages max number of pages downloaded ahead of the consumer
+   */
+  public BQQRowStream(QueryResult result, int prefetchPages) {
+    this(result, result.getSchema(), result.getTotalRows(), prefetchPages);
+  }
+
+  BQQRowStream(Page<List<FieldValue>> first, Schema schema, long totalRows, int prefetchPages) {
+    this(first, schema, totalRows, prefetchPages, null);
+  }
+
+  /**
+   * @param hedger the hedger page fetches go through, or null to not hedge
+   */
+  BQQRowStream(Page<List<FieldValue>> first, Schema schema, long totalRows, int prefetchPages,
+      BQQHedger hedger) {
+    if (prefetchPages < 1) {
+      throw new IllegalArgumentException("prefetchPages must be at least 1");
+    }
+    mSchema = schema;
+    mTotalRows = totalRows;
+    mHedger = hedger;
+    mBuffer = new ArrayBlockingQueue<>(prefetchPages);
+    mRows = first.getValues().iterator();
+    mFetcher = new Thread(() -> fetch(first), "bqq-prefetch-" + THREAD_COUNT.incrementAndGet());
+    mFetcher.setDaemon(true);
+    mFetcher.start();
+  }
+
+  /**
+   * Fetcher loop, buffers pages until the last one, an error, or the stream is closed.
+   */
+  private void fetch(Page<List<FieldValue>> first) {
+    Fetched last = END;
+    try {
+      Page<List<FieldValue>> page = first;
+      while (!mClosed && (page = nextPage(page)) != null) {
+        mPagesFetched.incrementAndGet();
+        mBuffer.put(new Fetched(page.getValues().iterator(), null));
+      }
+    } catch (InterruptedException e) {
+      // closed while waiting for buffer space
+      return;
+    } catch (RuntimeException e) {
+      last = new Fetched(null, e);
+    }
+    try {
+      mBuffer.put(last);
+    } catch (InterruptedException e) {
+      // closed
+    }
+  }
+
+  private Page<List<FieldValue>> nextPage(Page<List<FieldValue>> page)
+      throws InterruptedException {
+    return mHedger == null ? page.getNextPage() : mHedger.call(page::getNextPage);
+  }
+
+  /**
+   * Waits for the next page if the current one is used up.
+   * @throws RuntimeException the BigQueryException a page fetch failed with
+   * @throws IllegalStateException if interrupted while waiting for a page
+   */
+  @Override
+  public boolean hasNext() {
+    while (!mRows.hasNext()) {
+      if (mEnded) {
+        return false;
+      }
+      Fetched next = mBuffer.poll();
+      if (next == null) {
+        long start = System.nanoTime();
+        try {
+          next = mBuffer.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for the next page", e);
+        } finally {
+          mWaitNanos += System.nanoTime() - start;
+        }
+      }
+      if (next.mError != null) {
+        mEnded = true;
+        throw next.mError;
+      }
+      if (next == END) {
+        mEnded = true;
+        return false;
+      }
+      mRows = next.mRows;
+    }
+    return true;
+  }
+
+  @Override
+  public List<FieldValue> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    mRowsRead++;
+    return mRows.next();
+  }
+
+  /**
+   * Stops fetching pages and drops the buffered ones.
+   */
+  @Override
+  public void close() {
+    mClosed = true;
+    mEnded = true;
+    mFetcher.interrupt();
+    mBuffer.clear();
+    mRows = Collections.emptyIterator();
+  }
+
+  public Schema getSchema() {
+    return mSchema;
+  }
+
+  /**
+   * @return total number of rows in the result
+   */
+  public long getTotalRows() {
+    return mTotalRows;
+  }
+
+  /**
+   * @return number of rows returned by next so far
+   */
+  public long getRowsRead() {
+    return mRowsRead;
+  }
+
+  /**
+   * @return number of pages downloaded so far, including the first
+   */
+  public int getPagesFetched() {
+    return mPagesFetched.get();
+  }
+
+  /**
+   * @return time in ms the consumer spent waiting for pages which weren't fetched yet
+   */
+  public long getWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(mWaitNanos);
+  }
+
+  @Override
+  public String toString() {
+    return "BQQRowStream{rows=" + mRowsRead + "/" + mTotalRows + ", pages=" + getPagesFetched()
+        + ", waitMs=" + getWaitMillis() + "}";
+  }
+
+  /**
+   * A fetched page, or the error fetching it.
+   */
+  private static final class Fetched {
+    private final Iterator<List<FieldValue>> mRows;
+    private final RuntimeException mError;
+
+    Fetched(Iterator<List<FieldValue>> rows, RuntimeException error) {
+      mRows = rows;
+      mError = error;
+    }
+  }
+}
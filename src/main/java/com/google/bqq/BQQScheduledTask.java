@@ -0,0 +1,32 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.QueryResult;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A runnable which runs a query, so a BQQSchedulingQueue can tell what it is queuing.
+ */
+interface BQQScheduledTask extends Runnable {
+  /**
+   * @return the query run by this task
+   */
+  BQQCallable getCallable();
+
+  /**
+   * @return the future handed out to callers
+   */
+  CompletableFuture<QueryResult> getFuture();
+}
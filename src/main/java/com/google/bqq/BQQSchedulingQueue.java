@@ -0,0 +1,705 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Queue queries wait in before being run, with one lane per BQQPriority.
+ * The highest lane is served first, except that every agingMs a query waits counts as
+ * one lane higher, so a flood of interactive queries can't starve batch ones.
+ * Within a lane every tenant has its own FIFO queue, and tenants take turns by deficit
+ * round robin: a tenant with weight w gets w queries dequeued per turn. A tenant already
+ * running its max number of queries is skipped until one of them completes.
+ * An optional BQQConcurrencyLimiter caps the number of queries running across all tenants.
+ * Tasks which aren't BQQScheduledTasks go into the NORMAL lane of the default tenant.
+ * The queue holds at most capacity tasks across all lanes and tenants.
+ */
+class BQQSchedulingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+  /** Default time a query waits before being promoted by one lane. */
+  static final long DEFAULT_AGING_MS = 10000L;
+
+  private static final BQQPriority[] LANES = BQQPriority.values();
+
+  private final int mCapacity;
+  private final long mAgingNanos;
+  private final LongSupplier mNanoClock;
+  private final ReentrantLock mLock = new ReentrantLock();
+  private final Condition mNotEmpty = mLock.newCondition();
+  private final Condition mNotFull = mLock.newCondition();
+  private final List<Lane> mLanes = new ArrayList<>();
+  private final Map<String, Tenant> mTenants = new HashMap<>();
+  private int mSize = 0;
+  private int mRunning = 0;
+  private BQQConcurrencyLimiter mLimiter;
+
+  /**
+   * @param capacity max number of queued tasks
+   * @param agingMs time in ms a query waits before being promoted by one lane
+   */
+  BQQSchedulingQueue(int capacity, long agingMs) {
+    this(capacity, agingMs, System::nanoTime);
+  }
+
+  BQQSchedulingQueue(int capacity, long agingMs, LongSupplier nanoClock) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+    if (agingMs <= 0) {
+      throw new IllegalArgumentException("agingMs must be positive");
+    }
+    mCapacity = capacity;
+    mAgingNanos = TimeUnit.MILLISECONDS.toNanos(agingMs);
+    mNanoClock = nanoClock;
+    for (int i = 0; i < LANES.length; ++i) {
+      mLanes.add(new Lane());
+    }
+  }
+
+  /**
+   * Sets a tenant's share of dequeues relative to other tenants with queued queries.
+   * @param tenant the tenant
+   * @param weight number of queries dequeued per turn, 1 by default
+   */
+  void setTenantWeight(String tenant, int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("weight must be at least 1");
+    }
+    mLock.lock();
+    try {
+      tenant(tenant).mWeight = weight;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Caps the number of a tenant's queries running at once.
+   * @param tenant the tenant
+   * @param maxRunning max number of running queries, unlimited by default
+   */
+  void setTenantMaxRunning(String tenant, int maxRunning) {
+    if (maxRunning < 1) {
+      throw new IllegalArgumentException("maxRunning must be at least 1");
+    }
+    mLock.lock();
+    try {
+      tenant(tenant).mMaxRunning = maxRunning;
+      mNotEmpty.signalAll();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Holds queries back while the limiter's number of queries are running, and feeds it
+   * back every query's outcome.
+   * @param limiter the limiter, or null to only be limited by the workers
+   */
+  void setLimiter(BQQConcurrencyLimiter limiter) {
+    mLock.lock();
+    try {
+      mLimiter = limiter;
+      mNotEmpty.signalAll();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * @param lane a lane
+   * @return number of queries waiting in the lane
+   */
+  int size(BQQPriority lane) {
+    mLock.lock();
+    try {
+      return mLanes.get(lane.ordinal()).mSize;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * @param tenant a tenant
+   * @return number of the tenant's queries waiting in any lane
+   */
+  int size(String tenant) {
+    mLock.lock();
+    try {
+      Tenant t = mTenants.get(tenant);
+      return t == null ? 0 : t.mQueued;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * @return a snapshot of every tenant's queue depth, running count and wait times,
+   *     sorted by tenant
+   */
+  Map<String, BQQTenantStats> getTenantStats() {
+    Map<String, BQQTenantStats> stats = new TreeMap<>();
+    mLock.lock();
+    try {
+      for (Tenant t : mTenants.values()) {
+        stats.put(t.mName, new BQQTenantStats(t.mName, t.mQueued, t.mRunning, t.mDequeued,
+            TimeUnit.NANOSECONDS.toMillis(t.mTotalWaitNanos),
+            TimeUnit.NANOSECONDS.toMillis(t.mMaxWaitNanos)));
+      }
+    } finally {
+      mLock.unlock();
+    }
+    return stats;
+  }
+
+  @Override
+  public int size() {
+    mLock.lock();
+    try {
+      return mSize;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(Runnable task) {
+    checkNotNull(task);
+    mLock.lock();
+    try {
+      if (mSize >= mCapacity) {
+        return false;
+      }
+      enqueue(task);
+      return true;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public void put(Runnable task) throws InterruptedException {
+    checkNotNull(task);
+    mLock.lockInterruptibly();
+    try {
+      while (mSize >= mCapacity) {
+        mNotFull.await();
+      }
+      enqueue(task);
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+    checkNotNull(task);
+    long nanos = unit.toNanos(timeout);
+    mLock.lockInterruptibly();
+    try {
+      while (mSize >= mCapacity) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = mNotFull.awaitNanos(nanos);
+      }
+      enqueue(task);
+      return true;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Queues a task, making room if full by dropping the oldest task of the lowest lane
+   * which isn't higher than the task's own lane.
+   * @param task the task to queue
+   * @return the task which was dropped, possibly the given task if every queued task is in a
+   *     higher lane, or null if nothing was dropped
+   */
+  Runnable offerDroppingOldest(Runnable task) {
+    checkNotNull(task);
+    mLock.lock();
+    try {
+      Runnable dropped = null;
+      if (mSize >= mCapacity) {
+        for (int i = LANES.length - 1; i >= laneOf(task).ordinal() && dropped == null; --i) {
+          Entry oldest = mLanes.get(i).pollOldest();
+          if (oldest != null) {
+            dropped = removed(oldest).mTask;
+          }
+        }
+        if (dropped == null) {
+          return task;
+        }
+      }
+      enqueue(task);
+      return dropped;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * @return the next task whose tenant may run another query, or null if there is none
+   */
+  @Override
+  public Runnable poll() {
+    mLock.lock();
+    try {
+      return dequeue();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable take() throws InterruptedException {
+    mLock.lockInterruptibly();
+    try {
+      Runnable task;
+      while ((task = dequeue()) == null) {
+        mNotEmpty.await();
+      }
+      return task;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    mLock.lockInterruptibly();
+    try {
+      Runnable task;
+      while ((task = dequeue()) == null) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = mNotEmpty.awaitNanos(nanos);
+      }
+      return task;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public Runnable peek() {
+    mLock.lock();
+    try {
+      Lane lane = nextLane();
+      return lane == null ? null : lane.peek().mTask;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    mLock.lock();
+    try {
+      for (Lane lane : mLanes) {
+        Entry entry = lane.remove(o);
+        if (entry != null) {
+          removed(entry);
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public int remainingCapacity() {
+    mLock.lock();
+    try {
+      return mCapacity - mSize;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Removes queued tasks whether or not their tenants may run another query.
+   */
+  @Override
+  public int drainTo(Collection<? super Runnable> c, int maxElements) {
+    mLock.lock();
+    try {
+      int n = 0;
+      for (Lane lane : mLanes) {
+        Entry entry;
+        while (n < maxElements && (entry = lane.pollOldest()) != null) {
+          c.add(removed(entry).mTask);
+          n++;
+        }
+      }
+      return n;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * @return an iterator over a snapshot of the queue, in no particular order
+   */
+  @Override
+  public Iterator<Runnable> iterator() {
+    List<Runnable> snapshot = new ArrayList<>();
+    mLock.lock();
+    try {
+      for (Lane lane : mLanes) {
+        for (TenantQueue queue : lane.mTurns) {
+          for (Entry entry : queue.mEntries) {
+            snapshot.add(entry.mTask);
+          }
+        }
+      }
+    } finally {
+      mLock.unlock();
+    }
+
+    Iterator<Runnable> it = snapshot.iterator();
+    return new Iterator<Runnable>() {
+      private Runnable mLast;
+
+      @Override
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      @Override
+      public Runnable next() {
+        mLast = it.next();
+        return mLast;
+      }
+
+      @Override
+      public void remove() {
+        BQQSchedulingQueue.this.remove(mLast);
+      }
+    };
+  }
+
+  private static void checkNotNull(Runnable task) {
+    if (task == null) {
+      throw new NullPointerException();
+    }
+  }
+
+  private static BQQPriority laneOf(Runnable task) {
+    if (task instanceof BQQScheduledTask) {
+      return ((BQQScheduledTask) task).getCallable().getPriority();
+    }
+    return BQQPriority.NORMAL;
+  }
+
+  private static String tenantOf(Runnable task) {
+    if (task instanceof BQQScheduledTask) {
+      return ((BQQScheduledTask) task).getCallable().getTenant();
+    }
+    return BQQCallable.DEFAULT_TENANT;
+  }
+
+  /**
+   * Looks up a tenant, creating it on first use. The caller must hold the lock.
+   */
+  private Tenant tenant(String name) {
+    Tenant t = mTenants.get(name);
+    if (t == null) {
+      t = new Tenant(name);
+      mTenants.put(name, t);
+    }
+    return t;
+  }
+
+  /**
+   * Adds a task to its lane, the caller must hold the lock and have checked for room.
+   */
+  private void enqueue(Runnable task) {
+    Tenant t = tenant(tenantOf(task));
+    mLanes.get(laneOf(task).ordinal()).add(new Entry(task, t, mNanoClock.getAsLong()));
+    t.mQueued++;
+    mSize++;
+    mNotEmpty.signal();
+  }
+
+  /**
+   * Books an entry taken out of its lane without being run. The caller must hold the lock.
+   */
+  private Entry removed(Entry entry) {
+    entry.mTenant.mQueued--;
+    mSize--;
+    mNotFull.signal();
+    return entry;
+  }
+
+  /**
+   * Takes the next task and counts it as running for its tenant until its future completes.
+   * The caller must hold the lock.
+   * @return the task, or null if the limiter's limit is reached, or no tenant with queued
+   *     tasks may run another query
+   */
+  private Runnable dequeue() {
+    if (mLimiter != null && mRunning >= mLimiter.getLimit()) {
+      return null;
+    }
+    Lane lane = nextLane();
+    if (lane == null) {
+      return null;
+    }
+    Entry entry = removed(lane.poll());
+
+    Tenant t = entry.mTenant;
+    long now = mNanoClock.getAsLong();
+    long waitNanos = now - entry.mEnqueuedNanos;
+    t.mDequeued++;
+    t.mTotalWaitNanos += waitNanos;
+    t.mMaxWaitNanos = Math.max(t.mMaxWaitNanos, waitNanos);
+    if (entry.mTask instanceof BQQScheduledTask) {
+      BQQScheduledTask task = (BQQScheduledTask) entry.mTask;
+      t.mRunning++;
+      int inFlight = ++mRunning;
+      BQQConcurrencyLimiter limiter = mLimiter;
+      if (limiter != null) {
+        // retried overloads count too, or they would only be seen once retries ran out
+        task.getCallable().setRetryListener(error -> limiter.onSample(
+            now, mNanoClock.getAsLong() - now, inFlight, error));
+      }
+      task.getFuture().whenComplete((result, error) -> done(t, now, inFlight, error));
+    }
+    return entry.mTask;
+  }
+
+  private void done(Tenant t, long startNanos, int inFlight, Throwable error) {
+    mLock.lock();
+    try {
+      t.mRunning--;
+      mRunning--;
+      if (mLimiter != null) {
+        mLimiter.onSample(startNanos, mNanoClock.getAsLong() - startNanos, inFlight, error);
+      }
+      mNotEmpty.signalAll();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Picks the lane whose oldest runnable task has the best aged rank, the older task
+   * winning ties. The caller must hold the lock.
+   */
+  private Lane nextLane() {
+    long now = mNanoClock.getAsLong();
+    Lane best = null;
+    long bestRank = Long.MAX_VALUE;
+    long bestEnqueued = 0;
+    for (int i = 0; i < LANES.length; ++i) {
+      Lane lane = mLanes.get(i);
+      Entry oldest = lane.oldestRunnable();
+      if (oldest == null) {
+        continue;
+      }
+      long rank = i - (now - oldest.mEnqueuedNanos) / mAgingNanos;
+      if (rank < bestRank || (rank == bestRank && oldest.mEnqueuedNanos - bestEnqueued < 0)) {
+        best = lane;
+        bestRank = rank;
+        bestEnqueued = oldest.mEnqueuedNanos;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * The tenants' FIFO queues of one priority lane, taking turns by deficit round robin.
+   */
+  private static final class Lane {
+    private final Map<Tenant, TenantQueue> mQueues = new HashMap<>();
+    // tenants with queued tasks, the first one's turn is next
+    private final ArrayDeque<TenantQueue> mTurns = new ArrayDeque<>();
+    private int mSize = 0;
+
+    void add(Entry entry) {
+      TenantQueue queue = mQueues.get(entry.mTenant);
+      if (queue == null) {
+        queue = new TenantQueue(entry.mTenant);
+        mQueues.put(entry.mTenant, queue);
+        mTurns.addLast(queue);
+      }
+      queue.mEntries.addLast(entry);
+      mSize++;
+    }
+
+    /**
+     * @return the oldest head of a tenant which may run another query, or null
+     */
+    Entry oldestRunnable() {
+      Entry oldest = null;
+      for (TenantQueue queue : mTurns) {
+        Entry head = queue.mEntries.peekFirst();
+        if (queue.mTenant.canRun() && (oldest == null
+            || head.mEnqueuedNanos - oldest.mEnqueuedNanos < 0)) {
+          oldest = head;
+        }
+      }
+      return oldest;
+    }
+
+    /**
+     * @return the head of the next tenant in turn which may run another query, or null
+     */
+    Entry peek() {
+      for (TenantQueue queue : mTurns) {
+        if (queue.mTenant.canRun()) {
+          return queue.mEntries.peekFirst();
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Takes the head of the next tenant in turn which may run another query. A tenant keeps
+     * its turn until it used up its deficit, which is topped up by its weight every turn.
+     * @return the entry, or null if every tenant is at its max running queries
+     */
+    Entry poll() {
+      for (int i = 0, n = mTurns.size(); i < n; ++i) {
+        TenantQueue queue = mTurns.peekFirst();
+        if (!queue.mTenant.canRun()) {
+          mTurns.addLast(mTurns.pollFirst());
+          continue;
+        }
+        if (queue.mDeficit <= 0) {
+          queue.mDeficit += queue.mTenant.mWeight;
+        }
+        queue.mDeficit--;
+        Entry entry = queue.mEntries.pollFirst();
+        if (queue.mEntries.isEmpty()) {
+          // an idle tenant doesn't save up turns
+          mTurns.pollFirst();
+          mQueues.remove(queue.mTenant);
+        } else if (queue.mDeficit <= 0) {
+          mTurns.addLast(mTurns.pollFirst());
+        }
+        mSize--;
+        return entry;
+      }
+      return null;
+    }
+
+    /**
+     * @return the lane's oldest entry regardless of tenant limits, removed, or null if empty
+     */
+    Entry pollOldest() {
+      TenantQueue oldest = null;
+      for (TenantQueue queue : mTurns) {
+        if (oldest == null || queue.mEntries.peekFirst().mEnqueuedNanos
+            - oldest.mEntries.peekFirst().mEnqueuedNanos < 0) {
+          oldest = queue;
+        }
+      }
+      return oldest == null ? null : removeFrom(oldest, oldest.mEntries.peekFirst());
+    }
+
+    /**
+     * @return the entry holding task, removed, or null if not in this lane
+     */
+    Entry remove(Object task) {
+      for (TenantQueue queue : mTurns) {
+        for (Entry entry : queue.mEntries) {
+          if (entry.mTask.equals(task)) {
+            return removeFrom(queue, entry);
+          }
+        }
+      }
+      return null;
+    }
+
+    private Entry removeFrom(TenantQueue queue, Entry entry) {
+      queue.mEntries.remove(entry);
+      if (queue.mEntries.isEmpty()) {
+        mTurns.remove(queue);
+        mQueues.remove(queue.mTenant);
+      }
+      mSize--;
+      return entry;
+    }
+  }
+
+  private static final class TenantQueue {
+    private final Tenant mTenant;
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+    private int mDeficit = 0;
+
+    TenantQueue(Tenant tenant) {
+      mTenant = tenant;
+    }
+  }
+
+  /**
+   * A tenant's settings and counters, shared by all lanes.
+   */
+  private static final class Tenant {
+    private final String mName;
+    private int mWeight = 1;
+    private int mMaxRunning = Integer.MAX_VALUE;
+    private int mQueued = 0;
+    private int mRunning = 0;
+    private long mDequeued = 0;
+    private long mTotalWaitNanos = 0;
+    private long mMaxWaitNanos = 0;
+
+    Tenant(String name) {
+      mName = name;
+    }
+
+    boolean canRun() {
+      return mRunning < mMaxRunning;
+    }
+  }
+
+  private static final class Entry {
+    private final Runnable mTask;
+    private final Tenant mTenant;
+    private final long mEnqueuedNanos;
+
+    Entry(Runnable task, Tenant tenant, long enqueuedNanos) {
+      mTask = task;
+      mTenant = tenant;
+      mEnqueuedNanos = enqueuedNanos;
+    }
+  }
+}
@@ -14,20 +14,71 @@
 package com.google.bqq;
 
 import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.RetryParams;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.spi.BigQueryRpc;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * A factory to build BigQuery Client connections.
+ * Clients talk to BigQuery unless a backend, such-as a BQQSimulator, is set. The client
+ * library's own retries are turned off on every client, as queries retry through their
+ * BQQRetryPolicy instead, so a failure isn't retried by both.
  */
 public final class BQQServiceFactory {
-  
+  private static volatile BigQueryRpc sBackend;
+
+  /**
+   * Makes every client built from now on talk to a backend instead of BigQuery, without
+   * credentials. Clients already registered are dropped, so queries started afterwards use
+   * the backend too.
+   * @param backend the backend, such-as a BQQSimulator, or null to talk to BigQuery again
+   */
+  public static void setBackend(BigQueryRpc backend) {
+    sBackend = backend;
+    BQQClientRegistry.getInstance().clear();
+  }
+
+  /**
+   * @return the backend clients talk to instead of BigQuery, or null
+   */
+  public static BigQueryRpc getBackend() {
+    return sBackend;
+  }
+
+  /**
+   * Returns a shared BQ Client from the BQQClientRegistry, building it on first use.
+   * @param projectId project id, or null if using default credentials
+   * @param serviceAccountPath path to service account, or null if using default credentials
+   * @return a BQ client
+   * @throws FileNotFoundException if no service account found in path
+   * @throws IOException if failed to read service account
+   */
+  public static BigQuery getClient(String projectId, String serviceAccountPath)
+      throws FileNotFoundException, IOException {
+    return BQQClientRegistry.getInstance().getClient(projectId, serviceAccountPath);
+  }
+
+  /**
+   * Builds a new BQ Client. Prefer getClient, which reuses clients across queries.
+   * @param projectId project id, or null if using default credentials
+   * @param serviceAccountPath path to service account, or null if using default credentials
+   * @return a BQ client
+   * @throws FileNotFoundException if no service account found in path
+   * @throws IOException if failed to read service account
+   */
   public static BigQuery buildClient(String projectId, String serviceAccountPath)
       throws FileNotFoundException, IOException {
-    
+    BigQueryRpc backend = sBackend;
+    if (backend != null) {
+      return buildBackendClient(projectId, backend);
+    }
+
     boolean isProjectIdSet = projectId != null && !projectId.isEmpty();
     boolean isServiceAccountPathSet = serviceAccountPath != null && !serviceAccountPath.isEmpty();
     
@@ -43,12 +94,33 @@ public final class BQQServiceFactory {
       return buildDefaultClient();
     }
   }
+
+  /**
+   * Builds a BQ Client talking to a backend.
+   * @param projectId project id, or null for BQQSimulator.PROJECT_ID
+   * @param backend the backend
+   * @return a BQ Client
+   */
+  private static BigQuery buildBackendClient(String projectId, BigQueryRpc backend) {
+    return BigQueryOptions.newBuilder()
+        .setProjectId(projectId == null || projectId.isEmpty()
+            ? BQQSimulator.PROJECT_ID : projectId)
+        .setCredentials(NoCredentials.getInstance())
+        .setRetryParams(RetryParams.noRetries())
+        .setServiceRpcFactory(options -> backend)
+        .build()
+        .getService();
+  }
+
   /**
    * Builds a BQ Client using default credentials
    * @return a BQ Client
    */
   private static BigQuery buildDefaultClient() {
-    return BigQueryOptions.getDefaultInstance().getService();
+    return BigQueryOptions.newBuilder()
+        .setRetryParams(RetryParams.noRetries())
+        .build()
+        .getService();
   }
   
   /**
@@ -61,13 +133,14 @@ public final class BQQServiceFactory {
    */
   private static BigQuery buildServiceClient(String projectId, String serviceAccountPath)
       throws FileNotFoundException, IOException {
-      
-    return BigQueryOptions.newBuilder()
-          .setProjectId(projectId)
-          .setCredentials(
-              ServiceAccountCredentials.fromStream(new FileInputStream(
-                  serviceAccountPath)))
-          .build()
-          .getService();
+
+    try (InputStream serviceAccount = new FileInputStream(serviceAccountPath)) {
+      return BigQueryOptions.newBuilder()
+            .setProjectId(projectId)
+            .setCredentials(ServiceAccountCredentials.fromStream(serviceAccount))
+            .setRetryParams(RetryParams.noRetries())
+            .build()
+            .getService();
+    }
   }
 }
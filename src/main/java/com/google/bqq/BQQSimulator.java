@@ -0,0 +1,705 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.api.services.bigquery.model.Dataset;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.GetQueryResultsResponse;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfiguration;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.QueryRequest;
+import com.google.api.services.bigquery.model.QueryResponse;
+import com.google.api.services.bigquery.model.Table;
+import com.google.api.services.bigquery.model.TableCell;
+import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.services.bigquery.model.TableRow;
+import com.google.api.services.bigquery.model.TableSchema;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.spi.BigQueryRpc;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process simulation of the BigQuery API, to load test the client offline. Install it with
+ * BQQServiceFactory.setBackend and every client built afterwards talks to it instead of
+ * BigQuery, through the real client library.
+ * Every query starts a job whose runtime and number of result rows are drawn from
+ * configurable distributions. Results are paged like BigQuery pages them, with rows
+ * (id INTEGER, score FLOAT, name STRING, active BOOLEAN) generated from their index.
+ * Calls can be rejected by a rate limit or a concurrent query quota, and transient failures
+ * and hung status checks can be injected. All randomness comes from one seeded Random, so a
+ * run with the same seed and the same order of calls behaves the same.
+ * The simulator keeps every job it started, use a new one per test run.
+ */
+public class BQQSimulator implements BigQueryRpc {
+  /** Project jobs are reported in, unless the client names its own. */
+  public static final String PROJECT_ID = "bqq-simulator";
+
+  private static final TableSchema SCHEMA = new TableSchema().setFields(Arrays.asList(
+      new TableFieldSchema().setName("id").setType("INTEGER").setMode("NULLABLE"),
+      new TableFieldSchema().setName("score").setType("FLOAT").setMode("NULLABLE"),
+      new TableFieldSchema().setName("name").setType("STRING").setMode("NULLABLE"),
+      new TableFieldSchema().setName("active").setType("BOOLEAN").setMode("NULLABLE")));
+
+  private final Random mRandom;
+  private final LongSupplier mNanoClock;
+  private final Map<String, SimJob> mJobs = new ConcurrentHashMap<>();
+  private final List<SimJob> mRunning = new ArrayList<>();
+  private final AtomicLong mJobCount = new AtomicLong();
+
+  private volatile Distribution mJobRuntimeMs = Distribution.fixed(0);
+  private volatile Distribution mResultRows = Distribution.fixed(10);
+  private volatile int mStatusChecksNeeded = 0;
+  private volatile int mPageSize = 1000;
+  private volatile int mMaxConcurrentJobs = Integer.MAX_VALUE;
+  private volatile double mMaxRequestsPerSecond = 0;
+  private volatile double mRpcFailureRate = 0;
+  private volatile double mJobFailureRate = 0;
+  private volatile double mStallRate = 0;
+  private volatile long mStallMs = 0;
+
+  // token bucket of the request rate limit, guarded by this
+  private double mTokens;
+  private long mRefilledNanos;
+
+  private final LongAdder mJobsStarted = new LongAdder();
+  private final LongAdder mStatusChecks = new LongAdder();
+  private final LongAdder mRateLimited = new LongAdder();
+  private final LongAdder mQuotaExceeded = new LongAdder();
+  private final LongAdder mInjectedFailures = new LongAdder();
+  private final LongAdder mCancelled = new LongAdder();
+  private final LongAdder mStalls = new LongAdder();
+
+  /**
+   * @param seed seed of every random draw
+   */
+  public BQQSimulator(long seed) {
+    this(seed, System::nanoTime);
+  }
+
+  BQQSimulator(long seed, LongSupplier nanoClock) {
+    mRandom = new Random(seed);
+    mNanoClock = nanoClock;
+    mRefilledNanos = nanoClock.getAsLong();
+  }
+
+  /**
+   * Random variable the simulator draws job runtimes and result sizes from.
+   */
+  public interface Distribution {
+    /**
+     * @param random the simulator's random source
+     * @return a value, negative values count as 0
+     */
+    long sample(Random random);
+
+    /**
+     * @param value the value
+     * @return a distribution which always returns value
+     */
+    static Distribution fixed(long value) {
+      return random -> value;
+    }
+
+    /**
+     * @param min lowest value
+     * @param max highest value
+     * @return a distribution which returns any value between min and max equally often
+     */
+    static Distribution uniform(long min, long max) {
+      if (max < min) {
+        throw new IllegalArgumentException("max must not be smaller than min");
+      }
+      return random -> min + (long) (random.nextDouble() * (max - min + 1));
+    }
+
+    /**
+     * @param mean mean value
+     * @return an exponential distribution, like the gaps between independent arrivals
+     */
+    static Distribution exponential(double mean) {
+      if (mean <= 0) {
+        throw new IllegalArgumentException("mean must be positive");
+      }
+      return random -> Math.round(-mean * Math.log(1 - random.nextDouble()));
+    }
+
+    /**
+     * @param median median value
+     * @param sigma standard deviation of the value's logarithm, the larger the longer the tail
+     * @return a log-normal distribution, the usual shape of query runtimes
+     */
+    static Distribution logNormal(double median, double sigma) {
+      if (median <= 0 || sigma < 0) {
+        throw new IllegalArgumentException("median must be positive and sigma not negative");
+      }
+      return random -> Math.round(median * Math.exp(sigma * random.nextGaussian()));
+    }
+  }
+
+  /**
+   * @param runtimeMs distribution of the time in ms from starting a job until it completes,
+   *     0 by default
+   * @return this simulator
+   */
+  public BQQSimulator setJobRuntime(Distribution runtimeMs) {
+    mJobRuntimeMs = runtimeMs;
+    return this;
+  }
+
+  /**
+   * @param rows distribution of the number of rows a job returns, 10 by default
+   * @return this simulator
+   */
+  public BQQSimulator setResultRows(Distribution rows) {
+    mResultRows = rows;
+    return this;
+  }
+
+  /**
+   * Makes jobs complete only once they've been checked on a number of times, whatever their
+   * runtime, for tests which count status checks.
+   * @param statusChecks status checks a job needs before it completes, 0 by default
+   * @return this simulator
+   */
+  public BQQSimulator setStatusChecksNeeded(int statusChecks) {
+    if (statusChecks < 0) {
+      throw new IllegalArgumentException("statusChecks must not be negative");
+    }
+    mStatusChecksNeeded = statusChecks;
+    return this;
+  }
+
+  /**
+   * @param pageSize max number of rows returned per response, 1000 by default
+   * @return this simulator
+   */
+  public BQQSimulator setPageSize(int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be at least 1");
+    }
+    mPageSize = pageSize;
+    return this;
+  }
+
+  /**
+   * Rejects queries with rateLimitExceeded while this many jobs are running.
+   * @param maxConcurrentJobs max number of running jobs, unlimited by default
+   * @return this simulator
+   */
+  public BQQSimulator setMaxConcurrentJobs(int maxConcurrentJobs) {
+    if (maxConcurrentJobs < 1) {
+      throw new IllegalArgumentException("maxConcurrentJobs must be at least 1");
+    }
+    mMaxConcurrentJobs = maxConcurrentJobs;
+    return this;
+  }
+
+  /**
+   * Rejects calls with rateLimitExceeded beyond a rate, allowing bursts of up to a second's
+   * worth of calls.
+   * @param requestsPerSecond max number of calls per second, 0 for unlimited, the default
+   * @return this simulator
+   */
+  public synchronized BQQSimulator setMaxRequestsPerSecond(double requestsPerSecond) {
+    if (requestsPerSecond < 0) {
+      throw new IllegalArgumentException("requestsPerSecond must not be negative");
+    }
+    mMaxRequestsPerSecond = requestsPerSecond;
+    mTokens = requestsPerSecond;
+    mRefilledNanos = mNanoClock.getAsLong();
+    return this;
+  }
+
+  /**
+   * @param failureRate fraction (0-1) of calls which fail with a 500 backendError before
+   *     reaching the job, 0 by default
+   * @return this simulator
+   */
+  public BQQSimulator setRpcFailureRate(double failureRate) {
+    mRpcFailureRate = checkRate(failureRate);
+    return this;
+  }
+
+  /**
+   * @param failureRate fraction (0-1) of jobs which complete with a backendError instead of
+   *     rows, 0 by default
+   * @return this simulator
+   */
+  public BQQSimulator setJobFailureRate(double failureRate) {
+    mJobFailureRate = checkRate(failureRate);
+    return this;
+  }
+
+  /**
+   * Makes some getQueryResults calls hang before answering, as the occasional call does.
+   * @param stallRate fraction (0-1) of getQueryResults calls which hang, 0 by default
+   * @param stallMs how long they hang for
+   * @return this simulator
+   */
+  public BQQSimulator setStallRate(double stallRate, long stallMs) {
+    if (stallMs < 0) {
+      throw new IllegalArgumentException("stallMs must not be negative");
+    }
+    mStallRate = checkRate(stallRate);
+    mStallMs = stallMs;
+    return this;
+  }
+
+  private static double checkRate(double rate) {
+    if (rate < 0 || rate > 1) {
+      throw new IllegalArgumentException("rate must be between 0 and 1");
+    }
+    return rate;
+  }
+
+  @Override
+  public QueryResponse query(QueryRequest request) {
+    admit();
+    if (Boolean.TRUE.equals(request.getDryRun())) {
+      return new QueryResponse().setJobComplete(true).setSchema(SCHEMA)
+          .setTotalRows(BigInteger.ZERO).setTotalBytesProcessed(0L).setCacheHit(false);
+    }
+
+    SimJob job = start();
+    awaitJob(job, request.getTimeoutMs());
+    QueryResponse response = new QueryResponse()
+        .setJobReference(job.getReference())
+        .setJobComplete(false);
+    if (!job.isDone(mNanoClock.getAsLong())) {
+      return response;
+    }
+    Page page = job.getPage(0, request.getMaxResults());
+    return response.setJobComplete(true)
+        .setSchema(SCHEMA)
+        .setTotalBytesProcessed(0L)
+        .setCacheHit(false)
+        .setTotalRows(page.mTotalRows)
+        .setRows(page.mRows)
+        .setPageToken(page.mPageToken)
+        .setErrors(page.mErrors);
+  }
+
+  @Override
+  public GetQueryResultsResponse getQueryResults(String projectId, String jobId,
+      Map<Option, ?> options) {
+    admit();
+    mStatusChecks.increment();
+    stall();
+    SimJob job = mJobs.get(jobId);
+    if (job == null) {
+      // the client library turns a 404 into a null response
+      return null;
+    }
+    job.mChecks.incrementAndGet();
+    awaitJob(job, (Long) options.get(Option.TIMEOUT));
+
+    GetQueryResultsResponse response = new GetQueryResultsResponse()
+        .setJobReference(new JobReference().setProjectId(projectId).setJobId(jobId))
+        .setJobComplete(false);
+    if (!job.isDone(mNanoClock.getAsLong())) {
+      return response;
+    }
+    Object pageToken = options.get(Option.PAGE_TOKEN);
+    Number startIndex = (Number) options.get(Option.START_INDEX);
+    long start = pageToken != null ? Long.parseLong(pageToken.toString())
+        : startIndex != null ? startIndex.longValue() : 0;
+    Page page = job.getPage(start, (Number) options.get(Option.MAX_RESULTS));
+    return response.setJobComplete(true)
+        .setSchema(SCHEMA)
+        .setTotalBytesProcessed(0L)
+        .setCacheHit(false)
+        .setTotalRows(page.mTotalRows)
+        .setRows(page.mRows)
+        .setPageToken(page.mPageToken)
+        .setErrors(page.mErrors);
+  }
+
+  @Override
+  public boolean cancel(String projectId, String jobId) {
+    admit();
+    SimJob job = mJobs.get(jobId);
+    if (job == null || job.isDone(mNanoClock.getAsLong())) {
+      return job != null;
+    }
+    job.mCancelled = true;
+    mCancelled.increment();
+    return true;
+  }
+
+  /**
+   * Applies the injected failures and the rate limit to a call.
+   */
+  private void admit() {
+    synchronized (this) {
+      if (mRpcFailureRate > 0 && mRandom.nextDouble() < mRpcFailureRate) {
+        mInjectedFailures.increment();
+        throw new BigQueryException(500, "Backend error, injected by the simulator",
+            new BigQueryError("backendError", "simulator", "Backend error"));
+      }
+      if (mMaxRequestsPerSecond > 0) {
+        long now = mNanoClock.getAsLong();
+        mTokens = Math.min(mMaxRequestsPerSecond,
+            mTokens + (now - mRefilledNanos) * mMaxRequestsPerSecond / 1e9);
+        mRefilledNanos = now;
+        if (mTokens < 1) {
+          mRateLimited.increment();
+          throw new BigQueryException(403, "Exceeded rate limits: too many api requests",
+              new BigQueryError("rateLimitExceeded", "simulator", "too many api requests"));
+        }
+        mTokens--;
+      }
+    }
+  }
+
+  /**
+   * Hangs the call for the stall time, at the stall rate.
+   */
+  private void stall() {
+    synchronized (this) {
+      if (mStallRate == 0 || mRandom.nextDouble() >= mStallRate) {
+        return;
+      }
+    }
+    mStalls.increment();
+    try {
+      TimeUnit.MILLISECONDS.sleep(mStallMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Starts a job, unless the concurrent job quota is used up.
+   */
+  private SimJob start() {
+    long now = mNanoClock.getAsLong();
+    SimJob job;
+    synchronized (this) {
+      if (mMaxConcurrentJobs != Integer.MAX_VALUE) {
+        Iterator<SimJob> running = mRunning.iterator();
+        while (running.hasNext()) {
+          if (running.next().isDone(now)) {
+            running.remove();
+          }
+        }
+        if (mRunning.size() >= mMaxConcurrentJobs) {
+          mQuotaExceeded.increment();
+          throw new BigQueryException(403, "Exceeded rate limits: too many concurrent queries",
+              new BigQueryError("rateLimitExceeded", "simulator", "too many concurrent queries"));
+        }
+      }
+      long runtimeMs = Math.max(0, mJobRuntimeMs.sample(mRandom));
+      long rows = Math.max(0, mResultRows.sample(mRandom));
+      boolean fails = mJobFailureRate > 0 && mRandom.nextDouble() < mJobFailureRate;
+      job = new SimJob("bqq-sim-" + mJobCount.incrementAndGet(),
+          now + TimeUnit.MILLISECONDS.toNanos(runtimeMs), rows, fails);
+      if (mMaxConcurrentJobs != Integer.MAX_VALUE) {
+        mRunning.add(job);
+      }
+    }
+    mJobs.put(job.mId, job);
+    mJobsStarted.increment();
+    return job;
+  }
+
+  /**
+   * Holds the call until the job is done or the call's server side wait is up, like
+   * BigQuery does with timeoutMs.
+   */
+  private void awaitJob(SimJob job, Long timeoutMs) {
+    if (timeoutMs == null || timeoutMs <= 0) {
+      return;
+    }
+    long waitNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(timeoutMs),
+        job.mDoneAtNanos - mNanoClock.getAsLong());
+    if (waitNanos <= 0 || job.mCancelled) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return number of jobs started
+   */
+  public long getJobsStarted() {
+    return mJobsStarted.sum();
+  }
+
+  /**
+   * @return number of getQueryResults calls, status checks and page reads alike
+   */
+  public long getStatusChecks() {
+    return mStatusChecks.sum();
+  }
+
+  /**
+   * @return number of calls rejected by the request rate limit
+   */
+  public long getRateLimitedCount() {
+    return mRateLimited.sum();
+  }
+
+  /**
+   * @return number of queries rejected by the concurrent job quota
+   */
+  public long getQuotaExceededCount() {
+    return mQuotaExceeded.sum();
+  }
+
+  /**
+   * @return number of calls failed on purpose by the RPC failure rate
+   */
+  public long getInjectedFailureCount() {
+    return mInjectedFailures.sum();
+  }
+
+  /**
+   * @return number of getQueryResults calls hung on purpose by the stall rate
+   */
+  public long getStallCount() {
+    return mStalls.sum();
+  }
+
+  /**
+   * @return number of jobs cancelled before completing
+   */
+  public long getCancelledCount() {
+    return mCancelled.sum();
+  }
+
+  /**
+   * @return number of jobs started which haven't completed yet
+   */
+  public int getRunningJobs() {
+    long now = mNanoClock.getAsLong();
+    int running = 0;
+    for (SimJob job : mJobs.values()) {
+      if (!job.isDone(now)) {
+        running++;
+      }
+    }
+    return running;
+  }
+
+  @Override
+  public String toString() {
+    return "BQQSimulator{jobsStarted=" + getJobsStarted() + ", statusChecks=" + getStatusChecks()
+        + ", rateLimited=" + getRateLimitedCount() + ", quotaExceeded=" + getQuotaExceededCount()
+        + ", injectedFailures=" + getInjectedFailureCount() + ", cancelled="
+        + getCancelledCount() + ", stalls=" + getStallCount() + "}";
+  }
+
+  /**
+   * A job, done once its runtime passed and it was checked on often enough, or once cancelled.
+   */
+  private final class SimJob {
+    private final String mId;
+    private final long mDoneAtNanos;
+    private final long mRows;
+    private final boolean mFails;
+    private final int mChecksNeeded = mStatusChecksNeeded;
+    private final AtomicInteger mChecks = new AtomicInteger();
+    private volatile boolean mCancelled = false;
+
+    SimJob(String id, long doneAtNanos, long rows, boolean fails) {
+      mId = id;
+      mDoneAtNanos = doneAtNanos;
+      mRows = rows;
+      mFails = fails;
+    }
+
+    boolean isDone(long nowNanos) {
+      return mCancelled || (nowNanos - mDoneAtNanos >= 0 && mChecks.get() >= mChecksNeeded);
+    }
+
+    JobReference getReference() {
+      return new JobReference().setProjectId(PROJECT_ID).setJobId(mId);
+    }
+
+    /**
+     * @param start index of the first row
+     * @param maxResults max number of rows asked for, or null
+     */
+    Page getPage(long start, Number maxResults) {
+      if (mCancelled) {
+        return new Page(error("stopped", "Job execution was cancelled"));
+      }
+      if (mFails) {
+        return new Page(error("backendError", "Job failed, injected by the simulator"));
+      }
+      long limit = maxResults == null ? mPageSize : Math.min(maxResults.longValue(), mPageSize);
+      long first = Math.min(Math.max(start, 0), mRows);
+      long end = Math.min(mRows, first + limit);
+      List<TableRow> rows = new ArrayList<>((int) (end - first));
+      for (long i = first; i < end; ++i) {
+        rows.add(row(i));
+      }
+      return new Page(BigInteger.valueOf(mRows), rows,
+          end < mRows ? String.valueOf(end) : null);
+    }
+  }
+
+  private static List<ErrorProto> error(String reason, String message) {
+    return Collections.singletonList(new ErrorProto().setReason(reason).setMessage(message)
+        .setLocation("simulator"));
+  }
+
+  /**
+   * @param index the row's index in its result
+   * @return the row at index, the same in every result
+   */
+  static TableRow row(long index) {
+    return new TableRow().setF(Arrays.asList(
+        new TableCell().setV(String.valueOf(index)),
+        new TableCell().setV(String.valueOf(index * 0.5)),
+        new TableCell().setV("name-" + index % 100),
+        new TableCell().setV(index % 2 == 0 ? "true" : "false")));
+  }
+
+  /**
+   * Rows of a response, or the errors of a job which failed.
+   */
+  private static final class Page {
+    private final BigInteger mTotalRows;
+    private final List<TableRow> mRows;
+    private final String mPageToken;
+    private final List<ErrorProto> mErrors;
+
+    Page(BigInteger totalRows, List<TableRow> rows, String pageToken) {
+      mTotalRows = totalRows;
+      mRows = rows;
+      mPageToken = pageToken;
+      mErrors = null;
+    }
+
+    Page(List<ErrorProto> errors) {
+      mTotalRows = BigInteger.ZERO;
+      mRows = null;
+      mPageToken = null;
+      mErrors = errors;
+    }
+  }
+
+  @Override
+  public Dataset getDataset(String projectId, String datasetId, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Tuple<String, Iterable<Dataset>> listDatasets(String projectId,
+      Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Dataset create(Dataset dataset, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Table create(Table table, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Job create(Job job, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public boolean deleteDataset(String projectId, String datasetId, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Dataset patch(Dataset dataset, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Table patch(Table table, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Table getTable(String projectId, String datasetId, String tableId,
+      Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Tuple<String, Iterable<Table>> listTables(String projectId, String datasetId,
+      Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public boolean deleteTable(String projectId, String datasetId, String tableId) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public TableDataInsertAllResponse insertAll(String projectId, String datasetId,
+      String tableId, TableDataInsertAllRequest request) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Tuple<String, Iterable<TableRow>> listTableData(String projectId, String datasetId,
+      String tableId, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Job getJob(String projectId, String jobId, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Tuple<String, Iterable<Job>> listJobs(String projectId, Map<Option, ?> options) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public String open(JobConfiguration configuration) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+
+  @Override
+  public Job write(String uploadId, byte[] toWrite, int toWriteOffset, long destOffset,
+      int length, boolean last) {
+    throw new UnsupportedOperationException("Not simulated");
+  }
+}
@@ -0,0 +1,147 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.QueryResult;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical queries which are queued or running into a single job.
+ * Every caller gets its own future, fed by the shared job. The shared job is reference
+ * counted: a caller cancelling its future, or running past its deadline, only detaches it,
+ * the job itself is cancelled once every caller has left.
+ */
+class BQQSingleFlight {
+  private final Map<BQQQueryKey, Flight> mFlights = new ConcurrentHashMap<>();
+  private final LongAdder mCoalesced = new LongAdder();
+
+  /**
+   * Joins the in-flight query with the same key, or starts a new one.
+   * @param key the query's key
+   * @param start starts the query if none is in flight
+   * @return a future for this caller only
+   * @throws RuntimeException whatever start throws
+   */
+  CompletableFuture<QueryResult> execute(BQQQueryKey key,
+      Supplier<CompletableFuture<QueryResult>> start) {
+    while (true) {
+      Flight existing = mFlights.get(key);
+      if (existing != null) {
+        CompletableFuture<QueryResult> view = existing.join();
+        if (view != null) {
+          mCoalesced.increment();
+          return view;
+        }
+        // finished or abandoned, start over
+        mFlights.remove(key, existing);
+        continue;
+      }
+
+      Flight flight = new Flight();
+      if (mFlights.putIfAbsent(key, flight) != null) {
+        continue;
+      }
+      CompletableFuture<QueryResult> view = flight.join();
+      flight.mResult.whenComplete((result, error) -> mFlights.remove(key, flight));
+      try {
+        flight.attach(start.get());
+      } catch (RuntimeException e) {
+        // couldn't be queued, fail anyone who joined in the meantime
+        flight.mResult.completeExceptionally(e);
+        throw e;
+      }
+      return view;
+    }
+  }
+
+  /**
+   * @return number of queries which joined an already in-flight query
+   */
+  long getCoalescedCount() {
+    return mCoalesced.sum();
+  }
+
+  /**
+   * @return number of distinct queries in flight
+   */
+  int getInFlightCount() {
+    return mFlights.size();
+  }
+
+  /**
+   * One shared job and the callers waiting on it.
+   */
+  private static final class Flight {
+    private final CompletableFuture<QueryResult> mResult = new CompletableFuture<>();
+    private CompletableFuture<QueryResult> mJob;
+    private int mRefCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * @return a new caller's future, or null if the flight can no longer be joined
+     */
+    synchronized CompletableFuture<QueryResult> join() {
+      if (mClosed || mResult.isDone()) {
+        return null;
+      }
+      mRefCount++;
+
+      CompletableFuture<QueryResult> view = new CompletableFuture<>();
+      mResult.whenComplete((result, error) -> {
+        if (error != null) {
+          view.completeExceptionally(error);
+        } else {
+          view.complete(result);
+        }
+      });
+      view.whenComplete((result, error) -> {
+        if (!mResult.isDone()) {
+          // cancelled or timed out before the job finished
+          release();
+        }
+      });
+      return view;
+    }
+
+    synchronized void attach(CompletableFuture<QueryResult> job) {
+      mJob = job;
+      job.whenComplete((result, error) -> {
+        if (error != null) {
+          mResult.completeExceptionally(error);
+        } else {
+          mResult.complete(result);
+        }
+      });
+      if (mClosed) {
+        // every caller cancelled before the job was handed over
+        job.cancel(true);
+      }
+    }
+
+    private synchronized void release() {
+      if (--mRefCount > 0 || mResult.isDone()) {
+        return;
+      }
+      mClosed = true;
+      if (mJob != null) {
+        mJob.cancel(true);
+      }
+      mResult.cancel(false);
+    }
+  }
+}
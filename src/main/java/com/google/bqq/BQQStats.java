@@ -0,0 +1,171 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Snapshot of the queries a BQQClient ran since startup, see BQQClient.getStats.
+ * A query's life is split in phases, each with its own latency histogram:
+ * waiting in the queue, starting its job (rate limiting and retries included), the job
+ * running in BigQuery, and handing over its result. Results served from the cache or
+ * shared with an identical in-flight query aren't counted.
+ */
+public final class BQQStats {
+  private final long mSubmissions;
+  private final long mPolls;
+  private final long mSuccesses;
+  private final Map<String, Long> mFailures;
+  private final long mJobsCancelled;
+  private final long mRemovedFromQueue;
+  private final BQQLatencyHistogram mQueueWait;
+  private final BQQLatencyHistogram mSubmit;
+  private final BQQLatencyHistogram mExecution;
+  private final BQQLatencyHistogram mFetch;
+  private final BQQLatencyHistogram mTotal;
+
+  BQQStats(long submissions, long polls, long successes, Map<String, Long> failures,
+      long jobsCancelled, long removedFromQueue, BQQLatencyHistogram queueWait,
+      BQQLatencyHistogram submit, BQQLatencyHistogram execution, BQQLatencyHistogram fetch,
+      BQQLatencyHistogram total) {
+    mSubmissions = submissions;
+    mPolls = polls;
+    mSuccesses = successes;
+    mFailures = Collections.unmodifiableMap(failures);
+    mJobsCancelled = jobsCancelled;
+    mRemovedFromQueue = removedFromQueue;
+    mQueueWait = queueWait;
+    mSubmit = submit;
+    mExecution = execution;
+    mFetch = fetch;
+    mTotal = total;
+  }
+
+  /**
+   * @return number of job start RPCs made, retries included
+   */
+  public long getSubmissions() {
+    return mSubmissions;
+  }
+
+  /**
+   * @return number of status check RPCs made
+   */
+  public long getPolls() {
+    return mPolls;
+  }
+
+  /**
+   * @return number of queries which succeeded
+   */
+  public long getSuccesses() {
+    return mSuccesses;
+  }
+
+  /**
+   * @return number of queries which failed or were cancelled
+   */
+  public long getFailures() {
+    long failures = 0;
+    for (long count : mFailures.values()) {
+      failures += count;
+    }
+    return failures;
+  }
+
+  /**
+   * @return number of failed queries by BigQuery error reason, such-as "rateLimitExceeded",
+   *     "cancelled" for cancelled queries, "deadlineExceeded" for queries which ran past
+   *     their deadline, or exception class name for other failures
+   */
+  public Map<String, Long> getFailuresByReason() {
+    return mFailures;
+  }
+
+  /**
+   * @return number of queries which were cancelled
+   */
+  public long getCancelled() {
+    Long cancelled = mFailures.get(BQQQueryMetrics.CANCELLED);
+    return cancelled == null ? 0 : cancelled;
+  }
+
+  /**
+   * @return number of queries which ran past their deadline
+   */
+  public long getDeadlineExceeded() {
+    Long exceeded = mFailures.get(BQQQueryMetrics.DEADLINE_EXCEEDED);
+    return exceeded == null ? 0 : exceeded;
+  }
+
+  /**
+   * @return number of running BigQuery jobs stopped by jobs.cancel, after their query
+   *     was cancelled or ran past its deadline
+   */
+  public long getJobsCancelled() {
+    return mJobsCancelled;
+  }
+
+  /**
+   * @return number of cancelled or timed out queries taken out of the queue before they ran
+   */
+  public long getRemovedFromQueue() {
+    return mRemovedFromQueue;
+  }
+
+  /**
+   * @return time from being queued until a worker took the query
+   */
+  public BQQLatencyHistogram getQueueWait() {
+    return mQueueWait;
+  }
+
+  /**
+   * @return time from a worker taking the query until BigQuery accepted its job
+   */
+  public BQQLatencyHistogram getSubmitLatency() {
+    return mSubmit;
+  }
+
+  /**
+   * @return time from BigQuery accepting the job until it was seen complete
+   */
+  public BQQLatencyHistogram getExecutionLatency() {
+    return mExecution;
+  }
+
+  /**
+   * @return time from the job being seen complete until its result was handed over
+   */
+  public BQQLatencyHistogram getFetchLatency() {
+    return mFetch;
+  }
+
+  /**
+   * @return time from being queued until the query's future completed
+   */
+  public BQQLatencyHistogram getTotalLatency() {
+    return mTotal;
+  }
+
+  @Override
+  public String toString() {
+    return "BQQStats{submissions=" + mSubmissions + ", polls=" + mPolls
+        + ", successes=" + mSuccesses + ", failures=" + mFailures
+        + ", jobsCancelled=" + mJobsCancelled + ", removedFromQueue=" + mRemovedFromQueue
+        + ",\n queueWait=" + mQueueWait + ",\n submit=" + mSubmit
+        + ",\n execution=" + mExecution + ",\n fetch=" + mFetch + ",\n total=" + mTotal + "}";
+  }
+}
@@ -0,0 +1,82 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+/**
+ * Snapshot of one tenant's share of a BQQClient's queue, see BQQClient.getTenantStats.
+ */
+public final class BQQTenantStats {
+  private final String mTenant;
+  private final int mQueued;
+  private final int mRunning;
+  private final long mDequeued;
+  private final long mTotalWaitMillis;
+  private final long mMaxWaitMillis;
+
+  BQQTenantStats(String tenant, int queued, int running, long dequeued,
+      long totalWaitMillis, long maxWaitMillis) {
+    mTenant = tenant;
+    mQueued = queued;
+    mRunning = running;
+    mDequeued = dequeued;
+    mTotalWaitMillis = totalWaitMillis;
+    mMaxWaitMillis = maxWaitMillis;
+  }
+
+  public String getTenant() {
+    return mTenant;
+  }
+
+  /**
+   * @return number of the tenant's queries waiting in the queue
+   */
+  public int getQueued() {
+    return mQueued;
+  }
+
+  /**
+   * @return number of the tenant's queries taken off the queue which haven't completed yet
+   */
+  public int getRunning() {
+    return mRunning;
+  }
+
+  /**
+   * @return number of the tenant's queries taken off the queue so far
+   */
+  public long getDequeued() {
+    return mDequeued;
+  }
+
+  /**
+   * @return mean time in ms the tenant's queries waited in the queue, or 0 if none dequeued
+   */
+  public double getMeanWaitMillis() {
+    return mDequeued == 0 ? 0 : (double) mTotalWaitMillis / mDequeued;
+  }
+
+  /**
+   * @return longest time in ms one of the tenant's queries waited in the queue
+   */
+  public long getMaxWaitMillis() {
+    return mMaxWaitMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "BQQTenantStats{tenant=" + mTenant + ", queued=" + mQueued + ", running=" + mRunning
+        + ", dequeued=" + mDequeued + ", meanWaitMs=" + getMeanWaitMillis()
+        + ", maxWaitMs=" + mMaxWaitMillis + "}";
+  }
+}
@@ -0,0 +1,178 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor which runs every task on its own virtual thread, with at most maxConcurrent
+ * tasks running at once. Tasks wait in a queue until a permit is free, and a dispatcher
+ * thread starts them in queue order.
+ * Virtual threads need a Java 21+ runtime, see isSupported.
+ */
+public class BQQVirtualThreadExecutor extends AbstractExecutorService {
+  private final BlockingQueue<Runnable> mQueue;
+  private final Semaphore mPermits;
+  private final ThreadFactory mThreadFactory;
+  private final Set<Thread> mRunning = ConcurrentHashMap.newKeySet();
+  private final Thread mDispatcher;
+  private volatile boolean mShutdown = false;
+
+  /**
+   * Starts an executor with a dispatcher reading from the given queue.
+   * @param maxConcurrent max number of tasks running at once
+   * @param queue queue tasks wait in until a permit is free
+   * @throws UnsupportedOperationException if the runtime has no virtual threads
+   */
+  public BQQVirtualThreadExecutor(int maxConcurrent, BlockingQueue<Runnable> queue) {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("maxConcurrent must be at least 1");
+    }
+    mQueue = queue;
+    mPermits = new Semaphore(maxConcurrent);
+    mThreadFactory = virtualThreadFactory("bqq-virtual-");
+    mDispatcher = virtualThreadFactory("bqq-dispatcher-").newThread(this::dispatch);
+    mDispatcher.start();
+  }
+
+  /**
+   * @return true if this JVM can create virtual threads. Java 19 and 20 have Thread.ofVirtual,
+   *     but only with --enable-preview, so a thread is created to find out.
+   */
+  public static boolean isSupported() {
+    try {
+      virtualThreadFactory("bqq-probe-").newThread(() -> { });
+      return true;
+    } catch (UnsupportedOperationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the queue tasks wait in
+   */
+  public BlockingQueue<Runnable> getQueue() {
+    return mQueue;
+  }
+
+  /**
+   * @return number of tasks currently running
+   */
+  public int getActiveCount() {
+    return mRunning.size();
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    if (mShutdown) {
+      throw new RejectedExecutionException("BQQVirtualThreadExecutor is shut down");
+    }
+    if (!mQueue.offer(command)) {
+      throw new RejectedExecutionException("BQQVirtualThreadExecutor queue is full");
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    mShutdown = true;
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    mShutdown = true;
+    mDispatcher.interrupt();
+    for (Thread t : mRunning) {
+      t.interrupt();
+    }
+    List<Runnable> neverRun = new ArrayList<>();
+    mQueue.drainTo(neverRun);
+    return neverRun;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return mShutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return mShutdown && !mDispatcher.isAlive() && mRunning.isEmpty();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    mDispatcher.join(Math.max(1, unit.toMillis(timeout)));
+    for (Thread t : mRunning) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) {
+        break;
+      }
+      t.join(remaining);
+    }
+    return isTerminated();
+  }
+
+  /**
+   * Dispatcher loop, starts queued tasks as permits free up until shut down and drained.
+   */
+  private void dispatch() {
+    try {
+      while (!mShutdown || !mQueue.isEmpty()) {
+        mPermits.acquire();
+        Runnable task = mQueue.poll(100, TimeUnit.MILLISECONDS);
+        if (task == null) {
+          mPermits.release();
+          continue;
+        }
+
+        Thread t = mThreadFactory.newThread(() -> {
+          try {
+            task.run();
+          } finally {
+            mRunning.remove(Thread.currentThread());
+            mPermits.release();
+          }
+        });
+        mRunning.add(t);
+        t.start();
+      }
+    } catch (InterruptedException e) {
+      // shutdownNow, stop dispatching
+    }
+  }
+
+  /**
+   * Looks up Thread.ofVirtual() reflectively, so this library still builds for Java 8.
+   */
+  private static ThreadFactory virtualThreadFactory(String prefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+      builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+      return (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("Virtual threads need a Java 21+ runtime", e);
+    }
+  }
+}
@@ -15,13 +15,9 @@ import com.google.cloud.bigquery.QueryParameterValue;
 import com.google.cloud.bigquery.QueryRequest;
 import com.google.cloud.bigquery.QueryResult;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Example of queuing up lots of queries, then blocking until they all finish.
@@ -49,11 +45,13 @@ public class ExampleAsync {
       System.exit(1);
     }
 
-    // Queue up all my queries
+    // Queue up all my queries, printing each one's info as soon as it has results
     List<String> sqls = ExampleQueries.queries();
-    HashMap<String, Future<QueryResult>> map = new HashMap<String, Future<QueryResult>>();
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
     for (String sql : sqls) {
-      map.put(sql, bqqClient.queueQuery(sql, true));
+      futures.add(bqqClient.queueQueryAsync(sql, true)
+          .thenAccept(response -> printQueryDone(sql, response))
+          .exceptionally(ExampleAsync::printQueryFailed));
     }
 
     // Queue up parameterized query
@@ -67,48 +65,14 @@ public class ExampleAsync {
         .addNamedParameter("corpus", QueryParameterValue.string(corpus))
         .addNamedParameter("min_word_count", QueryParameterValue.int64(minWordCount))
         .setUseLegacySql(false).build();
-    map.put(parameterizedSql, bqqClient.queueQuery(parameterizedQueryRequest));
-
-    // Block until all queries are done, and output info once a query has results
-    while (!map.isEmpty()) {
-      System.out.println("\tNumber of queued up jobs: " + bqqClient.getNumJobs());
-      try {
-        Thread.sleep(500);
-      } catch (InterruptedException e1) {
-        Thread.currentThread().interrupt(); // ignore / reset
-      }
-
-      // See what queries have finished
-      Iterator<Map.Entry<String, Future<QueryResult>>> iter = map.entrySet().iterator();
-      Entry<String, Future<QueryResult>> entry;
-      while (iter.hasNext()) {
-        entry = iter.next();
-        Future<QueryResult> queryFuture = entry.getValue();
-
-        // Query finished, grab result & remove from our queue
-        if (queryFuture.isDone()) {
-          iter.remove();
-
-          // Get Query Results & print
-          try {
-            QueryResult response = BQQClient.getQueryResult(queryFuture);
-            assert (response.getTotalRows() > 0);
-            System.out.println("\tQuery Done");
-            System.out.println("\t\tSql: " + entry.getKey().replace("\n", ""));
-            System.out.println("\t\tRows: " + response.getTotalRows());
-          } catch (BQQException e) {
-            Helpers.printErrorCodes(e);
-
-          } catch (InterruptedException e) {
-            Thread.currentThread().interrupt(); // ignore / reset
-
-          } catch (ExecutionException e) {
-            // unknown exception, simply printing it as a stacktrace for logging
-            e.printStackTrace();
-          }
-        }
-      }
-    }
+    futures.add(bqqClient.queueQueryAsync(parameterizedQueryRequest)
+        .thenAccept(response -> printQueryDone(parameterizedSql, response))
+        .exceptionally(ExampleAsync::printQueryFailed));
+
+    System.out.println("\tNumber of queued up jobs: " + bqqClient.getNumJobs());
+
+    // Block until all queries are done
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
 
     try {
       bqqClient.shutdown();
@@ -117,4 +81,22 @@ public class ExampleAsync {
       e.printStackTrace();
     }
   }
+
+  private static void printQueryDone(String sql, QueryResult response) {
+    assert (response.getTotalRows() > 0);
+    System.out.println("\tQuery Done");
+    System.out.println("\t\tSql: " + sql.replace("\n", ""));
+    System.out.println("\t\tRows: " + response.getTotalRows());
+  }
+
+  private static Void printQueryFailed(Throwable t) {
+    Throwable cause = BQQException.unwrap(t);
+    if (cause instanceof BQQException) {
+      Helpers.printErrorCodes((BQQException) cause);
+    } else {
+      // unknown exception, simply printing it as a stacktrace for logging
+      cause.printStackTrace();
+    }
+    return null;
+  }
 }
@@ -0,0 +1,484 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqqexamples;
+
+import com.google.bqq.BQQClient;
+import com.google.bqq.BQQException;
+import com.google.bqq.BQQExecutionMode;
+import com.google.bqq.BQQLatencyHistogram;
+import com.google.bqq.BQQServiceFactory;
+import com.google.bqq.BQQSimulator;
+import com.google.bqq.BQQStats;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop load generator. Queries are queued at a set arrival rate no matter how far
+ * behind the client is, the way independent users would send them, so a client that can't
+ * keep up shows up as growing latency rather than as a slower generator. Latency is
+ * measured from when each query was due, so time the generator itself lost is counted too.
+ *
+ * <p>Runs against BigQuery, or against a local BQQSimulator when started with --simulate:
+ * <pre>
+ *   java com.google.bqqexamples.ExampleLoadGenerator --simulate --rate 2000 --duration 30
+ * </pre>
+ */
+public class ExampleLoadGenerator {
+  /** How query arrivals are spread over time. */
+  public enum Arrivals {
+    /** Evenly spaced. */
+    CONSTANT,
+    /** Exponentially distributed gaps, as from many independent users. */
+    POISSON,
+    /** Groups of burstSize queries at once, groups evenly spaced. */
+    BURSTS
+  }
+
+  public static final String SHAKESPEARE_WORDS_SQL =
+      "SELECT word, SUM(word_count) AS count FROM `bigquery-public-data.samples.shakespeare` "
+      + "GROUP BY word ORDER BY count DESC LIMIT 10";
+
+  private double mRate = 10;
+  private long mDurationMs = 60000;
+  private Arrivals mArrivals = Arrivals.POISSON;
+  private int mBurstSize = 10;
+  private long mDrainTimeoutMs = 120000;
+  private long mReportIntervalMs = 5000;
+  private Random mRandom = new Random();
+  private final List<QueryKind> mMix = new ArrayList<>();
+  private int mTotalWeight = 0;
+
+  private final LongAdder mSent = new LongAdder();
+  private final LongAdder mSucceeded = new LongAdder();
+  private final LongAdder mFailed = new LongAdder();
+  private final AtomicInteger mInFlight = new AtomicInteger();
+  private final Map<String, LongAdder> mErrors = new ConcurrentHashMap<>();
+  private final BQQLatencyHistogram mLatency = new BQQLatencyHistogram();
+  private final BQQLatencyHistogram mSendLag = new BQQLatencyHistogram();
+  private volatile long mLastDoneNanos;
+
+  /**
+   * @param queriesPerSecond mean arrival rate
+   * @return this
+   */
+  public ExampleLoadGenerator setRate(double queriesPerSecond) {
+    if (!(queriesPerSecond > 0)) {
+      throw new IllegalArgumentException("rate must be positive");
+    }
+    mRate = queriesPerSecond;
+    return this;
+  }
+
+  /**
+   * @param durationMs how long to keep sending queries
+   * @return this
+   */
+  public ExampleLoadGenerator setDuration(long durationMs) {
+    if (durationMs <= 0) {
+      throw new IllegalArgumentException("duration must be positive");
+    }
+    mDurationMs = durationMs;
+    return this;
+  }
+
+  /**
+   * @param arrivals how arrivals are spread over time
+   * @return this
+   */
+  public ExampleLoadGenerator setArrivals(Arrivals arrivals) {
+    mArrivals = arrivals;
+    return this;
+  }
+
+  /**
+   * @param burstSize queries per group, when arrivals come in BURSTS
+   * @return this
+   */
+  public ExampleLoadGenerator setBurstSize(int burstSize) {
+    if (burstSize < 1) {
+      throw new IllegalArgumentException("burstSize must be at least 1");
+    }
+    mBurstSize = burstSize;
+    return this;
+  }
+
+  /**
+   * @param drainTimeoutMs how long to wait for queries still running once sending stopped
+   * @return this
+   */
+  public ExampleLoadGenerator setDrainTimeout(long drainTimeoutMs) {
+    mDrainTimeoutMs = drainTimeoutMs;
+    return this;
+  }
+
+  /**
+   * @param reportIntervalMs how often progress is printed while sending
+   * @return this
+   */
+  public ExampleLoadGenerator setReportInterval(long reportIntervalMs) {
+    mReportIntervalMs = reportIntervalMs;
+    return this;
+  }
+
+  /**
+   * @param seed seed for arrival gaps and query picks, so runs can be repeated
+   * @return this
+   */
+  public ExampleLoadGenerator setSeed(long seed) {
+    mRandom = new Random(seed);
+    return this;
+  }
+
+  /**
+   * Adds a query to the mix. Each arrival picks a query with probability proportional
+   * to its weight.
+   * @param name name the query's latencies are reported under
+   * @param request the query
+   * @param weight relative frequency
+   * @return this
+   */
+  public ExampleLoadGenerator addQuery(String name, QueryRequest request, int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("weight must be at least 1");
+    }
+    mMix.add(new QueryKind(name, request, weight));
+    mTotalWeight += weight;
+    return this;
+  }
+
+  /**
+   * Sends queries for the configured duration, waits for the ones still running and
+   * prints a report.
+   * @param client a started client
+   * @throws InterruptedException if interrupted while sending or draining
+   */
+  public void run(BQQClient client) throws InterruptedException {
+    if (mMix.isEmpty()) {
+      throw new IllegalArgumentException("no queries added");
+    }
+    System.out.printf("Sending %s queries at %.1f/s for %ds%n", mArrivals, mRate,
+        TimeUnit.MILLISECONDS.toSeconds(mDurationMs));
+
+    long start = System.nanoTime();
+    long end = start + TimeUnit.MILLISECONDS.toNanos(mDurationMs);
+    long reportInterval = TimeUnit.MILLISECONDS.toNanos(mReportIntervalMs);
+    long nextReport = start + reportInterval;
+    long due = start;
+    int perArrival = mArrivals == Arrivals.BURSTS ? mBurstSize : 1;
+    while (due < end) {
+      long now;
+      while ((now = System.nanoTime()) < due) {
+        LockSupport.parkNanos(due - now);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+      for (int i = 0; i < perArrival; ++i) {
+        send(client, pick(), due);
+      }
+      due += nextGapNanos(perArrival);
+      if (now >= nextReport) {
+        printProgress(client, now - start);
+        nextReport += reportInterval;
+      }
+    }
+    long sendEnd = System.nanoTime();
+
+    long drainDeadline = sendEnd + TimeUnit.MILLISECONDS.toNanos(mDrainTimeoutMs);
+    while (mInFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+      Thread.sleep(100);
+    }
+    printReport(client, start, sendEnd);
+  }
+
+  /**
+   * Queues one query without waiting for it.
+   */
+  private void send(BQQClient client, QueryKind kind, long dueNanos) {
+    mSendLag.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dueNanos));
+    mSent.increment();
+    mInFlight.incrementAndGet();
+    CompletableFuture<QueryResult> future;
+    try {
+      future = client.queueQueryAsync(kind.mRequest);
+    } catch (RuntimeException e) {
+      // queue full, rejected outright
+      done(kind, dueNanos, e);
+      return;
+    }
+    future.whenComplete((result, error) -> done(kind, dueNanos, error));
+  }
+
+  private void done(QueryKind kind, long dueNanos, Throwable error) {
+    long now = System.nanoTime();
+    long micros = TimeUnit.NANOSECONDS.toMicros(now - dueNanos);
+    if (error == null) {
+      mSucceeded.increment();
+      mLatency.record(micros);
+      kind.mLatency.record(micros);
+    } else {
+      mFailed.increment();
+      mErrors.computeIfAbsent(reasonOf(error), r -> new LongAdder()).increment();
+    }
+    mLastDoneNanos = now;
+    mInFlight.decrementAndGet();
+  }
+
+  private QueryKind pick() {
+    if (mMix.size() == 1) {
+      return mMix.get(0);
+    }
+    int n = mRandom.nextInt(mTotalWeight);
+    for (QueryKind kind : mMix) {
+      n -= kind.mWeight;
+      if (n < 0) {
+        return kind;
+      }
+    }
+    return mMix.get(mMix.size() - 1);
+  }
+
+  /**
+   * @param perArrival queries sent at each arrival
+   * @return nanos until the next arrival
+   */
+  private long nextGapNanos(int perArrival) {
+    double meanNanos = perArrival * TimeUnit.SECONDS.toNanos(1) / mRate;
+    if (mArrivals == Arrivals.POISSON) {
+      return (long) (-Math.log(1 - mRandom.nextDouble()) * meanNanos);
+    }
+    return (long) meanNanos;
+  }
+
+  private static String reasonOf(Throwable error) {
+    Throwable t = BQQException.unwrap(error);
+    if (t instanceof CancellationException) {
+      return "cancelled";
+    }
+    if (t instanceof BQQException && ((BQQException) t).getBQErrors() != null) {
+      for (BigQueryError bqError : ((BQQException) t).getBQErrors()) {
+        if (bqError != null && bqError.getReason() != null) {
+          return bqError.getReason();
+        }
+      }
+    }
+    return t.getClass().getSimpleName();
+  }
+
+  private void printProgress(BQQClient client, long elapsedNanos) {
+    System.out.printf("%4ds sent %d, done %d, failed %d, in flight %d, queued %d, p99 %s%n",
+        TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), mSent.sum(),
+        mSucceeded.sum() + mFailed.sum(), mFailed.sum(), mInFlight.get(), client.getNumJobs(),
+        millis(mLatency.getValueAtPercentile(99)));
+  }
+
+  private void printReport(BQQClient client, long start, long sendEnd) {
+    long sent = mSent.sum();
+    long succeeded = mSucceeded.sum();
+    long failed = mFailed.sum();
+    long done = succeeded + failed;
+    double sendSeconds = (sendEnd - start) / 1e9;
+    double doneSeconds = Math.max(mLastDoneNanos - start, 1) / 1e9;
+
+    System.out.println();
+    System.out.printf("Sent %d queries in %.1fs (%.1f/s offered)%n",
+        sent, sendSeconds, sent / sendSeconds);
+    System.out.printf("Completed %d in %.1fs (%.1f/s), %d still running%n",
+        done, doneSeconds, done / doneSeconds, sent - done);
+    System.out.printf("Succeeded %d, failed %d (%.2f%%)%n",
+        succeeded, failed, sent == 0 ? 0 : 100.0 * failed / sent);
+    Map<String, Long> errors = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> error : mErrors.entrySet()) {
+      errors.put(error.getKey(), error.getValue().sum());
+    }
+    for (Map.Entry<String, Long> error : errors.entrySet()) {
+      System.out.printf("  %-24s %d (%.2f%%)%n", error.getKey(), error.getValue(),
+          100.0 * error.getValue() / sent);
+    }
+
+    BQQStats stats = client.getStats();
+    System.out.println();
+    System.out.printf("%-24s %9s %9s %9s %9s %9s%n", "latency (ms)", "p50", "p90", "p99",
+        "p99.9", "max");
+    printLatency("end to end", mLatency);
+    if (mMix.size() > 1) {
+      for (QueryKind kind : mMix) {
+        printLatency("  " + kind.mName, kind.mLatency);
+      }
+    }
+    printLatency("queue wait", stats.getQueueWait());
+    printLatency("execution", stats.getExecutionLatency());
+    printLatency("generator lag", mSendLag);
+    if (mSendLag.getValueAtPercentile(99) > 100000) {
+      System.out.println("Generator fell behind its schedule, latencies include its lag");
+    }
+  }
+
+  private static void printLatency(String name, BQQLatencyHistogram histogram) {
+    System.out.printf("%-24s %9s %9s %9s %9s %9s%n", name,
+        millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+        millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+        millis(histogram.getMaxMicros()));
+  }
+
+  private static String millis(long micros) {
+    return String.format("%.1f", micros / 1000.0);
+  }
+
+  /**
+   * A query of the mix.
+   */
+  private static final class QueryKind {
+    private final String mName;
+    private final QueryRequest mRequest;
+    private final int mWeight;
+    private final BQQLatencyHistogram mLatency = new BQQLatencyHistogram();
+
+    QueryKind(String name, QueryRequest request, int weight) {
+      mName = name;
+      mRequest = request;
+      mWeight = weight;
+    }
+  }
+
+  /**
+   * Run the example: a few queries a second against BigQuery for 50s.
+   * These queries don't use the cache, so they are billed.
+   */
+  public static void run() {
+    main(new String[] {"--rate", "2", "--duration", "50", "--concurrency", "40"});
+  }
+
+  /**
+   * Flags, all optional:
+   * <pre>
+   *   --rate N           queries per second (10)
+   *   --duration S       seconds to send for (60)
+   *   --arrivals A       constant, poisson or bursts (poisson)
+   *   --burst N          queries per burst (10)
+   *   --concurrency N    max concurrent queries of the client (100)
+   *   --mode M           thread_pool, poller or virtual_threads (poller)
+   *   --io-threads N     submit and status threads of the poller (4)
+   *   --query W:SQL      adds a standard SQL query of weight W to the mix, repeatable
+   *   --seed N           seed for arrivals, query picks and the simulator
+   *   --simulate         run against a local BQQSimulator instead of BigQuery
+   * </pre>
+   * @param args flags
+   */
+  public static void main(String[] args) {
+    ExampleLoadGenerator generator = new ExampleLoadGenerator();
+    int concurrency = 100;
+    BQQExecutionMode mode = BQQExecutionMode.POLLER;
+    int ioThreads = BQQClient.DEFAULT_POLLER_IO_THREADS;
+    boolean simulate = false;
+    long seed = System.nanoTime();
+    for (int i = 0; i < args.length; ++i) {
+      String flag = args[i];
+      if (flag.equals("--simulate")) {
+        simulate = true;
+        continue;
+      }
+      if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("missing value for " + flag);
+      }
+      String value = args[++i];
+      switch (flag) {
+        case "--rate":
+          generator.setRate(Double.parseDouble(value));
+          break;
+        case "--duration":
+          generator.setDuration(TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+          break;
+        case "--arrivals":
+          generator.setArrivals(Arrivals.valueOf(value.toUpperCase()));
+          break;
+        case "--burst":
+          generator.setBurstSize(Integer.parseInt(value));
+          break;
+        case "--concurrency":
+          concurrency = Integer.parseInt(value);
+          break;
+        case "--mode":
+          mode = BQQExecutionMode.valueOf(value.toUpperCase());
+          break;
+        case "--io-threads":
+          ioThreads = Integer.parseInt(value);
+          break;
+        case "--query":
+          int colon = value.indexOf(':');
+          if (colon < 0) {
+            throw new IllegalArgumentException("--query needs WEIGHT:SQL, got " + value);
+          }
+          generator.addQuery("query" + (generator.mMix.size() + 1),
+              QueryRequest.newBuilder(value.substring(colon + 1)).setUseLegacySql(false)
+                  .setUseQueryCache(false).build(),
+              Integer.parseInt(value.substring(0, colon)));
+          break;
+        case "--seed":
+          seed = Long.parseLong(value);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown flag " + flag);
+      }
+    }
+    generator.setSeed(seed);
+
+    if (generator.mMix.isEmpty()) {
+      generator.addQuery("shakespeare", QueryRequest.newBuilder(SHAKESPEARE_WORDS_SQL)
+          .setUseLegacySql(false).setUseQueryCache(false).build(), 9);
+      generator.addQuery("golang", QueryRequest.newBuilder(ExampleQueries.popularGolangPackagesSQL)
+          .setUseLegacySql(true).setUseQueryCache(false).build(), 1);
+    }
+    if (simulate) {
+      BQQServiceFactory.setBackend(new BQQSimulator(seed)
+          .setJobRuntime(BQQSimulator.Distribution.logNormal(800, 0.7))
+          .setResultRows(BQQSimulator.Distribution.uniform(1, 5000))
+          .setMaxConcurrentJobs(Math.max(concurrency, 100))
+          .setRpcFailureRate(0.001));
+    }
+
+    BQQClient client = new BQQClient().setPollerIoThreads(ioThreads);
+    try {
+      client.startup(concurrency, mode);
+      generator.run(client);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    } finally {
+      try {
+        client.shutdown(1000);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      if (simulate) {
+        BQQServiceFactory.setBackend(null);
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqqexamples;
+
+import com.google.bqq.BQQClient;
+import com.google.bqq.BQQExecutionMode;
+import com.google.bqq.BQQPollingStrategy;
+import com.google.bqq.BQQServiceFactory;
+import com.google.bqq.BQQSimulator;
+import com.google.bqq.BQQVirtualThreadExecutor;
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResult;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares BQQClient's execution modes on a BQQSimulator backend, where every job runs for a
+ * random 100-300ms. Does not talk to BigQuery, so it is free to run. VIRTUAL_THREADS is
+ * left out unless the runtime supports virtual threads.
+ */
+public class ExampleVirtualThreadBenchmark {
+  public static final int NUMBER_OF_TOTAL_QUERIES = 4000;
+  public static final int[] CONCURRENCY_LIMITS = {40, 500, 2000};
+
+  // a short server-side wait, so POLLER's submit threads hand jobs to polling instead of waiting
+  private static final QueryRequest QUERY =
+      QueryRequest.newBuilder("SELECT 1").setMaxWaitTime(10L).build();
+
+  /**
+   * Run the benchmark.
+   * @param args unused argument
+   * @throws Exception if the client fails to start, run or shut down
+   */
+  public static void main(String[] args) throws Exception {
+    List<BQQExecutionMode> modes = new ArrayList<>(Arrays.asList(BQQExecutionMode.values()));
+    if (!BQQVirtualThreadExecutor.isSupported()) {
+      System.out.println("Virtual threads need a Java 21+ runtime, skipping VIRTUAL_THREADS");
+      modes.remove(BQQExecutionMode.VIRTUAL_THREADS);
+    }
+
+    try {
+      for (int limit : CONCURRENCY_LIMITS) {
+        for (BQQExecutionMode mode : modes) {
+          run(mode, limit);
+        }
+      }
+    } finally {
+      BQQServiceFactory.setBackend(null);
+    }
+  }
+
+  private static void run(BQQExecutionMode mode, int limit) throws Exception {
+    // a fresh simulator each run, so no run sees another's jobs
+    BQQServiceFactory.setBackend(new BQQSimulator(limit)
+        .setJobRuntime(BQQSimulator.Distribution.uniform(100, 300)));
+    BQQClient client = new BQQClient().setPollingStrategy(BQQPollingStrategy.fixed(50));
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    threads.resetPeakThreadCount();
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+    client.startup(limit, mode);
+    long elapsedMs;
+    long heapAfterQueuing;
+    try {
+      List<CompletableFuture<QueryResult>> futures = new ArrayList<>(NUMBER_OF_TOTAL_QUERIES);
+      long start = System.nanoTime();
+      for (int i = 0; i < NUMBER_OF_TOTAL_QUERIES; ++i) {
+        futures.add(client.queueQueryAsync(QUERY));
+      }
+      // one sample once everything is queued, not a peak: the queued queries are what differs
+      heapAfterQueuing = runtime.totalMemory() - runtime.freeMemory();
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+      elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    } finally {
+      client.shutdown();
+    }
+
+    System.out.println(String.format(
+        "%-16s limit=%5d  %6d ms  %8.1f queries/s  peak platform threads=%5d"
+            + "  heap after queuing +%d KB",
+        mode, limit, elapsedMs, NUMBER_OF_TOTAL_QUERIES * 1000.0 / elapsedMs,
+        threads.getPeakThreadCount(), (heapAfterQueuing - heapBefore) / 1024));
+  }
+}
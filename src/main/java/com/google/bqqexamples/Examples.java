@@ -23,7 +23,7 @@ public class Examples {
    * @param args unused argument
    */
   public static void main(String[] args) {
-    ExampleStressTest.run();
+    ExampleLoadGenerator.run();
     ExampleAsync.run();
     ExampleSync.run();
   }
@@ -50,6 +50,13 @@ public class BQQCallableBuilderTest {
       .setProjectId("some-project")
       .build();
   }
+
+  @Test
+  public void testSetDeadline_Negative() {
+
+    thrown.expect(IllegalArgumentException.class);
+    new BQQCallableBuilder().setDeadline(-1);
+  }
   
   
 }
@@ -99,4 +99,23 @@ public class BQQCallableTest {
     thrown.expect(BQQException.class);
     c.call();
   }
+
+  @Test
+  public void testCall_ReportsPollCount()
+      throws FileNotFoundException, BQQException, InterruptedException, IOException {
+    BQQPollCounter counter = new BQQPollCounter();
+    BQQCallable c = new BQQCallableBuilder()
+        .setQueryRequest(QueryRequest
+            .newBuilder(EXAMPLE_QUERY_SQL)
+            .setUseLegacySql(true)
+            .setUseQueryCache(false)
+            .build())
+        .setPollingStrategy(BQQPollingStrategy.fixed(50))
+        .setPollCounter(counter)
+        .build();
+    c.call();
+
+    Assert.assertEquals(1, counter.getQueryCount());
+    Assert.assertEquals(c.getPollCount(), counter.getPollCount());
+  }
 }
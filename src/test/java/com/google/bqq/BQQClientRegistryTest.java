@@ -0,0 +1,56 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.BigQuery;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQClientRegistry Class.
+ */
+public class BQQClientRegistryTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testGetClient_ReusesClient() throws FileNotFoundException, IOException {
+    BQQClientRegistry registry = BQQClientRegistry.getInstance();
+    BigQuery first = registry.getClient(null, null);
+    long hits = registry.getHitCount();
+    long misses = registry.getMissCount();
+
+    BigQuery second = registry.getClient("", "");
+
+    Assert.assertSame(first, second);
+    Assert.assertEquals(hits + 1, registry.getHitCount());
+    Assert.assertEquals(misses, registry.getMissCount());
+  }
+
+  @Test
+  public void testGetClient_DoesNotCacheFailures() throws FileNotFoundException, IOException {
+    BQQClientRegistry registry = BQQClientRegistry.getInstance();
+    int size = registry.size();
+    try {
+      registry.getClient("some-project", "some-non-exsistent-file.json");
+      Assert.fail("Expected FileNotFoundException");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+    Assert.assertEquals(size, registry.size());
+  }
+}
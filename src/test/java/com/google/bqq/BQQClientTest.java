@@ -18,6 +18,8 @@ import com.google.cloud.bigquery.QueryRequest;
 import com.google.cloud.bigquery.QueryResult;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import org.junit.Assert;
@@ -171,4 +173,100 @@ public class BQQClientTest {
     Thread.sleep(10);
     c.shutdown();
   }
+
+  @Test
+  public void testQueueQuery_PollerMode()
+      throws Exception {
+    BQQClient c = new BQQClient();
+    c.startup(2, BQQExecutionMode.POLLER);
+
+    Future<QueryResult> f1 = c.queueQuery(EXAMPLE_QUERY_SQL, true);
+    Future<QueryResult> f2 = c.queueQuery(EXAMPLE_QUERY_SQL, true);
+    Future<QueryResult> f3 = c.queueQuery(EXAMPLE_QUERY_SQL, true);
+
+    QueryResult r1 = BQQClient.getQueryResult(f1);
+    QueryResult r2 = BQQClient.getQueryResult(f2);
+    QueryResult r3 = BQQClient.getQueryResult(f3);
+
+    Assert.assertEquals(r1.getTotalRows(), r2.getTotalRows());
+    Assert.assertEquals(r1.getTotalRows(), r3.getTotalRows());
+    c.shutdown();
+  }
+
+  @Test
+  public void testGetQueryResult_PassesBQErrors_PollerMode()
+      throws Exception {
+    BQQClient c = new BQQClient();
+    c.startup(1, BQQExecutionMode.POLLER);
+
+    Future<QueryResult> f = c.queueQuery("", false);
+
+    thrown.expect(BQQException.class);
+    BQQClient.getQueryResult(f);
+  }
+
+  @Test
+  public void testQueueQueryAsync_ChainsResults() throws Exception {
+    BQQClient c = new BQQClient();
+    c.startup(2);
+
+    CompletableFuture<Long> rows1 = c.queueQueryAsync(EXAMPLE_QUERY_SQL, true)
+        .thenApply(QueryResult::getTotalRows);
+    CompletableFuture<Long> rows2 = c.queueQueryAsync(EXAMPLE_QUERY_SQL, true)
+        .thenApply(QueryResult::getTotalRows);
+
+    Assert.assertEquals(rows1.get(), rows2.get());
+    c.shutdown();
+  }
+
+  @Test
+  public void testQueueQueryAsync_CompletesExceptionallyWithBQQException() throws Exception {
+    BQQClient c = new BQQClient();
+    c.startup(1);
+
+    CompletableFuture<QueryResult> f = c.queueQueryAsync("", false);
+    try {
+      f.join();
+      Assert.fail("Expected query to fail");
+    } catch (CompletionException e) {
+      Assert.assertTrue(BQQException.unwrap(e) instanceof BQQException);
+    }
+    c.shutdown();
+  }
+
+  @Test
+  public void testQueueQuery_RejectsWhenQueueFull() throws Exception {
+    BQQClient c = new BQQClient()
+        .setQueueCapacity(10)
+        .setOverflowPolicy(BQQOverflowPolicy.REJECT);
+    c.startup(1);
+
+    thrown.expect(BQQQueueFullException.class);
+    try {
+      for (int i = 0; i < 20; ++i) {
+        c.queueQuery(EXAMPLE_QUERY_SQL, true);
+      }
+    } finally {
+      c.shutdown();
+    }
+  }
+
+  @Test
+  public void testTryQueueQuery_ReturnsNullWhenFull() throws Exception {
+    BQQClient c = new BQQClient()
+        .setQueueCapacity(10)
+        .setOverflowPolicy(BQQOverflowPolicy.BLOCK);
+    c.startup(1);
+
+    int rejected = 0;
+    for (int i = 0; i < 20; ++i) {
+      if (c.tryQueueQuery(QueryRequest.of(EXAMPLE_QUERY_SQL)) == null) {
+        rejected++;
+      }
+    }
+
+    Assert.assertTrue(rejected >= 9);
+    Assert.assertEquals(Integer.valueOf(10), c.getNumJobs());
+    c.shutdown();
+  }
 }
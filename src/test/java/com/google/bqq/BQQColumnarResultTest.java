@@ -0,0 +1,127 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.Schema;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQColumnarResult Class.
+ */
+public class BQQColumnarResultTest {
+  private static final Schema SCHEMA = Schema.of(
+      Field.of("id", Field.Type.integer()),
+      Field.of("score", Field.Type.floatingPoint()),
+      Field.of("ok", Field.Type.bool()),
+      Field.of("name", Field.Type.string()),
+      Field.of("ts", Field.Type.timestamp()),
+      Field.of("info", Field.Type.record(Field.of("x", Field.Type.integer()))));
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testOf_ReadsTypedValues() throws Exception {
+    BQQColumnarResult result = BQQColumnarResult.of(SCHEMA, Arrays.asList(
+        row("1", "1.5", "true", "a", "1.5E9", "rec"),
+        row("2", null, "false", "b", null, null),
+        row(null, "-2", null, "a", "0", "rec")).iterator());
+
+    Assert.assertEquals(3, result.getRowCount());
+    Assert.assertEquals(6, result.getColumnCount());
+    int id = result.getColumnIndex("id");
+    int score = result.getColumnIndex("score");
+    int ok = result.getColumnIndex("ok");
+    int name = result.getColumnIndex("name");
+    int ts = result.getColumnIndex("ts");
+
+    Assert.assertEquals(2, result.getLong(id, 1));
+    Assert.assertTrue(result.isNull(id, 2));
+    Assert.assertFalse(result.isNull(id, 0));
+    Assert.assertEquals(1.5, result.getDouble(score, 0), 0);
+    Assert.assertTrue(result.isNull(score, 1));
+    Assert.assertTrue(result.getBoolean(ok, 0));
+    Assert.assertFalse(result.getBoolean(ok, 1));
+    Assert.assertTrue(result.isNull(ok, 2));
+    Assert.assertEquals("b", result.getString(name, 1));
+    Assert.assertEquals(1500000000000000L, result.getLong(ts, 0));
+    Assert.assertNull(result.getValue(5, 1));
+    Assert.assertEquals("rec", result.getValue(5, 2).getValue());
+  }
+
+  @Test
+  public void testOf_DictionaryEncodesStrings() throws Exception {
+    List<List<FieldValue>> rows = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      rows.add(row(String.valueOf(i), "0", "true", i % 2 == 0 ? "even" : "odd", "0", null));
+    }
+    BQQColumnarResult result = BQQColumnarResult.of(SCHEMA, rows.iterator());
+    int name = result.getColumnIndex("name");
+
+    Assert.assertEquals(Arrays.asList("even", "odd"), result.getDictionary(name));
+    Assert.assertEquals(1, result.getStringCode(name, 4999));
+    Assert.assertEquals("odd", result.getString(name, 4999));
+    Assert.assertEquals(4999, result.getLong(0, 4999));
+    // 3 long/double columns, int codes, a reference column and small bitmaps
+    Assert.assertTrue(result.getMemoryBytes() < 5000 * (8 * 4 + 4 + 8 + 8));
+  }
+
+  @Test
+  public void testGetLong_WrongType() throws Exception {
+    BQQColumnarResult result = BQQColumnarResult.of(SCHEMA,
+        Arrays.asList(row("1", "1", "true", "a", "0", null)).iterator());
+    thrown.expect(IllegalArgumentException.class);
+    result.getLong(result.getColumnIndex("name"), 0);
+  }
+
+  @Test
+  public void testGetLong_RowOutOfRange() throws Exception {
+    BQQColumnarResult result = BQQColumnarResult.of(SCHEMA,
+        Arrays.asList(row("1", "1", "true", "a", "0", null)).iterator());
+    thrown.expect(IndexOutOfBoundsException.class);
+    result.getLong(0, 1);
+  }
+
+  @Test
+  public void testGetColumnIndex_Unknown() throws Exception {
+    BQQColumnarResult result = BQQColumnarResult.of(SCHEMA,
+        new ArrayList<List<FieldValue>>().iterator());
+    Assert.assertEquals(0, result.getRowCount());
+    thrown.expect(IllegalArgumentException.class);
+    result.getColumnIndex("missing");
+  }
+
+  /**
+   * Builds a row of primitive values as they come from the API, FieldValues can't be
+   * created outside of the BigQuery package.
+   */
+  private static List<FieldValue> row(String... values) throws Exception {
+    Constructor<FieldValue> constructor = FieldValue.class.getDeclaredConstructor(
+        FieldValue.Attribute.class, Object.class);
+    constructor.setAccessible(true);
+    List<FieldValue> row = new ArrayList<>();
+    for (String value : values) {
+      row.add(constructor.newInstance(FieldValue.Attribute.PRIMITIVE, value));
+    }
+    return row;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.QueryRequest;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQConcurrencyLimiter Class.
+ */
+public class BQQConcurrencyLimiterTest {
+  private static final long LATENCY = 1000000L;
+  private static final BQQException RATE_LIMITED =
+      new BQQException(new BigQueryError("rateLimitExceeded", "", "Too many requests"));
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testConstructor_BadLimits() {
+    thrown.expect(IllegalArgumentException.class);
+    new BQQConcurrencyLimiter(10, 20, 30);
+  }
+
+  @Test
+  public void testOnSample_GrowsWhileLimitIsUsed() {
+    BQQConcurrencyLimiter limiter = new BQQConcurrencyLimiter(4, 1, 8);
+    for (int i = 0; i < 5; ++i) {
+      limiter.onSample(0, LATENCY, 4, null);
+    }
+    Assert.assertEquals(5, limiter.getLimit());
+    Assert.assertEquals("increase", limiter.getHistory().get(1).getReason());
+  }
+
+  @Test
+  public void testOnSample_DoesNotGrowWhileLimitIsUnused() {
+    BQQConcurrencyLimiter limiter = new BQQConcurrencyLimiter(4, 1, 8);
+    for (int i = 0; i < 100; ++i) {
+      limiter.onSample(0, LATENCY, 1, null);
+    }
+    Assert.assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testOnSample_DoesNotGrowOnSlowQueries() {
+    BQQConcurrencyLimiter limiter = new BQQConcurrencyLimiter(4, 1, 8);
+    limiter.onSample(0, LATENCY, 4, null);
+    for (int i = 0; i < 10; ++i) {
+      limiter.onSample(0, 10 * LATENCY, 4, null);
+    }
+    Assert.assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testOnSample_BacksOffOncePerOverload() {
+    BQQConcurrencyLimiter limiter = new BQQConcurrencyLimiter(10, 2, 20).setBackoffRatio(0.5);
+    limiter.onSample(100, LATENCY, 10, RATE_LIMITED);
+    Assert.assertEquals(5, limiter.getLimit());
+
+    // started before the cut, so already accounted for
+    limiter.onSample(200, LATENCY, 10, RATE_LIMITED);
+    Assert.assertEquals(5, limiter.getLimit());
+
+    limiter.onSample(100 + 2 * LATENCY, LATENCY, 5, RATE_LIMITED);
+    Assert.assertEquals(2, limiter.getLimit());
+    Assert.assertEquals("overload", limiter.getHistory().get(2).getReason());
+  }
+
+  @Test
+  public void testOnSample_IgnoresOtherErrors() {
+    BQQConcurrencyLimiter limiter = new BQQConcurrencyLimiter(10, 2, 20);
+    limiter.onSample(0, LATENCY, 10,
+        new BQQException(new BigQueryError("invalidQuery", "", "Syntax error")));
+    Assert.assertEquals(10, limiter.getLimit());
+  }
+
+  @Test
+  public void testSchedulingQueue_HoldsQueriesBackAtLimit() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(10, 1000);
+    queue.setLimiter(new BQQConcurrencyLimiter(1, 1, 1));
+    for (int i = 0; i < 2; ++i) {
+      queue.offer(new BQQQueryTask(new BQQCallableBuilder()
+          .setQueryRequest(QueryRequest.of("SELECT 1"))
+          .build()));
+    }
+
+    BQQQueryTask running = (BQQQueryTask) queue.poll();
+    Assert.assertNull(queue.poll());
+    running.getFuture().complete(null);
+    Assert.assertNotNull(queue.poll());
+  }
+}
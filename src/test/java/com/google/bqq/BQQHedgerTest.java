@@ -0,0 +1,176 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQHedger Class.
+ */
+public class BQQHedgerTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testConstructor_BadPercentile() {
+    thrown.expect(IllegalArgumentException.class);
+    new BQQHedger(100, 0.1, 0);
+  }
+
+  @Test
+  public void testConstructor_BadRatio() {
+    thrown.expect(IllegalArgumentException.class);
+    new BQQHedger(95, 1.5, 0);
+  }
+
+  @Test
+  public void testCall_NoHedgeUntilEnoughSamples() throws InterruptedException {
+    BQQHedger hedger = new BQQHedger(50, 1, 0);
+    for (int i = 0; i < BQQHedger.MIN_SAMPLES; ++i) {
+      Assert.assertEquals(-1, hedger.getHedgeDelayNanos());
+      Assert.assertEquals("x", hedger.call(() -> "x"));
+    }
+    Assert.assertTrue(hedger.getHedgeDelayNanos() >= 0);
+    Assert.assertEquals(BQQHedger.MIN_SAMPLES, hedger.getCallCount());
+    Assert.assertEquals(0, hedger.getHedgeCount());
+  }
+
+  @Test
+  public void testCall_SlowCallIsHedged() throws InterruptedException {
+    BQQHedger hedger = warmedUp(new BQQHedger(90, 1, 20));
+    AtomicInteger attempts = new AtomicInteger();
+
+    long start = System.nanoTime();
+    String result = hedger.call(
+        () -> attempts.incrementAndGet() == 1 ? sleep(5000, "slow") : "fast");
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    Assert.assertEquals("fast", result);
+    Assert.assertTrue("took " + elapsedMs + "ms", elapsedMs < 2000);
+    Assert.assertEquals(2, attempts.get());
+    Assert.assertEquals(1, hedger.getHedgeCount());
+    Assert.assertEquals(1, hedger.getHedgeWinCount());
+  }
+
+  @Test
+  public void testCall_FastCallIsNotHedged() throws InterruptedException {
+    BQQHedger hedger = warmedUp(new BQQHedger(90, 1, 500));
+    AtomicInteger attempts = new AtomicInteger();
+
+    Assert.assertEquals("x", hedger.call(() -> {
+      attempts.incrementAndGet();
+      return "x";
+    }));
+    Assert.assertEquals(1, attempts.get());
+    Assert.assertEquals(0, hedger.getHedgeCount());
+  }
+
+  @Test
+  public void testCall_ServerWaitDelaysHedge() throws InterruptedException {
+    BQQHedger hedger = warmedUp(new BQQHedger(90, 1, 20));
+    AtomicInteger attempts = new AtomicInteger();
+
+    Assert.assertEquals("x", hedger.call(() -> {
+      attempts.incrementAndGet();
+      return sleep(100, "x");
+    }, 1000));
+    Assert.assertEquals(1, attempts.get());
+    Assert.assertEquals(0, hedger.getHedgeCount());
+  }
+
+  @Test
+  public void testCall_NoHedgeOverBudget() throws InterruptedException {
+    BQQHedger hedger = warmedUp(new BQQHedger(90, 0, 20));
+    AtomicInteger attempts = new AtomicInteger();
+
+    Assert.assertEquals("slow", hedger.call(() -> {
+      attempts.incrementAndGet();
+      return sleep(200, "slow");
+    }));
+    Assert.assertEquals(1, attempts.get());
+    Assert.assertEquals(0, hedger.getHedgeCount());
+    Assert.assertEquals(1, hedger.getOverBudgetCount());
+  }
+
+  @Test
+  public void testCall_BudgetCapsHedges() throws InterruptedException {
+    BQQHedger hedger = warmedUp(new BQQHedger(90, 0.05, 20));
+    // 20 calls at 5% saved up 1 hedge
+    for (int i = 0; i < 2; ++i) {
+      hedger.call(() -> sleep(100, "slow"));
+    }
+    Assert.assertEquals(1, hedger.getHedgeCount());
+    Assert.assertEquals(1, hedger.getOverBudgetCount());
+  }
+
+  @Test
+  public void testCall_FailureBeforeHedgeIsThrown() throws InterruptedException {
+    BQQHedger hedger = warmedUp(new BQQHedger(90, 1, 1000));
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("boom");
+    hedger.call(() -> {
+      throw new IllegalStateException("boom");
+    });
+  }
+
+  @Test
+  public void testCall_FailedCallLosesToHedge() throws InterruptedException {
+    BQQHedger hedger = warmedUp(new BQQHedger(90, 1, 20));
+    AtomicInteger attempts = new AtomicInteger();
+
+    Assert.assertEquals("hedge", hedger.call(() -> {
+      if (attempts.incrementAndGet() == 1) {
+        sleep(100, null);
+        throw new IllegalStateException("boom");
+      }
+      return sleep(200, "hedge");
+    }));
+    Assert.assertEquals(2, attempts.get());
+  }
+
+  @Test
+  public void testCall_BothFailThrows() throws InterruptedException {
+    BQQHedger hedger = warmedUp(new BQQHedger(90, 1, 20));
+    thrown.expect(IllegalStateException.class);
+    hedger.call((Supplier<String>) () -> {
+      sleep(100, null);
+      throw new IllegalStateException("boom");
+    });
+  }
+
+  /**
+   * Makes enough fast calls for the hedger to start hedging.
+   */
+  private static BQQHedger warmedUp(BQQHedger hedger) throws InterruptedException {
+    for (int i = 0; i < BQQHedger.MIN_SAMPLES; ++i) {
+      hedger.call(() -> "x");
+    }
+    Assert.assertTrue(hedger.getHedgeDelayNanos() >= 0);
+    return hedger;
+  }
+
+  private static <T> T sleep(long ms, T value) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return value;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.QueryRequest;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests BQQJobJournal Class.
+ */
+public class BQQJobJournalTest {
+  private static final QueryRequest QUERY_A = QueryRequest.newBuilder("SELECT 'a'")
+      .setUseLegacySql(false)
+      .build();
+  private static final QueryRequest QUERY_B = QueryRequest.of("SELECT 'b'");
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testPending_SurvivesReopen() throws Exception {
+    long a;
+    long b;
+    try (BQQJobJournal journal = new BQQJobJournal(folder.getRoot())) {
+      a = journal.queued(QUERY_A, BQQPriority.BATCH, "reports");
+      b = journal.queued(QUERY_B, BQQPriority.NORMAL, BQQCallable.DEFAULT_TENANT);
+      journal.started(a, JobId.of("project", "job-a"));
+    }
+
+    try (BQQJobJournal journal = new BQQJobJournal(folder.getRoot())) {
+      List<BQQJournalEntry> pending = journal.getPending();
+      Assert.assertEquals(2, pending.size());
+      BQQJournalEntry first = pending.get(0);
+      Assert.assertEquals(a, first.getId());
+      Assert.assertEquals(QUERY_A, first.getQueryRequest());
+      Assert.assertEquals(BQQPriority.BATCH, first.getPriority());
+      Assert.assertEquals("reports", first.getTenant());
+      Assert.assertEquals(JobId.of("project", "job-a"), first.getJobId());
+      Assert.assertEquals(b, pending.get(1).getId());
+      Assert.assertNull(pending.get(1).getJobId());
+
+      // ids aren't reused
+      Assert.assertTrue(journal.queued(QUERY_A, BQQPriority.NORMAL, "x") > b);
+    }
+  }
+
+  @Test
+  public void testDone_DropsQuery() throws Exception {
+    try (BQQJobJournal journal = new BQQJobJournal(folder.getRoot())) {
+      long a = journal.queued(QUERY_A, BQQPriority.NORMAL, "x");
+      journal.queued(QUERY_B, BQQPriority.NORMAL, "x");
+      journal.started(a, JobId.of("project", "job-a"));
+      journal.done(a);
+      Assert.assertEquals(1, journal.size());
+    }
+    try (BQQJobJournal journal = new BQQJobJournal(folder.getRoot())) {
+      Assert.assertEquals(1, journal.size());
+      Assert.assertEquals(QUERY_B, journal.getPending().get(0).getQueryRequest());
+    }
+  }
+
+  @Test
+  public void testReplay_StopsAtTornRecord() throws Exception {
+    try (BQQJobJournal journal = new BQQJobJournal(folder.getRoot())) {
+      journal.queued(QUERY_A, BQQPriority.NORMAL, "x");
+      journal.queued(QUERY_B, BQQPriority.NORMAL, "x");
+    }
+    File file = new File(folder.getRoot(), BQQJobJournal.JOURNAL_FILE);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+
+    try (BQQJobJournal journal = new BQQJobJournal(folder.getRoot())) {
+      Assert.assertEquals(1, journal.size());
+      Assert.assertEquals(QUERY_A, journal.getPending().get(0).getQueryRequest());
+      // the torn record is gone, so new records are readable
+      journal.queued(QUERY_B, BQQPriority.NORMAL, "x");
+    }
+    try (BQQJobJournal journal = new BQQJobJournal(folder.getRoot())) {
+      Assert.assertEquals(2, journal.size());
+    }
+  }
+
+  @Test
+  public void testDone_CompactsJournal() throws Exception {
+    File file = new File(folder.getRoot(), BQQJobJournal.JOURNAL_FILE);
+    try (BQQJobJournal journal = new BQQJobJournal(folder.getRoot())) {
+      long pending = journal.queued(QUERY_A, BQQPriority.NORMAL, "x");
+      long bytes = file.length();
+      for (int i = 0; i < BQQJobJournal.COMPACT_MIN_RECORDS; ++i) {
+        long id = journal.queued(QUERY_B, BQQPriority.NORMAL, "x");
+        journal.started(id, JobId.of("project", "job-" + i));
+        journal.done(id);
+      }
+      // uncompacted, the queued records alone would take COMPACT_MIN_RECORDS times as much
+      Assert.assertTrue(file.length() < BQQJobJournal.COMPACT_MIN_RECORDS * bytes);
+      Assert.assertEquals(pending, journal.getPending().get(0).getId());
+    }
+  }
+
+  @Test
+  public void testClose_DropsLaterRecords() throws Exception {
+    BQQJobJournal journal = new BQQJobJournal(folder.getRoot());
+    long a = journal.queued(QUERY_A, BQQPriority.NORMAL, "x");
+    journal.close();
+    journal.started(a, JobId.of("project", "job-a"));
+    journal.done(a);
+
+    try (BQQJobJournal reopened = new BQQJobJournal(folder.getRoot())) {
+      Assert.assertEquals(1, reopened.size());
+      Assert.assertNull(reopened.getPending().get(0).getJobId());
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQLatencyHistogram Class.
+ */
+public class BQQLatencyHistogramTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testGetValueAtPercentile_BadPercentile() {
+    thrown.expect(IllegalArgumentException.class);
+    new BQQLatencyHistogram().getValueAtPercentile(101);
+  }
+
+  @Test
+  public void testGetValueAtPercentile_Empty() {
+    BQQLatencyHistogram histogram = new BQQLatencyHistogram();
+    Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+    Assert.assertEquals(0, histogram.getCount());
+    Assert.assertEquals(0, histogram.getMeanMicros(), 0);
+  }
+
+  @Test
+  public void testBuckets_CoverEveryValueWithinPrecision() {
+    long previous = -1;
+    for (int bucket = 0; bucket <= BQQLatencyHistogram.bucketOf(BQQLatencyHistogram.MAX_MICROS);
+        ++bucket) {
+      long highest = BQQLatencyHistogram.highestInBucket(bucket);
+      Assert.assertEquals(bucket, BQQLatencyHistogram.bucketOf(previous + 1));
+      Assert.assertEquals(bucket, BQQLatencyHistogram.bucketOf(highest));
+      Assert.assertTrue(highest - previous <= Math.max(1, highest / 32));
+      previous = highest;
+    }
+    Assert.assertEquals(BQQLatencyHistogram.MAX_MICROS, previous);
+  }
+
+  @Test
+  public void testGetValueAtPercentile_WithinPrecision() {
+    BQQLatencyHistogram histogram = new BQQLatencyHistogram();
+    for (int i = 1; i <= 100000; ++i) {
+      histogram.record(i);
+    }
+    assertNear(50000, histogram.getValueAtPercentile(50));
+    assertNear(99000, histogram.getValueAtPercentile(99));
+    assertNear(99900, histogram.getValueAtPercentile(99.9));
+    Assert.assertEquals(100000, histogram.getValueAtPercentile(100));
+    Assert.assertEquals(1, histogram.getValueAtPercentile(0));
+    Assert.assertEquals(100000, histogram.getMaxMicros());
+    Assert.assertEquals(50000.5, histogram.getMeanMicros(), 0.001);
+  }
+
+  @Test
+  public void testRecord_ClampsOutOfRangeValues() {
+    BQQLatencyHistogram histogram = new BQQLatencyHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+    Assert.assertEquals(BQQLatencyHistogram.MAX_MICROS, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testCopy_IsUnaffectedByLaterRecords() {
+    BQQLatencyHistogram histogram = new BQQLatencyHistogram();
+    histogram.record(10);
+    BQQLatencyHistogram copy = histogram.copy();
+    histogram.record(1000);
+
+    Assert.assertEquals(1, copy.getCount());
+    Assert.assertEquals(10, copy.getMaxMicros());
+    Assert.assertEquals(10, copy.getValueAtPercentile(100));
+    Assert.assertEquals(2, histogram.getCount());
+  }
+
+  @Test
+  public void testRecord_FromManyThreads() throws InterruptedException {
+    BQQLatencyHistogram histogram = new BQQLatencyHistogram();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; ++t) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 10000; ++i) {
+          histogram.record(i % 100);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(80000, histogram.getCount());
+    Assert.assertEquals(99, histogram.getMaxMicros());
+    Assert.assertEquals(49, histogram.getValueAtPercentile(50));
+  }
+
+  private static void assertNear(long expected, long actual) {
+    Assert.assertTrue(actual + " not within 3% of " + expected,
+        Math.abs(actual - expected) <= expected * 0.03);
+  }
+}
@@ -0,0 +1,162 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.FieldValue;
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests BQQMaterializedResult Class.
+ */
+public class BQQMaterializedResultTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testMaterialize_WithinBudgetStaysOnHeap() throws Exception {
+    BQQHeapBudget budget = new BQQHeapBudget(1024 * 1024 * 1024, folder.getRoot());
+    List<List<FieldValue>> rows = rows(100);
+    BQQMaterializedResult result = budget.materialize(null, rows.iterator());
+
+    Assert.assertEquals(100, result.getRowCount());
+    Assert.assertEquals(0, result.getSpilledRowCount());
+    Assert.assertNull(result.getSpillFile());
+    Assert.assertEquals(result.getHeapBytes(), budget.getUsedBytes());
+    assertRows(rows, result);
+
+    result.close();
+    Assert.assertEquals(0, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testMaterialize_SpillsPastBudget() throws Exception {
+    BQQHeapBudget budget = new BQQHeapBudget(10000, folder.getRoot());
+    List<List<FieldValue>> rows = rows(1000);
+    BQQMaterializedResult result = budget.materialize(null, rows.iterator());
+
+    Assert.assertEquals(1000, result.getRowCount());
+    Assert.assertTrue(result.getSpilledRowCount() > 900);
+    Assert.assertTrue(budget.getUsedBytes() <= 10000);
+    Assert.assertEquals(1, budget.getSpilledResultCount());
+    File file = result.getSpillFile();
+    Assert.assertTrue(file.exists());
+    assertRows(rows, result);
+    // iterators don't share state
+    assertRows(rows, result);
+
+    result.close();
+    Assert.assertFalse(file.exists());
+    Assert.assertEquals(0, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testSpill_SpansSegments() throws Exception {
+    BQQHeapBudget budget = new BQQHeapBudget(0, folder.getRoot());
+    BQQMaterializedResult result = new BQQMaterializedResult(budget, null, folder.getRoot(), 256);
+    List<List<FieldValue>> rows = rows(200);
+    for (List<FieldValue> row : rows) {
+      result.add(row);
+    }
+    result.finish();
+
+    Assert.assertEquals(200, result.getSpilledRowCount());
+    Assert.assertTrue(result.getSpilledBytes() > 256 * 10);
+    assertRows(rows, result);
+    result.close();
+  }
+
+  @Test
+  public void testIterator_ClosedResult() throws Exception {
+    BQQHeapBudget budget = new BQQHeapBudget(0, folder.getRoot());
+    BQQMaterializedResult result = budget.materialize(null, rows(10).iterator());
+    result.close();
+    thrown.expect(IllegalStateException.class);
+    result.iterator();
+  }
+
+  @Test
+  public void testClose_WhileIterating() throws Exception {
+    BQQHeapBudget budget = new BQQHeapBudget(10000, folder.getRoot());
+    BQQMaterializedResult result = budget.materialize(null, rows(1000).iterator());
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> readers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread reader = new Thread(() -> {
+        try {
+          while (true) {
+            for (List<FieldValue> row : result) {
+              Assert.assertEquals(4, row.size());
+            }
+          }
+        } catch (IllegalStateException e) {
+          // closed, as expected
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      });
+      reader.start();
+      readers.add(reader);
+    }
+    Thread.sleep(50);
+    result.close();
+    for (Thread reader : readers) {
+      reader.join(10000);
+    }
+    Assert.assertNull(failure.get());
+  }
+
+  private static void assertRows(List<List<FieldValue>> expected, BQQMaterializedResult result) {
+    List<List<FieldValue>> actual = new ArrayList<>();
+    for (List<FieldValue> row : result) {
+      actual.add(row);
+    }
+    Assert.assertEquals(expected, actual);
+  }
+
+  /**
+   * Builds rows of a string, a null, a repeated and a record value.
+   */
+  private static List<List<FieldValue>> rows(int count) throws Exception {
+    List<List<FieldValue>> rows = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      rows.add(Arrays.asList(
+          value(FieldValue.Attribute.PRIMITIVE, "row \u00e9 " + i),
+          value(FieldValue.Attribute.PRIMITIVE, null),
+          value(FieldValue.Attribute.REPEATED, Arrays.asList(
+              value(FieldValue.Attribute.PRIMITIVE, String.valueOf(i)),
+              value(FieldValue.Attribute.PRIMITIVE, "1.5"))),
+          value(FieldValue.Attribute.RECORD, Arrays.asList(
+              value(FieldValue.Attribute.PRIMITIVE, "true")))));
+    }
+    return rows;
+  }
+
+  private static FieldValue value(FieldValue.Attribute attribute, Object value)
+      throws Exception {
+    Constructor<FieldValue> constructor = FieldValue.class.getDeclaredConstructor(
+        FieldValue.Attribute.class, Object.class);
+    constructor.setAccessible(true);
+    return constructor.newInstance(attribute, value);
+  }
+}
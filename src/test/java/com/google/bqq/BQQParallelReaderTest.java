@@ -0,0 +1,114 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.FieldValue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQParallelReader Class.
+ */
+public class BQQParallelReaderTest {
+  private static final long ROWS = 1050;
+
+  private final List<List<FieldValue>> mRows = new ArrayList<>();
+  private final AtomicInteger mFetches = new AtomicInteger();
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  public BQQParallelReaderTest() {
+    for (int i = 0; i < ROWS; i++) {
+      mRows.add(new ArrayList<FieldValue>());
+    }
+  }
+
+  @Test
+  public void testSetReaders_Bad() {
+    thrown.expect(IllegalArgumentException.class);
+    newReader(Integer.MAX_VALUE).setReaders(0);
+  }
+
+  @Test
+  public void testReadAll_KeepsRowOrder() throws Exception {
+    BQQParallelReader reader = newReader(Integer.MAX_VALUE).setReaders(3).setPageSize(100);
+    List<Integer> rows = reader.readAll(row -> indexOf(row));
+    Assert.assertEquals(ROWS, rows.size());
+    for (int i = 0; i < ROWS; i++) {
+      Assert.assertEquals(i, (int) rows.get(i));
+    }
+    Assert.assertEquals(11, mFetches.get());
+    Assert.assertEquals(ROWS, reader.getRowsRead());
+  }
+
+  @Test
+  public void testRead_UnorderedDeliversEveryRow() throws Exception {
+    BQQParallelReader reader = newReader(Integer.MAX_VALUE).setReaders(4).setPageSize(100);
+    List<Integer> rows = new ArrayList<>();
+    reader.read(row -> indexOf(row), rows::addAll, false);
+    Collections.sort(rows);
+    Assert.assertEquals(ROWS, rows.size());
+    for (int i = 0; i < ROWS; i++) {
+      Assert.assertEquals(i, (int) rows.get(i));
+    }
+  }
+
+  @Test
+  public void testRead_FollowsUpOnShortPages() throws Exception {
+    // the server returns at most 30 rows per request
+    List<Integer> rows = newReader(30).setPageSize(100).readAll(row -> indexOf(row));
+    Assert.assertEquals(ROWS, rows.size());
+    Assert.assertEquals(1049, (int) rows.get(1049));
+    Assert.assertEquals(10 * 4 + 2, mFetches.get());
+  }
+
+  @Test
+  public void testRead_FetchErrorFailsRead() throws Exception {
+    BQQParallelReader reader = new BQQParallelReader((start, maxRows) -> {
+      throw new BigQueryException(500, "backendError");
+    }, null, ROWS);
+    thrown.expect(BQQException.class);
+    reader.readAll(row -> row);
+  }
+
+  private BQQParallelReader newReader(int maxRowsPerResponse) {
+    return new BQQParallelReader((start, maxRows) -> {
+      mFetches.incrementAndGet();
+      try {
+        Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      int end = (int) Math.min(ROWS, start + Math.min(maxRows, maxRowsPerResponse));
+      return mRows.subList((int) start, end);
+    }, null, ROWS);
+  }
+
+  private int indexOf(List<FieldValue> row) {
+    for (int i = 0; i < mRows.size(); i++) {
+      if (mRows.get(i) == row) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
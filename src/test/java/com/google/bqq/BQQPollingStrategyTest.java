@@ -0,0 +1,79 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQPollingStrategy implementations.
+ */
+public class BQQPollingStrategyTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testFixed_ConstantDelay() {
+    BQQPollingStrategy s = BQQPollingStrategy.fixed(500);
+    Assert.assertEquals(500, s.getDelayMillis(1));
+    Assert.assertEquals(500, s.getDelayMillis(100));
+    Assert.assertEquals(0, s.getServerWaitMillis());
+  }
+
+  @Test
+  public void testExponential_GrowsUntilCap() {
+    BQQPollingStrategy s = BQQPollingStrategy.exponential(100, 2, 1000, 0);
+    Assert.assertEquals(100, s.getDelayMillis(1));
+    Assert.assertEquals(200, s.getDelayMillis(2));
+    Assert.assertEquals(400, s.getDelayMillis(3));
+    Assert.assertEquals(800, s.getDelayMillis(4));
+    Assert.assertEquals(1000, s.getDelayMillis(5));
+    Assert.assertEquals(1000, s.getDelayMillis(1000));
+  }
+
+  @Test
+  public void testExponential_JitterStaysInBounds() {
+    BQQPollingStrategy s = BQQPollingStrategy.exponential(1000, 1, 2000, 0.5);
+    for (int i = 0; i < 1000; ++i) {
+      long delay = s.getDelayMillis(1);
+      Assert.assertTrue("delay " + delay, delay >= 500 && delay <= 1500);
+    }
+  }
+
+  @Test
+  public void testExponential_RejectsBadMultiplier() {
+    thrown.expect(IllegalArgumentException.class);
+    BQQPollingStrategy.exponential(100, 0.5, 1000, 0);
+  }
+
+  @Test
+  public void testLongPoll_UsesServerWait() {
+    BQQPollingStrategy s = BQQPollingStrategy.longPoll(10000);
+    Assert.assertEquals(0, s.getDelayMillis(1));
+    Assert.assertEquals(10000, s.getServerWaitMillis());
+  }
+
+  @Test
+  public void testPollCounter_Aggregates() {
+    BQQPollCounter counter = new BQQPollCounter();
+    counter.record(0);
+    counter.record(4);
+    counter.record(2);
+    Assert.assertEquals(3, counter.getQueryCount());
+    Assert.assertEquals(6, counter.getPollCount());
+    Assert.assertEquals(4, counter.getMaxPollsPerQuery());
+    Assert.assertEquals(2.0, counter.getMeanPollsPerQuery(), 0.0001);
+  }
+}
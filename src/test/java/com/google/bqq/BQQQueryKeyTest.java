@@ -0,0 +1,89 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.QueryParameterValue;
+import com.google.cloud.bigquery.QueryRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests BQQQueryKey Class.
+ */
+public class BQQQueryKeyTest {
+  private static final String PARAMETERIZED_SQL = "SELECT word, word_count\n"
+      + "FROM `bigquery-public-data.samples.shakespeare`\n"
+      + "WHERE corpus = @corpus\n"
+      + "AND word_count >= @min_word_count\n"
+      + "ORDER BY word_count DESC";
+
+  @Test
+  public void testOf_NamedParameterOrderIgnored() {
+    QueryRequest r1 = QueryRequest.newBuilder(PARAMETERIZED_SQL)
+        .addNamedParameter("corpus", QueryParameterValue.string("tempest"))
+        .addNamedParameter("min_word_count", QueryParameterValue.int64(10))
+        .setUseLegacySql(false)
+        .build();
+    QueryRequest r2 = QueryRequest.newBuilder(PARAMETERIZED_SQL)
+        .addNamedParameter("min_word_count", QueryParameterValue.int64(10))
+        .addNamedParameter("corpus", QueryParameterValue.string("tempest"))
+        .setUseLegacySql(false)
+        .setMaxWaitTime(1000L)
+        .build();
+
+    Assert.assertEquals(BQQQueryKey.of(r1), BQQQueryKey.of(r2));
+    Assert.assertEquals(BQQQueryKey.of(r1).hashCode(), BQQQueryKey.of(r2).hashCode());
+  }
+
+  @Test
+  public void testOf_ParameterValuesMatter() {
+    QueryRequest r1 = QueryRequest.newBuilder(PARAMETERIZED_SQL)
+        .addNamedParameter("corpus", QueryParameterValue.string("tempest"))
+        .addNamedParameter("min_word_count", QueryParameterValue.int64(10))
+        .build();
+    QueryRequest r2 = QueryRequest.newBuilder(PARAMETERIZED_SQL)
+        .addNamedParameter("corpus", QueryParameterValue.string("tempest"))
+        .addNamedParameter("min_word_count", QueryParameterValue.string("10"))
+        .build();
+
+    Assert.assertNotEquals(BQQQueryKey.of(r1), BQQQueryKey.of(r2));
+  }
+
+  @Test
+  public void testOf_LegacySqlFlagMatters() {
+    QueryRequest legacy = QueryRequest.newBuilder("SELECT 1").setUseLegacySql(true).build();
+    QueryRequest standard = QueryRequest.newBuilder("SELECT 1").setUseLegacySql(false).build();
+
+    Assert.assertNotEquals(BQQQueryKey.of(legacy), BQQQueryKey.of(standard));
+  }
+
+  @Test
+  public void testOf_FieldBoundariesAreUnambiguous() {
+    QueryRequest r1 = QueryRequest.newBuilder("SELECT 1;legacySql=4:true;").build();
+    QueryRequest r2 = QueryRequest.newBuilder("SELECT 1").setUseLegacySql(true).build();
+
+    Assert.assertNotEquals(BQQQueryKey.of(r1), BQQQueryKey.of(r2));
+  }
+
+  @Test
+  public void testGetDigest_FollowsKey() {
+    BQQQueryKey k1 = BQQQueryKey.of(QueryRequest.of("SELECT 1"));
+    BQQQueryKey k2 = BQQQueryKey.of(QueryRequest.of("SELECT 1"));
+    BQQQueryKey k3 = BQQQueryKey.of(QueryRequest.of("SELECT 2"));
+
+    Assert.assertEquals(64, k1.getDigest().length());
+    Assert.assertEquals(k1.getDigest(), k2.getDigest());
+    Assert.assertNotEquals(k1.getDigest(), k3.getDigest());
+  }
+}
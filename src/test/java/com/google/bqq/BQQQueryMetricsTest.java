@@ -0,0 +1,77 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.QueryRequest;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests BQQQueryMetrics Class.
+ */
+public class BQQQueryMetricsTest {
+  @Test
+  public void testReasonOf() {
+    Assert.assertEquals("rateLimitExceeded", BQQQueryMetrics.reasonOf(new CompletionException(
+        new BQQException(new BigQueryError("rateLimitExceeded", "us", "slow down")))));
+    Assert.assertEquals(BQQQueryMetrics.CANCELLED,
+        BQQQueryMetrics.reasonOf(new CancellationException()));
+    Assert.assertEquals(BQQQueryMetrics.DEADLINE_EXCEEDED, BQQQueryMetrics.reasonOf(
+        new CompletionException(new BQQDeadlineExceededException("too slow"))));
+    Assert.assertEquals("BQQQueueFullException",
+        BQQQueryMetrics.reasonOf(new BQQQueueFullException("full")));
+  }
+
+  @Test
+  public void testOnDone_CountsOutcomesAndPhasesReached() throws InterruptedException {
+    BQQQueryMetrics metrics = new BQQQueryMetrics();
+    BQQCallable queued = newCallable(metrics);
+    queued.markEnqueued();
+    Thread.sleep(2);
+    queued.markStarted();
+    metrics.onSubmit();
+    metrics.onPoll();
+    metrics.onPoll();
+    metrics.onDone(queued, null);
+
+    BQQCallable neverRun = newCallable(metrics);
+    neverRun.markEnqueued();
+    metrics.onDone(neverRun, new CancellationException());
+
+    BQQStats stats = metrics.snapshot();
+    Assert.assertEquals(1, stats.getSubmissions());
+    Assert.assertEquals(2, stats.getPolls());
+    Assert.assertEquals(1, stats.getSuccesses());
+    Assert.assertEquals(1, stats.getFailures());
+    Assert.assertEquals(Long.valueOf(1),
+        stats.getFailuresByReason().get(BQQQueryMetrics.CANCELLED));
+    Assert.assertEquals(1, stats.getQueueWait().getCount());
+    Assert.assertTrue(stats.getQueueWait().getMaxMicros() >= 2000);
+    Assert.assertEquals(0, stats.getSubmitLatency().getCount());
+    Assert.assertEquals(2, stats.getTotalLatency().getCount());
+
+    metrics.onSubmit();
+    Assert.assertEquals("snapshots don't change", 1, stats.getSubmissions());
+  }
+
+  private static BQQCallable newCallable(BQQQueryMetrics metrics) {
+    return new BQQCallableBuilder()
+        .setQueryRequest(QueryRequest.of("SELECT 1"))
+        .setMetrics(metrics)
+        .build();
+  }
+}
@@ -0,0 +1,74 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQRateLimiter Class.
+ */
+public class BQQRateLimiterTest {
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final AtomicLong mNanos = new AtomicLong();
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testConstructor_BadRate() {
+    thrown.expect(IllegalArgumentException.class);
+    new BQQRateLimiter(0, 1);
+  }
+
+  @Test
+  public void testReserve_AllowsBurstThenSpacesCalls() {
+    BQQRateLimiter limiter = new BQQRateLimiter(10, 2, mNanos::get);
+    Assert.assertEquals(0, limiter.reserve());
+    Assert.assertEquals(0, limiter.reserve());
+    Assert.assertEquals(100 * MS, limiter.reserve());
+    Assert.assertEquals(200 * MS, limiter.reserve());
+
+    Assert.assertEquals(4, limiter.getAcquiredCount());
+    Assert.assertEquals(2, limiter.getThrottledCount());
+    Assert.assertEquals(300, limiter.getTotalWaitMillis());
+    Assert.assertEquals(200, limiter.getMaxWaitMillis());
+  }
+
+  @Test
+  public void testReserve_RefillsUpToBurst() {
+    BQQRateLimiter limiter = new BQQRateLimiter(10, 2, mNanos::get);
+    limiter.reserve();
+    limiter.reserve();
+    mNanos.addAndGet(10000 * MS);
+
+    Assert.assertEquals(0, limiter.reserve());
+    Assert.assertEquals(0, limiter.reserve());
+    Assert.assertTrue(limiter.reserve() > 0);
+  }
+
+  @Test
+  public void testAcquire_Waits() throws InterruptedException {
+    BQQRateLimiter limiter = new BQQRateLimiter(20, 1);
+    long start = System.nanoTime();
+    for (int i = 0; i < 3; ++i) {
+      limiter.acquire();
+    }
+    Assert.assertTrue(System.nanoTime() - start >= 90 * MS);
+  }
+}
@@ -0,0 +1,110 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResult;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests BQQResultCache Class.
+ */
+public class BQQResultCacheTest {
+  private static QueryResult sResult;
+
+  @BeforeClass
+  public static void runQuery() throws Exception {
+    // the cache only needs a result to hold, so it comes from the simulator
+    BQQServiceFactory.setBackend(new BQQSimulator(1));
+    try {
+      sResult = new BQQCallableBuilder()
+          .setQueryRequest(QueryRequest.of("SELECT 1"))
+          .build()
+          .call();
+    } finally {
+      BQQServiceFactory.setBackend(null);
+    }
+  }
+
+  private static BQQQueryKey key(int i) {
+    return BQQQueryKey.of(QueryRequest.of("SELECT " + i));
+  }
+
+  @Test
+  public void testGet_HitsAndMisses() {
+    BQQResultCache cache = new BQQResultCache(1 << 20, 60000);
+    Assert.assertNull(cache.get(key(1)));
+    Assert.assertTrue(cache.put(key(1), sResult));
+    Assert.assertSame(sResult, cache.get(key(1)));
+
+    Assert.assertEquals(1, cache.getHitCount());
+    Assert.assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testGet_ExpiresAfterTtl() {
+    AtomicLong now = new AtomicLong();
+    BQQResultCache cache = new BQQResultCache(1 << 20, 1000, now::get);
+    cache.put(key(1), sResult);
+
+    now.addAndGet(999 * 1000000L);
+    Assert.assertNotNull(cache.get(key(1)));
+    now.addAndGet(2 * 1000000L);
+    Assert.assertNull(cache.get(key(1)));
+    Assert.assertEquals(1, cache.getExpirationCount());
+    Assert.assertEquals(0, cache.getWeightedSize());
+  }
+
+  @Test
+  public void testPut_StaysWithinByteBudget() {
+    long weight = BQQResultCache.estimateSize(sResult);
+    BQQResultCache cache = new BQQResultCache(3 * weight, 60000);
+    for (int i = 0; i < 10; ++i) {
+      // ask for each key a few times so it is admitted over the older ones
+      for (int j = 0; j <= i; ++j) {
+        cache.get(key(i));
+      }
+      cache.put(key(i), sResult);
+      Assert.assertTrue(cache.getWeightedSize() <= 3 * weight);
+    }
+    Assert.assertEquals(3, cache.size());
+    Assert.assertEquals(7, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testPut_RejectsUnpopularEntriesWhenFull() {
+    long weight = BQQResultCache.estimateSize(sResult);
+    BQQResultCache cache = new BQQResultCache(weight, 60000);
+    for (int i = 0; i < 5; ++i) {
+      cache.get(key(1));
+    }
+    cache.put(key(1), sResult);
+
+    // a one-off query should not flush out the popular one
+    cache.get(key(2));
+    Assert.assertFalse(cache.put(key(2), sResult));
+    Assert.assertNotNull(cache.get(key(1)));
+    Assert.assertEquals(1, cache.getRejectionCount());
+  }
+
+  @Test
+  public void testPut_RejectsOversizedResults() {
+    BQQResultCache cache = new BQQResultCache(1, 60000);
+    Assert.assertFalse(cache.put(key(1), sResult));
+    Assert.assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,252 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.Schema;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests BQQResultStore Class.
+ */
+public class BQQResultStoreTest {
+  private static final Schema SCHEMA = Schema.of(Field.of("word", Field.Type.string()));
+  private static final BQQQueryKey KEY_A = BQQQueryKey.of(QueryRequest.of("SELECT 'a'"));
+  private static final BQQQueryKey KEY_B = BQQQueryKey.of(QueryRequest.of("SELECT 'b'"));
+  private static final BQQQueryKey KEY_C = BQQQueryKey.of(QueryRequest.of("SELECT 'c'"));
+
+  private final AtomicLong mMillis = new AtomicLong(1000000);
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testConstructor_BadTtl() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new BQQResultStore(folder.getRoot(), 1000, 0);
+  }
+
+  @Test
+  public void testGet_Miss() throws Exception {
+    try (BQQResultStore store = newStore(1 << 20)) {
+      Assert.assertNull(store.get(KEY_A));
+      Assert.assertEquals(1, store.getMissCount());
+    }
+  }
+
+  @Test
+  public void testPut_SurvivesReopen() throws Exception {
+    List<List<FieldValue>> rows = rows("a", 100);
+    try (BQQResultStore store = newStore(1 << 20)) {
+      Assert.assertTrue(store.put(KEY_A, materialize(rows)));
+      assertRows(rows, store.get(KEY_A));
+    }
+    try (BQQResultStore store = newStore(1 << 20)) {
+      Assert.assertEquals(1, store.size());
+      BQQMaterializedResult result = store.get(KEY_A);
+      Assert.assertEquals(SCHEMA, result.getSchema());
+      assertRows(rows, result);
+      Assert.assertEquals(1, store.getHitCount());
+    }
+  }
+
+  @Test
+  public void testGet_Expired() throws Exception {
+    try (BQQResultStore store = newStore(1 << 20)) {
+      store.put(KEY_A, materialize(rows("a", 10)));
+      mMillis.addAndGet(60000);
+      Assert.assertNull(store.get(KEY_A));
+      Assert.assertEquals(1, store.getExpirationCount());
+    }
+  }
+
+  @Test
+  public void testPut_EvictsOldest() throws Exception {
+    // each result takes about 7KB
+    try (BQQResultStore store = newStore(18000)) {
+      store.put(KEY_A, materialize(rows("a", 1000)));
+      store.put(KEY_B, materialize(rows("b", 1000)));
+      store.put(KEY_C, materialize(rows("c", 1000)));
+      Assert.assertNull(store.get(KEY_A));
+      Assert.assertNotNull(store.get(KEY_B));
+      Assert.assertNotNull(store.get(KEY_C));
+      Assert.assertEquals(1, store.getEvictionCount());
+      Assert.assertTrue(store.getLiveBytes() <= 18000);
+      Assert.assertTrue(store.getFileBytes() > store.getLiveBytes());
+
+      store.compact();
+      Assert.assertEquals(store.getLiveBytes(), store.getFileBytes());
+      Assert.assertNotNull(store.get(KEY_C));
+    }
+  }
+
+  @Test
+  public void testGet_DetectsCorruption() throws Exception {
+    try (BQQResultStore store = newStore(1 << 20)) {
+      store.put(KEY_A, materialize(rows("a", 100)));
+    }
+    try (RandomAccessFile data = new RandomAccessFile(
+        new File(folder.getRoot(), BQQResultStore.DATA_FILE), "rw")) {
+      data.seek(data.length() - 10);
+      data.write(0x7f);
+    }
+    try (BQQResultStore store = newStore(1 << 20)) {
+      Assert.assertNull(store.get(KEY_A));
+      Assert.assertEquals(1, store.getCorruptionCount());
+      Assert.assertEquals(0, store.size());
+    }
+  }
+
+  @Test
+  public void testInvalidate_SurvivesReopen() throws Exception {
+    try (BQQResultStore store = newStore(1 << 20)) {
+      store.put(KEY_A, materialize(rows("a", 10)));
+      store.put(KEY_B, materialize(rows("b", 10)));
+      store.invalidate(KEY_A);
+    }
+    try (BQQResultStore store = newStore(1 << 20)) {
+      Assert.assertNull(store.get(KEY_A));
+      Assert.assertNotNull(store.get(KEY_B));
+    }
+  }
+
+  @Test
+  public void testReopen_IgnoresTornIndexRecord() throws Exception {
+    try (BQQResultStore store = newStore(1 << 20)) {
+      store.put(KEY_A, materialize(rows("a", 10)));
+    }
+    try (RandomAccessFile index = new RandomAccessFile(
+        new File(folder.getRoot(), BQQResultStore.INDEX_FILE), "rw")) {
+      index.seek(index.length());
+      index.write(new byte[17]);
+    }
+    try (BQQResultStore store = newStore(1 << 20)) {
+      Assert.assertNotNull(store.get(KEY_A));
+      store.put(KEY_B, materialize(rows("b", 10)));
+    }
+    try (BQQResultStore store = newStore(1 << 20)) {
+      Assert.assertEquals(2, store.size());
+    }
+  }
+
+  private BQQResultStore newStore(long maxBytes) throws Exception {
+    return new BQQResultStore(folder.getRoot(), maxBytes, 60000, mMillis::get);
+  }
+
+  @Test
+  public void testPut_FailedResultLeavesNoBytes() throws Exception {
+    try (BQQResultStore store = newStore(1 << 20)) {
+      store.put(KEY_A, materialize(rows("a", 10)));
+      long bytes = store.getFileBytes();
+      ByteBuffer encoded = ByteBuffer.allocate(64 * 1024);
+      for (List<FieldValue> row : rows("b", 10)) {
+        encoded = BQQRowCodec.encode(row, encoded);
+      }
+      encoded.flip();
+      // claims more rows than were encoded, so iterating it fails partway through
+      BQQMaterializedResult broken = BQQMaterializedResult.ofEncoded(SCHEMA, encoded, 20);
+      try {
+        store.put(KEY_B, broken);
+        Assert.fail("put a broken result");
+      } catch (RuntimeException e) {
+        // expected
+      }
+      Assert.assertEquals(bytes, store.getFileBytes());
+      Assert.assertNull(store.get(KEY_B));
+      assertRows(rows("a", 10), store.get(KEY_A));
+    }
+  }
+
+  @Test
+  public void testGet_DoesNotWaitForPut() throws Exception {
+    try (BQQResultStore store = newStore(1 << 20)) {
+      store.put(KEY_A, materialize(rows("a", 10)));
+      CountDownLatch writing = new CountDownLatch(1);
+      CountDownLatch finish = new CountDownLatch(1);
+      // a result whose rows take until finish to come
+      BQQMaterializedResult slow =
+          new BQQMaterializedResult(new BQQHeapBudget(0, null), SCHEMA, null, 0) {
+            @Override
+            public Iterator<List<FieldValue>> iterator() {
+              writing.countDown();
+              try {
+                finish.await();
+                return rows("b", 10).iterator();
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+            }
+          };
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+        Future<Boolean> put = executor.submit(() -> store.put(KEY_B, slow));
+        writing.await();
+        Future<BQQMaterializedResult> get = executor.submit(() -> store.get(KEY_A));
+        assertRows(rows("a", 10), get.get(10, TimeUnit.SECONDS));
+        Assert.assertNull(store.get(KEY_B));
+
+        finish.countDown();
+        Assert.assertTrue(put.get(10, TimeUnit.SECONDS));
+        assertRows(rows("b", 10), store.get(KEY_B));
+      } finally {
+        finish.countDown();
+        executor.shutdown();
+      }
+    }
+  }
+
+  private static BQQMaterializedResult materialize(List<List<FieldValue>> rows)
+      throws Exception {
+    return new BQQHeapBudget(1 << 20).materialize(SCHEMA, rows.iterator());
+  }
+
+  private static void assertRows(List<List<FieldValue>> expected, BQQMaterializedResult result) {
+    List<List<FieldValue>> actual = new ArrayList<>();
+    for (List<FieldValue> row : result) {
+      actual.add(row);
+    }
+    Assert.assertEquals(expected, actual);
+  }
+
+  private static List<List<FieldValue>> rows(String prefix, int count) throws Exception {
+    Constructor<FieldValue> constructor = FieldValue.class.getDeclaredConstructor(
+        FieldValue.Attribute.class, Object.class);
+    constructor.setAccessible(true);
+    List<List<FieldValue>> rows = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      rows.add(Arrays.asList(constructor.newInstance(FieldValue.Attribute.PRIMITIVE, prefix + i)));
+    }
+    return rows;
+  }
+}
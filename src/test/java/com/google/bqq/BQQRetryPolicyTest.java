@@ -0,0 +1,93 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQRetryPolicy Class.
+ */
+public class BQQRetryPolicyTest {
+  private static final BQQException BACKEND_ERROR =
+      new BQQException(new BigQueryError("backendError", "", "try again"));
+  private static final BQQException INVALID_QUERY =
+      new BQQException(new BigQueryError("invalidQuery", "", "syntax error"));
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testConstructor_NoAttempts() {
+    thrown.expect(IllegalArgumentException.class);
+    new BQQRetryPolicy(0, 100, 2, 1000, 0, 1000);
+  }
+
+  @Test
+  public void testIsRetryable_ByReason() {
+    Assert.assertTrue(BACKEND_ERROR.isRetryable());
+    Assert.assertTrue(new BQQException(
+        new BigQueryError("rateLimitExceeded", "", "slow down")).isRetryable());
+    Assert.assertFalse(INVALID_QUERY.isRetryable());
+    Assert.assertFalse(new BQQException(
+        new BigQueryError("quotaExceeded", "", "out of quota")).isRetryable());
+    Assert.assertFalse(new BQQException("no errors").isRetryable());
+  }
+
+  @Test
+  public void testIsRetryable_ByStatusCode() {
+    Assert.assertTrue(new BQQException(new BigQueryException(503, "unavailable")).isRetryable());
+    Assert.assertFalse(new BQQException(new BigQueryException(404, "not found")).isRetryable());
+  }
+
+  @Test
+  public void testGetRetryDelay_BacksOffExponentially() {
+    BQQRetryPolicy policy = new BQQRetryPolicy(4, 100, 2, 1000, 0, 60000);
+    Assert.assertEquals(100, policy.getRetryDelayMillis(BACKEND_ERROR, 1, 0));
+    Assert.assertEquals(200, policy.getRetryDelayMillis(BACKEND_ERROR, 2, 0));
+    Assert.assertEquals(400, policy.getRetryDelayMillis(BACKEND_ERROR, 3, 0));
+    Assert.assertEquals(-1, policy.getRetryDelayMillis(BACKEND_ERROR, 4, 0));
+  }
+
+  @Test
+  public void testGetRetryDelay_UnwrapsFutureErrors() {
+    BQQRetryPolicy policy = new BQQRetryPolicy(2, 100, 2, 1000, 0, 60000);
+    Assert.assertEquals(100,
+        policy.getRetryDelayMillis(new CompletionException(BACKEND_ERROR), 1, 0));
+  }
+
+  @Test
+  public void testGetRetryDelay_GivesUpOnPermanentErrors() {
+    BQQRetryPolicy policy = BQQRetryPolicy.defaultPolicy();
+    Assert.assertEquals(-1, policy.getRetryDelayMillis(INVALID_QUERY, 1, 0));
+    Assert.assertEquals(-1, policy.getRetryDelayMillis(new IOException("no creds"), 1, 0));
+  }
+
+  @Test
+  public void testGetRetryDelay_GivesUpPastDeadline() {
+    BQQRetryPolicy policy = new BQQRetryPolicy(10, 100, 2, 1000, 0, 1000);
+    Assert.assertEquals(100, policy.getRetryDelayMillis(BACKEND_ERROR, 1, 900));
+    Assert.assertEquals(-1, policy.getRetryDelayMillis(BACKEND_ERROR, 1, 950));
+  }
+
+  @Test
+  public void testNone_NeverRetries() {
+    Assert.assertEquals(-1, BQQRetryPolicy.none().getRetryDelayMillis(BACKEND_ERROR, 1, 0));
+  }
+}
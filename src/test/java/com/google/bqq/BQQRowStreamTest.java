@@ -0,0 +1,122 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.Page;
+import com.google.cloud.PageImpl;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.FieldValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Tests BQQRowStream Class.
+ */
+public class BQQRowStreamTest {
+  private final List<List<FieldValue>> mRows = new ArrayList<>();
+  private final AtomicInteger mFetches = new AtomicInteger();
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testConstructor_BadPrefetch() {
+    thrown.expect(IllegalArgumentException.class);
+    new BQQRowStream(result(1, 1, -1), null, 1, 0);
+  }
+
+  @Test
+  public void testStream_ReadsAllPagesInOrder() {
+    try (BQQRowStream stream = new BQQRowStream(result(5, 3, -1), null, 15, 2)) {
+      for (List<FieldValue> row : mRows) {
+        Assert.assertTrue(stream.hasNext());
+        Assert.assertSame(row, stream.next());
+      }
+      Assert.assertFalse(stream.hasNext());
+      Assert.assertEquals(15, stream.getRowsRead());
+      Assert.assertEquals(5, stream.getPagesFetched());
+    }
+  }
+
+  @Test
+  public void testStream_BuffersAtMostPrefetchPages() throws InterruptedException {
+    try (BQQRowStream stream = new BQQRowStream(result(10, 3, -1), null, 30, 2)) {
+      waitForFetches(3);
+      Thread.sleep(50);
+      // 2 buffered pages, and 1 waiting for buffer space
+      Assert.assertEquals(3, mFetches.get());
+
+      for (int i = 0; i < 4; i++) {
+        stream.next();
+      }
+      waitForFetches(4);
+      Thread.sleep(50);
+      Assert.assertEquals(4, mFetches.get());
+    }
+  }
+
+  @Test
+  public void testStream_RethrowsPageErrors() {
+    try (BQQRowStream stream = new BQQRowStream(result(5, 3, 2), null, 15, 2)) {
+      for (int i = 0; i < 6; i++) {
+        stream.next();
+      }
+      thrown.expect(BigQueryException.class);
+      stream.hasNext();
+    }
+  }
+
+  @Test
+  public void testClose_StopsFetching() throws InterruptedException {
+    BQQRowStream stream = new BQQRowStream(result(100, 3, -1), null, 300, 1);
+    waitForFetches(2);
+    stream.close();
+    Assert.assertFalse(stream.hasNext());
+    Thread.sleep(50);
+    Assert.assertEquals(2, mFetches.get());
+  }
+
+  /**
+   * Builds a result of pages pages with rowsPerPage rows each, whose page failIndex fails
+   * to be fetched.
+   */
+  private Page<List<FieldValue>> result(int pages, int rowsPerPage, int failIndex) {
+    for (int i = 0; i < pages * rowsPerPage; i++) {
+      mRows.add(new ArrayList<FieldValue>());
+    }
+    return page(0, pages, rowsPerPage, failIndex);
+  }
+
+  private Page<List<FieldValue>> page(int index, int pages, int rowsPerPage, int failIndex) {
+    List<List<FieldValue>> rows = mRows.subList(index * rowsPerPage, (index + 1) * rowsPerPage);
+    boolean last = index == pages - 1;
+    return new PageImpl<>(() -> {
+      mFetches.incrementAndGet();
+      if (index + 1 == failIndex) {
+        throw new BigQueryException(500, "backendError");
+      }
+      return page(index + 1, pages, rowsPerPage, failIndex);
+    }, last ? null : "page" + (index + 1), rows);
+  }
+
+  private void waitForFetches(int fetches) throws InterruptedException {
+    for (int i = 0; i < 200 && mFetches.get() < fetches; i++) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.QueryRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests BQQSchedulingQueue Class.
+ */
+public class BQQSchedulingQueueTest {
+  private final AtomicLong mNanos = new AtomicLong();
+
+  private static BQQQueryTask task(BQQPriority priority) {
+    return new BQQQueryTask(new BQQCallableBuilder()
+        .setQueryRequest(QueryRequest.of("SELECT 1"))
+        .setPriority(priority)
+        .build());
+  }
+
+  private static BQQQueryTask task(String tenant) {
+    return new BQQQueryTask(new BQQCallableBuilder()
+        .setQueryRequest(QueryRequest.of("SELECT 1"))
+        .setTenant(tenant)
+        .build());
+  }
+
+  private static String tenantOf(Runnable task) {
+    return ((BQQQueryTask) task).getCallable().getTenant();
+  }
+
+  private void advanceMillis(long ms) {
+    mNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+  }
+
+  @Test
+  public void testPoll_HigherLaneFirst() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(10, 10000, mNanos::get);
+    BQQQueryTask batch = task(BQQPriority.BATCH);
+    BQQQueryTask normal = task(BQQPriority.NORMAL);
+    BQQQueryTask interactive1 = task(BQQPriority.INTERACTIVE);
+    BQQQueryTask interactive2 = task(BQQPriority.INTERACTIVE);
+    queue.offer(batch);
+    queue.offer(normal);
+    queue.offer(interactive1);
+    queue.offer(interactive2);
+
+    Assert.assertEquals(4, queue.size());
+    Assert.assertEquals(2, queue.size(BQQPriority.INTERACTIVE));
+    Assert.assertSame(interactive1, queue.poll());
+    Assert.assertSame(interactive2, queue.poll());
+    Assert.assertSame(normal, queue.poll());
+    Assert.assertSame(batch, queue.poll());
+    Assert.assertNull(queue.poll());
+  }
+
+  @Test
+  public void testPoll_AgedQueryIsPromoted() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(10, 1000, mNanos::get);
+    BQQQueryTask batch = task(BQQPriority.BATCH);
+    queue.offer(batch);
+    advanceMillis(2000);
+    BQQQueryTask interactive = task(BQQPriority.INTERACTIVE);
+    queue.offer(interactive);
+
+    // waited two lanes' worth, ties with the new INTERACTIVE query and is older
+    Assert.assertSame(batch, queue.poll());
+    Assert.assertSame(interactive, queue.poll());
+  }
+
+  @Test
+  public void testOffer_UntypedTaskGoesInNormalLane() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(10, 1000, mNanos::get);
+    queue.offer(() -> { });
+
+    Assert.assertEquals(1, queue.size(BQQPriority.NORMAL));
+  }
+
+  @Test
+  public void testDrainTo_RemovesEverything() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(10, 1000, mNanos::get);
+    BQQQueryTask batch = task(BQQPriority.BATCH);
+    queue.offer(batch);
+    queue.offer(task(BQQPriority.INTERACTIVE));
+    Assert.assertTrue(queue.remove(batch));
+
+    List<Runnable> drained = new ArrayList<>();
+    Assert.assertEquals(1, queue.drainTo(drained));
+    Assert.assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testPoll_TimesOutWhenEmpty() throws InterruptedException {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(10, 1000);
+    Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testOffer_FailsWhenFull() throws InterruptedException {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(1, 1000, mNanos::get);
+    Assert.assertTrue(queue.offer(task(BQQPriority.NORMAL)));
+    Assert.assertFalse(queue.offer(task(BQQPriority.INTERACTIVE)));
+    Assert.assertFalse(queue.offer(task(BQQPriority.NORMAL), 10, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(0, queue.remainingCapacity());
+  }
+
+  @Test
+  public void testOfferDroppingOldest_DropsLowestLane() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(2, 1000, mNanos::get);
+    BQQQueryTask batch = task(BQQPriority.BATCH);
+    BQQQueryTask normal = task(BQQPriority.NORMAL);
+    queue.offer(batch);
+    queue.offer(normal);
+
+    BQQQueryTask interactive = task(BQQPriority.INTERACTIVE);
+    Assert.assertSame(batch, queue.offerDroppingOldest(interactive));
+    Assert.assertEquals(2, queue.size());
+    Assert.assertSame(interactive, queue.poll());
+  }
+
+  @Test
+  public void testOfferDroppingOldest_NeverDropsHigherLane() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(1, 1000, mNanos::get);
+    queue.offer(task(BQQPriority.INTERACTIVE));
+
+    BQQQueryTask batch = task(BQQPriority.BATCH);
+    Assert.assertSame(batch, queue.offerDroppingOldest(batch));
+    Assert.assertEquals(1, queue.size(BQQPriority.INTERACTIVE));
+  }
+
+  @Test
+  public void testPoll_TenantsTakeWeightedTurns() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(100, 1000, mNanos::get);
+    queue.setTenantWeight("big", 2);
+    for (int i = 0; i < 10; ++i) {
+      queue.offer(task("noisy"));
+    }
+    for (int i = 0; i < 4; ++i) {
+      queue.offer(task("big"));
+    }
+
+    StringBuilder order = new StringBuilder();
+    for (int i = 0; i < 6; ++i) {
+      order.append(tenantOf(queue.poll()).charAt(0));
+    }
+    Assert.assertEquals("nbbnbb", order.toString());
+    Assert.assertEquals(8, queue.size("noisy"));
+  }
+
+  @Test
+  public void testPoll_SkipsTenantAtConcurrencyLimit() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(100, 1000, mNanos::get);
+    queue.setTenantMaxRunning("capped", 1);
+    queue.offer(task("capped"));
+    queue.offer(task("capped"));
+    BQQQueryTask other = task("other");
+    queue.offer(other);
+
+    BQQQueryTask running = (BQQQueryTask) queue.poll();
+    Assert.assertEquals("capped", tenantOf(running));
+    Assert.assertSame(other, queue.poll());
+    Assert.assertNull(queue.poll());
+    Assert.assertEquals(1, queue.size());
+
+    // completing the running query frees up the tenant
+    running.getFuture().complete(null);
+    Assert.assertEquals("capped", tenantOf(queue.poll()));
+  }
+
+  @Test
+  public void testGetTenantStats_TracksQueueWait() {
+    BQQSchedulingQueue queue = new BQQSchedulingQueue(100, 1000, mNanos::get);
+    queue.offer(task("a"));
+    queue.offer(task("a"));
+    advanceMillis(300);
+    queue.poll();
+
+    BQQTenantStats stats = queue.getTenantStats().get("a");
+    Assert.assertEquals(1, stats.getQueued());
+    Assert.assertEquals(1, stats.getRunning());
+    Assert.assertEquals(1, stats.getDequeued());
+    Assert.assertEquals(300, stats.getMaxWaitMillis());
+    Assert.assertEquals(300.0, stats.getMeanWaitMillis(), 0.001);
+  }
+}
@@ -0,0 +1,695 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.bqq.BQQSimulator.Distribution;
+import com.google.api.services.bigquery.model.GetQueryResultsResponse;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQuery.QueryResultsOption;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResponse;
+import com.google.cloud.bigquery.QueryResult;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests BQQSimulator Class.
+ */
+public class BQQSimulatorTest {
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final QueryRequest QUERY = QueryRequest.of("SELECT 1");
+
+  private final AtomicLong mNanos = new AtomicLong();
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    BQQServiceFactory.setBackend(null);
+  }
+
+  private BigQuery install(BQQSimulator simulator) throws Exception {
+    BQQServiceFactory.setBackend(simulator);
+    return BQQServiceFactory.getClient(null, null);
+  }
+
+  @Test
+  public void testSetRpcFailureRate_BadRate() {
+    thrown.expect(IllegalArgumentException.class);
+    new BQQSimulator(1).setRpcFailureRate(1.5);
+  }
+
+  @Test
+  public void testDistributions_AreSeeded() {
+    Distribution[] distributions = {
+        Distribution.uniform(10, 20), Distribution.exponential(100),
+        Distribution.logNormal(100, 1)};
+    for (Distribution distribution : distributions) {
+      Random first = new Random(7);
+      Random second = new Random(7);
+      for (int i = 0; i < 100; ++i) {
+        long value = distribution.sample(first);
+        Assert.assertEquals(value, distribution.sample(second));
+        Assert.assertTrue(value >= 0);
+      }
+    }
+    Random random = new Random(7);
+    for (int i = 0; i < 1000; ++i) {
+      long value = Distribution.uniform(10, 20).sample(random);
+      Assert.assertTrue(value >= 10 && value <= 20);
+    }
+  }
+
+  @Test
+  public void testQuery_CompletesAfterRuntime() throws Exception {
+    BigQuery bigquery = install(new BQQSimulator(1, mNanos::get)
+        .setJobRuntime(Distribution.fixed(100)));
+
+    QueryResponse response = bigquery.query(QUERY);
+    Assert.assertFalse(response.jobCompleted());
+    Assert.assertFalse(bigquery.getQueryResults(response.getJobId()).jobCompleted());
+
+    mNanos.addAndGet(100 * MS);
+    response = bigquery.getQueryResults(response.getJobId());
+    Assert.assertTrue(response.jobCompleted());
+    Assert.assertEquals(10, response.getResult().getTotalRows());
+  }
+
+  @Test
+  public void testQuery_ServerWaitHoldsCallUntilDone() throws Exception {
+    BigQuery bigquery = install(new BQQSimulator(1).setJobRuntime(Distribution.fixed(50)));
+
+    long start = System.nanoTime();
+    QueryResponse response = bigquery.query(
+        QUERY.toBuilder().setMaxWaitTime(10000L).build());
+    Assert.assertTrue(response.jobCompleted());
+    Assert.assertTrue(System.nanoTime() - start >= 50 * MS);
+  }
+
+  @Test
+  public void testGetQueryResults_PagesRows() throws Exception {
+    BigQuery bigquery = install(new BQQSimulator(1)
+        .setResultRows(Distribution.fixed(25))
+        .setPageSize(10));
+
+    QueryResponse response = bigquery.query(QUERY);
+    QueryResult result = response.getResult();
+    Assert.assertEquals(25, result.getTotalRows());
+    Assert.assertEquals(10, count(result.getValues().iterator()));
+    Assert.assertNotNull(result.getNextPageCursor());
+
+    List<Long> ids = new ArrayList<>();
+    Iterator<List<FieldValue>> all = result.iterateAll();
+    while (all.hasNext()) {
+      ids.add(all.next().get(0).getLongValue());
+    }
+    Assert.assertEquals(25, ids.size());
+    Assert.assertEquals(Long.valueOf(24), ids.get(24));
+
+    QueryResult range = bigquery.getQueryResults(response.getJobId(),
+        QueryResultsOption.startIndex(20), QueryResultsOption.pageSize(3)).getResult();
+    Assert.assertEquals(3, count(range.getValues().iterator()));
+    Assert.assertEquals(20, range.getValues().iterator().next().get(0).getLongValue());
+  }
+
+  @Test
+  public void testQuery_ConcurrentJobQuota() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1, mNanos::get)
+        .setJobRuntime(Distribution.fixed(100))
+        .setMaxConcurrentJobs(2);
+    BigQuery bigquery = install(simulator);
+    bigquery.query(QUERY);
+    bigquery.query(QUERY);
+    try {
+      bigquery.query(QUERY);
+      Assert.fail("third concurrent job was started");
+    } catch (BigQueryException e) {
+      Assert.assertEquals("rateLimitExceeded", e.getError().getReason());
+      Assert.assertTrue(new BQQException(e).isRetryable());
+    }
+    Assert.assertEquals(1, simulator.getQuotaExceededCount());
+
+    mNanos.addAndGet(100 * MS);
+    bigquery.query(QUERY);
+    Assert.assertEquals(3, simulator.getJobsStarted());
+  }
+
+  @Test
+  public void testAdmit_RateLimit() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1, mNanos::get).setMaxRequestsPerSecond(2);
+    BigQuery bigquery = install(simulator);
+    bigquery.query(QUERY);
+    bigquery.query(QUERY);
+    try {
+      bigquery.query(QUERY);
+      Assert.fail("rate limit not applied");
+    } catch (BigQueryException e) {
+      Assert.assertEquals(403, e.getCode());
+    }
+    mNanos.addAndGet(500 * MS);
+    bigquery.query(QUERY);
+    Assert.assertEquals(1, simulator.getRateLimitedCount());
+  }
+
+  @Test
+  public void testCancel_StopsJob() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(60000));
+    BigQuery bigquery = install(simulator);
+    QueryResponse response = bigquery.query(QUERY);
+
+    Assert.assertTrue(bigquery.cancel(response.getJobId()));
+    response = bigquery.getQueryResults(response.getJobId());
+    Assert.assertTrue(response.jobCompleted());
+    Assert.assertEquals("stopped", response.getExecutionErrors().get(0).getReason());
+    Assert.assertEquals(1, simulator.getCancelledCount());
+    Assert.assertEquals(0, simulator.getRunningJobs());
+  }
+
+  @Test
+  public void testClient_RetriesInjectedFailures() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(42)
+        .setJobRuntime(Distribution.uniform(0, 5))
+        .setStatusChecksNeeded(1)
+        .setRpcFailureRate(0.1)
+        .setJobFailureRate(0.1);
+    BQQServiceFactory.setBackend(simulator);
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(1))
+        .setRetryPolicy(new BQQRetryPolicy(10, 1, 1, 1, 0, 60000));
+    client.startup(20, BQQExecutionMode.POLLER);
+    try {
+      List<CompletableFuture<QueryResult>> futures = new ArrayList<>();
+      for (int i = 0; i < 500; ++i) {
+        futures.add(client.queueQueryAsync(QUERY));
+      }
+      for (CompletableFuture<QueryResult> future : futures) {
+        Assert.assertEquals(10, future.get().getTotalRows());
+      }
+    } finally {
+      client.shutdown();
+    }
+    Assert.assertTrue(simulator.getInjectedFailureCount() > 0);
+    Assert.assertTrue(simulator.getJobsStarted() > 500);
+    Assert.assertEquals(500, client.getStats().getSuccesses());
+  }
+
+  @Test
+  public void testClient_HedgesStalledStatusChecks() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(7)
+        .setStatusChecksNeeded(1)
+        .setStallRate(0.05, 3000);
+    BQQServiceFactory.setBackend(simulator);
+    BQQHedger hedger = new BQQHedger(90, 0.5, 50);
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(1))
+        .setHedger(hedger);
+    client.startup(20, BQQExecutionMode.POLLER);
+    try {
+      List<CompletableFuture<QueryResult>> futures = new ArrayList<>();
+      for (int i = 0; i < 300; ++i) {
+        futures.add(client.queueQueryAsync(QUERY));
+      }
+      for (CompletableFuture<QueryResult> future : futures) {
+        Assert.assertEquals(10, future.get(30, TimeUnit.SECONDS).getTotalRows());
+      }
+    } finally {
+      client.shutdown();
+    }
+    Assert.assertTrue(simulator.getStallCount() > 0);
+    Assert.assertTrue(hedger.toString(), hedger.getHedgeWinCount() > 0);
+    Assert.assertTrue(hedger.getHedgeCount() <= 0.5 * hedger.getCallCount());
+  }
+
+  @Test
+  public void testClient_QueryKeepsItsOwnLimitersCounterAndHedger() throws Exception {
+    BQQServiceFactory.setBackend(new BQQSimulator(1).setStatusChecksNeeded(1));
+    BQQRateLimiter clientLimiter = new BQQRateLimiter(1000, 10);
+    BQQRateLimiter submitLimiter = new BQQRateLimiter(1000, 10);
+    BQQRateLimiter statusLimiter = new BQQRateLimiter(1000, 10);
+    BQQPollCounter pollCounter = new BQQPollCounter();
+    BQQHedger clientHedger = new BQQHedger(90, 0.1, 0);
+    BQQHedger hedger = new BQQHedger(90, 0.1, 0);
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(1))
+        .setSubmitRateLimiter(clientLimiter)
+        .setStatusRateLimiter(clientLimiter)
+        .setHedger(clientHedger);
+    client.startup(1, BQQExecutionMode.THREAD_POOL);
+    try {
+      client.queueQueryAsync(new BQQCallableBuilder()
+          .setQueryRequest(QUERY)
+          .setSubmitRateLimiter(submitLimiter)
+          .setStatusRateLimiter(statusLimiter)
+          .setPollCounter(pollCounter)
+          .setHedger(hedger)).get(10, TimeUnit.SECONDS);
+    } finally {
+      client.shutdown();
+    }
+    Assert.assertEquals(1, submitLimiter.getAcquiredCount());
+    Assert.assertEquals(1, statusLimiter.getAcquiredCount());
+    Assert.assertEquals(0, clientLimiter.getAcquiredCount());
+    Assert.assertEquals(1, pollCounter.getQueryCount());
+    Assert.assertEquals(0, client.getPollCounter().getQueryCount());
+    Assert.assertEquals(1, hedger.getCallCount());
+    Assert.assertEquals(0, clientHedger.getCallCount());
+  }
+
+  @Test
+  public void testClient_CancelCancelsJob_Poller() throws Exception {
+    checkCancelCancelsJob(BQQExecutionMode.POLLER);
+  }
+
+  @Test
+  public void testClient_CancelCancelsJob_ThreadPool() throws Exception {
+    checkCancelCancelsJob(BQQExecutionMode.THREAD_POOL);
+  }
+
+  private void checkCancelCancelsJob(BQQExecutionMode mode) throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(60000));
+    BQQServiceFactory.setBackend(simulator);
+    BQQClient client = new BQQClient().setPollingStrategy(BQQPollingStrategy.fixed(10));
+    client.startup(2, mode);
+    try {
+      CompletableFuture<QueryResult> future = client.queueQueryAsync(QUERY);
+      await(() -> simulator.getRunningJobs() == 1);
+      Assert.assertTrue(future.cancel(true));
+      await(() -> simulator.getCancelledCount() == 1);
+    } finally {
+      client.shutdown();
+    }
+    Assert.assertEquals(0, simulator.getRunningJobs());
+    Assert.assertEquals(1, simulator.getJobsStarted());
+    Assert.assertEquals(1, client.getStats().getCancelled());
+    Assert.assertEquals(1, client.getStats().getJobsCancelled());
+  }
+
+  @Test
+  public void testClient_DeadlineCancelsJob() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(60000));
+    BQQServiceFactory.setBackend(simulator);
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setDeadline(200);
+    client.startup(2, BQQExecutionMode.POLLER);
+    try {
+      CompletableFuture<QueryResult> future = client.queueQueryAsync(QUERY);
+      try {
+        future.get(10, TimeUnit.SECONDS);
+        Assert.fail("query outlived its deadline");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof BQQDeadlineExceededException);
+      }
+      await(() -> simulator.getCancelledCount() == 1);
+    } finally {
+      client.shutdown();
+    }
+    Assert.assertEquals(1, client.getStats().getDeadlineExceeded());
+  }
+
+  @Test
+  public void testClient_QueryOptsOutOfDeadline() throws Exception {
+    BQQServiceFactory.setBackend(new BQQSimulator(1).setJobRuntime(Distribution.fixed(500)));
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setDeadline(100);
+    client.startup(2, BQQExecutionMode.POLLER);
+    try {
+      QueryResult result = client.queueQueryAsync(new BQQCallableBuilder()
+          .setQueryRequest(QUERY)
+          .setDeadline(0)).get(10, TimeUnit.SECONDS);
+      Assert.assertEquals(10, result.getTotalRows());
+    } finally {
+      client.shutdown();
+    }
+  }
+
+  @Test
+  public void testCall_RateLimitWaitEndsAtDeadline() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(10));
+    BQQServiceFactory.setBackend(simulator);
+    // a start every 10s, and the one permit of the burst is taken
+    BQQRateLimiter limiter = new BQQRateLimiter(0.1, 1);
+    limiter.reserve();
+    BQQCallable c = new BQQCallableBuilder()
+        .setQueryRequest(QUERY)
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setSubmitRateLimiter(limiter)
+        .setDeadline(200)
+        .build();
+    long start = System.nanoTime();
+    try {
+      c.call();
+      Assert.fail("query outlived its deadline");
+    } catch (BQQDeadlineExceededException e) {
+      // expected
+    }
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    Assert.assertEquals(0, simulator.getJobsStarted());
+  }
+
+  @Test
+  public void testClient_CancelledQueuedQueryNeverRuns() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(60000));
+    BQQServiceFactory.setBackend(simulator);
+    BQQClient client = new BQQClient().setPollingStrategy(BQQPollingStrategy.fixed(10));
+    client.startup(1, BQQExecutionMode.THREAD_POOL);
+    try {
+      CompletableFuture<QueryResult> running = client.queueQueryAsync(QUERY);
+      await(() -> simulator.getRunningJobs() == 1);
+      CompletableFuture<QueryResult> queued = client.queueQueryAsync(
+          new BQQCallableBuilder().setQueryRequest(QUERY).setDeadline(60000));
+      Assert.assertEquals(1, (int) client.getNumJobs());
+
+      Assert.assertTrue(queued.cancel(true));
+      Assert.assertEquals(0, (int) client.getNumJobs());
+      Assert.assertEquals(1, client.cancelAll());
+      Assert.assertTrue(running.isCancelled());
+      await(() -> simulator.getCancelledCount() == 1);
+    } finally {
+      client.shutdown();
+    }
+    Assert.assertEquals(1, simulator.getJobsStarted());
+    Assert.assertEquals(2, client.getStats().getCancelled());
+    Assert.assertEquals(1, client.getStats().getRemovedFromQueue());
+  }
+
+  @Test
+  public void testClient_CancelAllStopsCallerRunsQuery() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(60000));
+    BQQServiceFactory.setBackend(simulator);
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setQueueCapacity(1)
+        .setOverflowPolicy(BQQOverflowPolicy.CALLER_RUNS);
+    client.startup(1, BQQExecutionMode.THREAD_POOL);
+    try {
+      client.queueQueryAsync(QUERY);
+      await(() -> simulator.getRunningJobs() == 1);
+      client.queueQueryAsync(QUERY);
+      CompletableFuture<CompletableFuture<QueryResult>> callerRuns =
+          CompletableFuture.supplyAsync(() -> client.queueQueryAsync(QUERY));
+      await(() -> simulator.getRunningJobs() == 2);
+
+      Assert.assertEquals(3, client.cancelAll());
+      Assert.assertTrue(callerRuns.get(10, TimeUnit.SECONDS).isCancelled());
+      await(() -> simulator.getCancelledCount() == 2);
+    } finally {
+      client.shutdown();
+    }
+    Assert.assertEquals(2, simulator.getJobsStarted());
+  }
+
+  @Test
+  public void testClient_ResumesJournaledQueries() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(1000));
+    BQQServiceFactory.setBackend(simulator);
+    QueryRequest query = QUERY.toBuilder().setMaxWaitTime(10L).build();
+    BQQJobJournal journal = new BQQJobJournal(folder.getRoot());
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setJournal(journal);
+    client.startup(2, BQQExecutionMode.POLLER);
+    for (int i = 0; i < 3; ++i) {
+      client.queueQueryAsync(query);
+    }
+    await(() -> journal.getPending().stream().filter(e -> e.getJobId() != null).count() == 2);
+    client.shutdown(10);
+    Assert.assertEquals(0, simulator.getCancelledCount());
+
+    BQQClient restarted = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setJournal(new BQQJobJournal(folder.getRoot()));
+    restarted.startup(2, BQQExecutionMode.POLLER);
+    try {
+      Map<BQQJournalEntry, CompletableFuture<QueryResult>> resumed =
+          restarted.getResumedQueries();
+      Assert.assertEquals(3, resumed.size());
+      for (CompletableFuture<QueryResult> future : resumed.values()) {
+        Assert.assertEquals(10, future.get(10, TimeUnit.SECONDS).getTotalRows());
+      }
+    } finally {
+      restarted.shutdown();
+    }
+    // the two running jobs were re-attached to, only the queued query started a job
+    Assert.assertEquals(3, simulator.getJobsStarted());
+    Assert.assertEquals(0, new BQQJobJournal(folder.getRoot()).size());
+  }
+
+  @Test
+  public void testClient_ResumedQueryRetriesStatusChecks() throws Exception {
+    // the status check which follows the re-attach fails
+    Assert.assertEquals(1, resumeWithFailedCheck(2, BQQExecutionMode.POLLER).getJobsStarted());
+  }
+
+  @Test
+  public void testClient_ResumedQueryRetriesReattach() throws Exception {
+    // the re-attach itself fails, which mustn't start the long running job over
+    Assert.assertEquals(1, resumeWithFailedCheck(1, BQQExecutionMode.POLLER).getJobsStarted());
+    BQQServiceFactory.setBackend(null);
+    folder.delete();
+    folder.create();
+    Assert.assertEquals(1,
+        resumeWithFailedCheck(1, BQQExecutionMode.THREAD_POOL).getJobsStarted());
+  }
+
+  @Test
+  public void testClient_ResumeFailsQueriesOverQueueCapacity() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(100));
+    BQQServiceFactory.setBackend(simulator);
+    try (BQQJobJournal journal = new BQQJobJournal(folder.getRoot())) {
+      for (int i = 0; i < 3; ++i) {
+        journal.queued(QUERY, BQQPriority.NORMAL, BQQCallable.DEFAULT_TENANT);
+      }
+    }
+
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setQueueCapacity(1)
+        .setOverflowPolicy(BQQOverflowPolicy.REJECT)
+        .setJournal(new BQQJobJournal(folder.getRoot()));
+    client.startup(1, BQQExecutionMode.THREAD_POOL);
+    int rejected = 0;
+    try {
+      Map<BQQJournalEntry, CompletableFuture<QueryResult>> resumed = client.getResumedQueries();
+      Assert.assertEquals(3, resumed.size());
+      for (CompletableFuture<QueryResult> future : resumed.values()) {
+        try {
+          Assert.assertEquals(10, future.get(10, TimeUnit.SECONDS).getTotalRows());
+        } catch (ExecutionException e) {
+          Assert.assertTrue(e.getCause() instanceof BQQQueueFullException);
+          ++rejected;
+        }
+      }
+    } finally {
+      client.shutdown();
+    }
+    // one worker and one queue slot hold at most two, the worker may take the first in time
+    Assert.assertTrue(rejected >= 1 && rejected <= 2);
+    Assert.assertEquals(3 - rejected, simulator.getJobsStarted());
+    // the rejected queries are done too, they aren't resumed again
+    Assert.assertEquals(0, new BQQJobJournal(folder.getRoot()).size());
+  }
+
+  @Test
+  public void testClient_QueuedDuringShutdownCompletes_Poller() throws Exception {
+    queueDuringShutdown(BQQExecutionMode.POLLER);
+  }
+
+  @Test
+  public void testClient_QueuedDuringShutdownCompletes_ThreadPool() throws Exception {
+    queueDuringShutdown(BQQExecutionMode.THREAD_POOL);
+  }
+
+  @Test
+  public void testClient_DeadlineOnlyFailsItsOwnCoalescedCaller() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(500));
+    BQQServiceFactory.setBackend(simulator);
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setDeduplicateQueries(true);
+    client.startup(2, BQQExecutionMode.THREAD_POOL);
+    try {
+      CompletableFuture<QueryResult> hurried = client.queueQueryAsync(new BQQCallableBuilder()
+          .setQueryRequest(QUERY)
+          .setDeadline(100));
+      CompletableFuture<QueryResult> patient = client.queueQueryAsync(QUERY);
+      Assert.assertEquals(1, client.getCoalescedQueryCount());
+
+      try {
+        hurried.get(10, TimeUnit.SECONDS);
+        Assert.fail("expected the deadline to pass");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof BQQDeadlineExceededException);
+      }
+      Assert.assertEquals(10, patient.get(10, TimeUnit.SECONDS).getTotalRows());
+    } finally {
+      client.shutdown();
+    }
+    Assert.assertEquals(1, simulator.getJobsStarted());
+    Assert.assertEquals(0, simulator.getCancelledCount());
+  }
+
+  @Test
+  public void testClient_CoalescesOnlyWithinTenant() throws Exception {
+    BQQSimulator simulator = new BQQSimulator(1).setJobRuntime(Distribution.fixed(100));
+    BQQServiceFactory.setBackend(simulator);
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setDeduplicateQueries(true);
+    client.startup(2, BQQExecutionMode.THREAD_POOL);
+    try {
+      CompletableFuture<QueryResult> a = client.queueQueryAsync(QUERY, "a");
+      CompletableFuture<QueryResult> b = client.queueQueryAsync(QUERY, "b");
+      a.get(10, TimeUnit.SECONDS);
+      b.get(10, TimeUnit.SECONDS);
+    } finally {
+      client.shutdown();
+    }
+    Assert.assertEquals(0, client.getCoalescedQueryCount());
+    Assert.assertEquals(2, simulator.getJobsStarted());
+  }
+
+  /**
+   * Journals a running job, then resumes it with a client in the given mode, failing one of
+   * the resumed query's status checks with a retryable error.
+   * @param failingCheck the status check after the restart which fails, starting at 1 for the
+   *     re-attach
+   * @return the simulator the job ran on
+   */
+  private BQQSimulator resumeWithFailedCheck(int failingCheck, BQQExecutionMode mode)
+      throws Exception {
+    AtomicInteger untilFailure = new AtomicInteger();
+    BQQSimulator simulator = new BQQSimulator(1) {
+      @Override
+      public GetQueryResultsResponse getQueryResults(String projectId, String jobId,
+          Map<Option, ?> options) {
+        if (untilFailure.get() > 0 && untilFailure.decrementAndGet() == 0) {
+          throw new BigQueryException(500, "Backend error",
+              new BigQueryError("backendError", "test", "Backend error"));
+        }
+        return super.getQueryResults(projectId, jobId, options);
+      }
+    }.setJobRuntime(Distribution.fixed(1000));
+    BQQServiceFactory.setBackend(simulator);
+    BQQJobJournal journal = new BQQJobJournal(folder.getRoot());
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setJournal(journal);
+    client.startup(1, BQQExecutionMode.POLLER);
+    client.queueQueryAsync(QUERY.toBuilder().setMaxWaitTime(10L).build());
+    await(() -> journal.getPending().stream().anyMatch(e -> e.getJobId() != null));
+    client.shutdown(10);
+
+    untilFailure.set(failingCheck);
+    BQQClient restarted = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setRetryPolicy(new BQQRetryPolicy(10, 1, 1, 1, 0, 60000))
+        .setJournal(new BQQJobJournal(folder.getRoot()));
+    restarted.startup(1, mode);
+    try {
+      CompletableFuture<QueryResult> future =
+          restarted.getResumedQueries().values().iterator().next();
+      Assert.assertEquals(10, future.get(10, TimeUnit.SECONDS).getTotalRows());
+    } finally {
+      restarted.shutdown();
+    }
+    Assert.assertEquals(0, untilFailure.get());
+    return simulator;
+  }
+
+  /**
+   * Waits up to 10s for a condition which comes true on another thread.
+   */
+  private void queueDuringShutdown(BQQExecutionMode mode) throws Exception {
+    BQQServiceFactory.setBackend(new BQQSimulator(1).setJobRuntime(Distribution.fixed(10)));
+    CountDownLatch queuing = new CountDownLatch(1);
+    CountDownLatch proceed = new CountDownLatch(1);
+    // holds the query up after the client's shutdown check, before it is queued
+    BQQJobJournal journal = new BQQJobJournal(folder.getRoot()) {
+      @Override
+      public long queued(QueryRequest queryRequest, BQQPriority priority,
+          String tenant) throws IOException {
+        queuing.countDown();
+        try {
+          proceed.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return super.queued(queryRequest, priority, tenant);
+      }
+    };
+    BQQClient client = new BQQClient()
+        .setPollingStrategy(BQQPollingStrategy.fixed(10))
+        .setJournal(journal);
+    client.startup(1, mode);
+    AtomicReference<CompletableFuture<QueryResult>> future = new AtomicReference<>();
+    Thread queuer = new Thread(() -> future.set(client.queueQueryAsync(QUERY)));
+    queuer.start();
+    queuing.await();
+    Thread shutdown = new Thread(() -> {
+      try {
+        client.shutdown(10000);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    shutdown.start();
+    // shutdown waits for the query being queued rather than draining the queue without it
+    shutdown.join(200);
+    Assert.assertTrue(shutdown.isAlive());
+    proceed.countDown();
+    queuer.join();
+    shutdown.join();
+    Assert.assertEquals(10, future.get().get(10, TimeUnit.SECONDS).getTotalRows());
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean()) {
+      Assert.assertTrue("timed out", System.nanoTime() < deadline);
+      Thread.sleep(5);
+    }
+  }
+
+  private static int count(Iterator<?> values) {
+    int count = 0;
+    while (values.hasNext()) {
+      values.next();
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import com.google.cloud.bigquery.QueryRequest;
+import com.google.cloud.bigquery.QueryResult;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests BQQSingleFlight Class.
+ */
+public class BQQSingleFlightTest {
+  private static final BQQQueryKey KEY = BQQQueryKey.of(QueryRequest.of("SELECT 1"));
+
+  private final AtomicInteger mStarts = new AtomicInteger();
+  private final CompletableFuture<QueryResult> mJob = new CompletableFuture<>();
+
+  private CompletableFuture<QueryResult> start() {
+    mStarts.incrementAndGet();
+    return mJob;
+  }
+
+  @Test
+  public void testExecute_CoalescesIdenticalQueries() {
+    BQQSingleFlight flight = new BQQSingleFlight();
+    CompletableFuture<QueryResult> f1 = flight.execute(KEY, this::start);
+    CompletableFuture<QueryResult> f2 = flight.execute(KEY, this::start);
+
+    Assert.assertEquals(1, mStarts.get());
+    Assert.assertEquals(1, flight.getCoalescedCount());
+    Assert.assertNotSame(f1, f2);
+
+    mJob.complete(null);
+    Assert.assertTrue(f1.isDone() && f2.isDone());
+    Assert.assertEquals(0, flight.getInFlightCount());
+  }
+
+  @Test
+  public void testExecute_SharesFailures() {
+    BQQSingleFlight flight = new BQQSingleFlight();
+    CompletableFuture<QueryResult> f1 = flight.execute(KEY, this::start);
+    CompletableFuture<QueryResult> f2 = flight.execute(KEY, this::start);
+
+    mJob.completeExceptionally(new BQQException("failed"));
+    Assert.assertTrue(f1.isCompletedExceptionally());
+    Assert.assertTrue(f2.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testCancel_OneCallerKeepsSharedJob() {
+    BQQSingleFlight flight = new BQQSingleFlight();
+    CompletableFuture<QueryResult> f1 = flight.execute(KEY, this::start);
+    CompletableFuture<QueryResult> f2 = flight.execute(KEY, this::start);
+
+    f1.cancel(true);
+    Assert.assertFalse(mJob.isCancelled());
+
+    mJob.complete(null);
+    Assert.assertTrue(f2.isDone() && !f2.isCancelled());
+  }
+
+  @Test
+  public void testCancel_AllCallersCancelSharedJob() {
+    BQQSingleFlight flight = new BQQSingleFlight();
+    CompletableFuture<QueryResult> f1 = flight.execute(KEY, this::start);
+    CompletableFuture<QueryResult> f2 = flight.execute(KEY, this::start);
+
+    f1.cancel(true);
+    f2.cancel(true);
+    Assert.assertTrue(mJob.isCancelled());
+
+    // a new caller starts a new job
+    flight.execute(KEY, this::start);
+    Assert.assertEquals(2, mStarts.get());
+  }
+
+  @Test
+  public void testTimeout_CallersLeaveLikeCancelling() {
+    BQQSingleFlight flight = new BQQSingleFlight();
+    CompletableFuture<QueryResult> f1 = flight.execute(KEY, this::start);
+    CompletableFuture<QueryResult> f2 = flight.execute(KEY, this::start);
+
+    f1.completeExceptionally(new BQQDeadlineExceededException("timed out"));
+    Assert.assertFalse(mJob.isDone());
+    Assert.assertFalse(f2.isDone());
+
+    f2.completeExceptionally(new BQQDeadlineExceededException("timed out"));
+    Assert.assertTrue(mJob.isCancelled());
+  }
+
+  @Test
+  public void testExecute_StartsNewJobOnceDone() {
+    BQQSingleFlight flight = new BQQSingleFlight();
+    flight.execute(KEY, this::start);
+    mJob.complete(null);
+    flight.execute(KEY, this::start);
+
+    Assert.assertEquals(2, mStarts.get());
+  }
+}
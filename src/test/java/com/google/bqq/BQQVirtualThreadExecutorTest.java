@@ -0,0 +1,82 @@
+/*
+  Copyright 2017 Google Inc.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+      http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.google.bqq;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests BQQVirtualThreadExecutor Class.
+ */
+public class BQQVirtualThreadExecutorTest {
+
+  @Before
+  public void requireVirtualThreads() {
+    Assume.assumeTrue(BQQVirtualThreadExecutor.isSupported());
+  }
+
+  @Test
+  public void testExecute_CapsConcurrency() throws InterruptedException {
+    BQQVirtualThreadExecutor e =
+        new BQQVirtualThreadExecutor(5, new LinkedBlockingQueue<Runnable>());
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(100);
+
+    for (int i = 0; i < 100; ++i) {
+      e.execute(() -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        done.countDown();
+      });
+    }
+
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 5);
+    e.shutdown();
+    Assert.assertTrue(e.awaitTermination(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testShutdownNow_ReturnsQueuedTasks() throws InterruptedException {
+    BQQVirtualThreadExecutor e =
+        new BQQVirtualThreadExecutor(1, new LinkedBlockingQueue<Runnable>());
+    CountDownLatch started = new CountDownLatch(1);
+    e.execute(() -> {
+      started.countDown();
+      try {
+        Thread.sleep(10000);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+    e.execute(() -> { });
+    e.execute(() -> { });
+
+    Assert.assertEquals(2, e.shutdownNow().size());
+    Assert.assertTrue(e.awaitTermination(1, TimeUnit.SECONDS));
+  }
+}